@@ -3,9 +3,17 @@ package org.deri.tarql;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
+import org.apache.jena.datatypes.RDFDatatype;
+import org.apache.jena.datatypes.TypeMapper;
+import org.apache.jena.vocabulary.XSD;
+
 /**
  * Configuration options for describing a CSV file. Also provides
  * convenience functions for creating {@link Reader}s and
@@ -25,6 +33,45 @@ public class CSVOptions {
 		put("backslash", '\\');
 	}};
 
+	/**
+	 * Parses a list of column type declarations, such as
+	 * <code>price:decimal,qty:integer</code>. Types can be given as
+	 * XSD local names (<code>integer</code>), as prefixed names with
+	 * the <code>xsd:</code> prefix, or as full datatype IRIs.
+	 * 
+	 * @param spec Comma-separated list of <code>column:type</code> pairs
+	 * @return Map from column names to datatypes, in declaration order
+	 * @throws IllegalArgumentException on malformed input or unknown datatypes
+	 */
+	public static Map<String, RDFDatatype> parseColumnTypes(String spec) {
+		Map<String, RDFDatatype> result = new LinkedHashMap<String, RDFDatatype>();
+		for (String pair: spec.split(",")) {
+			int colon = pair.indexOf(':');
+			if (colon <= 0 || colon == pair.length() - 1) {
+				throw new IllegalArgumentException("Not a column:type pair: " + pair);
+			}
+			result.put(pair.substring(0, colon).trim(), 
+					parseDatatype(pair.substring(colon + 1).trim()));
+		}
+		return result;
+	}
+	
+	private static RDFDatatype parseDatatype(String name) {
+		String iri;
+		if (name.startsWith("xsd:")) {
+			iri = XSD.getURI() + name.substring(4);
+		} else if (name.indexOf(':') == -1) {
+			iri = XSD.getURI() + name;
+		} else {
+			iri = name;
+		}
+		RDFDatatype result = TypeMapper.getInstance().getTypeByName(iri);
+		if (result == null) {
+			throw new IllegalArgumentException("Unknown datatype: " + name);
+		}
+		return result;
+	}
+
 	public static CSVOptions withCSVDefaults() {
 		CSVOptions result = new CSVOptions();
 		result.setDefaultsForCSV();
@@ -47,6 +94,10 @@ public class CSVOptions {
 	private Character escape = null;
 	private boolean isCSV = false;
 	private boolean isTSV = false;
+	private final Map<String, RDFDatatype> columnTypes = new LinkedHashMap<String, RDFDatatype>();
+	private Integer firstRowNumber = null;
+	private Integer duplicateRowWindow = null;
+	private List<String> duplicateRowKeyColumns = null;
 
 	/**
 	 * Creates a new instance with default values.
@@ -96,6 +147,16 @@ public class CSVOptions {
 			this.escape = other.escape;
 			hasExplicitEscape = true;
 		}
+		columnTypes.putAll(other.columnTypes);
+		if (other.firstRowNumber != null) {
+			this.firstRowNumber = other.firstRowNumber;
+		}
+		if (other.duplicateRowWindow != null) {
+			this.duplicateRowWindow = other.duplicateRowWindow;
+		}
+		if (other.duplicateRowKeyColumns != null) {
+			this.duplicateRowKeyColumns = other.duplicateRowKeyColumns;
+		}
 	}
 	
 	public void setDefaultsForCSV() {
@@ -224,6 +285,124 @@ public class CSVOptions {
 		return escape;
 	}
 	
+	/**
+	 * Declares the datatype of a column. Values in the column will
+	 * be turned into literals of that datatype instead of plain
+	 * strings. Values that are not valid for the datatype are left
+	 * unbound.
+	 * 
+	 * @param column The column's variable name, without question mark
+	 * @param datatype The datatype, or <code>null</code> for plain strings
+	 */
+	public void setColumnType(String column, RDFDatatype datatype) {
+		if (datatype == null) {
+			columnTypes.remove(column);
+		} else {
+			columnTypes.put(column, datatype);
+		}
+	}
+	
+	/**
+	 * Gets the declared datatypes of columns, keyed by variable name.
+	 * Columns not in the map produce plain string literals.
+	 * 
+	 * @return An unmodifiable map from column names to datatypes
+	 */
+	public Map<String, RDFDatatype> getColumnTypes() {
+		return Collections.unmodifiableMap(columnTypes);
+	}
+	
+	/**
+	 * Sets the <code>?ROWNUM</code> of the first data row. This is used
+	 * to continue numbering when a file is converted in several parts.
+	 * <code>null</code> means the default, 1.
+	 * 
+	 * @param value The number of the first row, or null for the default
+	 */
+	public void setFirstRowNumber(Integer value) {
+		this.firstRowNumber = value;
+	}
+	
+	/**
+	 * Gets the <code>?ROWNUM</code> of the first data row.
+	 * <code>null</code> means the default, 1.
+	 * 
+	 * @return The number of the first row, or null for the default
+	 */
+	public Integer getFirstRowNumber() {
+		return firstRowNumber;
+	}
+	
+	/**
+	 * Skips input rows that are exact duplicates of an earlier row,
+	 * before they are evaluated. Rows are compared by a 128-bit hash,
+	 * either against all earlier rows, which takes about 32 bytes of
+	 * memory per distinct row, or against a window of recent distinct
+	 * rows. <code>null</code> means the default, keeping duplicates.
+	 * 
+	 * @param windowSize Number of recent rows to compare against, 0 for all rows, or null to keep duplicates
+	 */
+	public void setDuplicateRowWindow(Integer windowSize) {
+		if (windowSize != null && windowSize < 0) {
+			throw new IllegalArgumentException("Window size must be >= 0: " + windowSize);
+		}
+		this.duplicateRowWindow = windowSize;
+	}
+	
+	/**
+	 * Gets the window for skipping duplicate rows.
+	 * 
+	 * @return Number of recent rows to compare against, 0 for all rows, or null if duplicates are kept
+	 */
+	public Integer getDuplicateRowWindow() {
+		return duplicateRowWindow;
+	}
+	
+	/**
+	 * Compares only some columns when skipping duplicate rows, so that
+	 * rows with the same key count as duplicates.
+	 * <code>null</code> means the default, comparing entire rows.
+	 * 
+	 * @param columns Variable names of the key columns, without question mark, or null for entire rows
+	 */
+	public void setDuplicateRowKeyColumns(List<String> columns) {
+		this.duplicateRowKeyColumns = columns == null ? null : new ArrayList<String>(columns);
+	}
+	
+	/**
+	 * Gets the columns that are compared when skipping duplicate rows.
+	 * 
+	 * @return The key columns, or null if entire rows are compared
+	 */
+	public List<String> getDuplicateRowKeyColumns() {
+		return duplicateRowKeyColumns == null ? null : Collections.unmodifiableList(duplicateRowKeyColumns);
+	}
+	
+	/**
+	 * Describes all settings, in a fixed order. Instances with the
+	 * same settings have the same description.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder result = new StringBuilder();
+		result.append("encoding=").append(encoding);
+		result.append(", header=").append(columnNamesInFirstRow);
+		result.append(", delimiter=").append(delimiter);
+		result.append(", quote=").append(quote);
+		result.append(", escape=").append(escape);
+		result.append(", types={");
+		boolean first = true;
+		for (Map.Entry<String, RDFDatatype> entry: columnTypes.entrySet()) {
+			if (!first) result.append(", ");
+			result.append(entry.getKey()).append('=').append(entry.getValue().getURI());
+			first = false;
+		}
+		result.append("}, firstRowNumber=").append(firstRowNumber);
+		result.append(", duplicateRowWindow=").append(duplicateRowWindow);
+		result.append(", duplicateRowKeyColumns=").append(duplicateRowKeyColumns);
+		return result.toString();
+	}
+
 	/**
 	 * Creates a new {@link CSVParser} for a given {@link InputStreamSource}
 	 * with the options of this instance.
@@ -233,9 +412,14 @@ public class CSVOptions {
 	 * @throws IOException if an I/O error occurs while opening the source
 	 */
 	public CSVParser openParserFor(InputStreamSource source) throws IOException {
-		return new CSVParser(openReaderFor(source), 
+		CSVParser result = new CSVParser(openReaderFor(source), 
 				columnNamesInFirstRow == null ? true : columnNamesInFirstRow,
-				delimiter, quote, escape);
+				delimiter, quote, escape, columnTypes,
+				firstRowNumber == null ? 1 : firstRowNumber);
+		if (duplicateRowWindow != null) {
+			result.setDuplicateRowRemoval(duplicateRowWindow, duplicateRowKeyColumns);
+		}
+		return result;
 	}
 	
 	/**
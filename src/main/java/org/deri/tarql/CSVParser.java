@@ -3,9 +3,13 @@ package org.deri.tarql;
 import java.io.IOException;
 import java.io.Reader;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
+import org.apache.jena.datatypes.RDFDatatype;
 import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.graph.Node;
 import org.apache.jena.graph.NodeFactory;
 import org.apache.jena.sparql.core.Var;
 import org.apache.jena.sparql.engine.binding.Binding;
@@ -15,6 +19,8 @@ import org.apache.jena.util.iterator.ClosableIterator;
 import com.opencsv.CSVParserBuilder;
 import com.opencsv.CSVReader;
 import com.opencsv.CSVReaderBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 
 /**
@@ -25,8 +31,16 @@ import com.opencsv.CSVReaderBuilder;
  * <p>
  * Adds a <code>ROWNUM</code> column with the number of the
  * row.
+ * <p>
+ * Columns can have declared datatypes. Their values are turned
+ * into typed literals, and values that are not valid for the
+ * datatype are logged and left unbound.
+ * <p>
+ * Rows that repeat an earlier row can be skipped before they are
+ * turned into bindings, see {@link #setDuplicateRowRemoval(int, List)}.
  */
 public class CSVParser implements ClosableIterator<Binding> {
+	private final static Logger log = LoggerFactory.getLogger(CSVParser.class);
 
 	public static String getColumnName(int i) {
 		String var = "";
@@ -44,10 +58,20 @@ public class CSVParser implements ClosableIterator<Binding> {
 	private final char delimiter;
 	private final Character quote;
 	private final Character escape;
+	private final Map<String, RDFDatatype> columnTypes;
 	private final List<Var> vars = new ArrayList<Var>();
+	private final List<RDFDatatype> types = new ArrayList<RDFDatatype>();
 	private int rownum;
+	private TarqlStats stats = null;
+	private Object rowBatchEvent = null;
+	private int rowBatchRows = 0;
+	private int rowBatchSkipped = 0;
+	private RowDeduplicator duplicates = null;
+	private List<String> duplicateKeyColumns = null;
+	private int[] duplicateKeyIndexes = null;
 
 	private Binding binding;
+	private String[] bufferedRow;
 	private CSVReader csv;
 
 	/**
@@ -65,7 +89,51 @@ public class CSVParser implements ClosableIterator<Binding> {
 	 */
 	public CSVParser(Reader reader, boolean varsFromHeader, Character delimiter, Character quote, Character escape)
 			throws IOException {
+		this(reader, varsFromHeader, delimiter, quote, escape, Collections.<String, RDFDatatype>emptyMap());
+	}
+
+	/**
+	 * @param reader
+	 *            Reader over the contents of a CSV file
+	 * @param varsFromHeader
+	 *            If true, use values of first row as column names
+	 * @param delimiter
+	 *            The delimiter character to use for separating entries (e.g., ',' or ';' or '\t'), or <code>null</code> for default
+	 * @param quote
+	 *            The quote character used to quote values (typically double or single quote), or <code>null</code> for default
+	 * @param escape
+	 *            The escape character for quotes and delimiters, or <code>null</code> for none 
+	 * @param columnTypes
+	 *            Datatypes of columns, keyed by variable name; columns not in the map produce plain strings
+	 * @throws IOException if an I/O error occurs while reading from the input
+	 */
+	public CSVParser(Reader reader, boolean varsFromHeader, Character delimiter, Character quote, Character escape,
+			Map<String, RDFDatatype> columnTypes) throws IOException {
+		this(reader, varsFromHeader, delimiter, quote, escape, columnTypes, 1);
+	}
+
+	/**
+	 * @param reader
+	 *            Reader over the contents of a CSV file
+	 * @param varsFromHeader
+	 *            If true, use values of first row as column names
+	 * @param delimiter
+	 *            The delimiter character to use for separating entries (e.g., ',' or ';' or '\t'), or <code>null</code> for default
+	 * @param quote
+	 *            The quote character used to quote values (typically double or single quote), or <code>null</code> for default
+	 * @param escape
+	 *            The escape character for quotes and delimiters, or <code>null</code> for none 
+	 * @param columnTypes
+	 *            Datatypes of columns, keyed by variable name; columns not in the map produce plain strings
+	 * @param firstRowNumber
+	 *            The <code>?ROWNUM</code> of the first data row
+	 * @throws IOException if an I/O error occurs while reading from the input
+	 */
+	public CSVParser(Reader reader, boolean varsFromHeader, Character delimiter, Character quote, Character escape,
+			Map<String, RDFDatatype> columnTypes, int firstRowNumber) throws IOException {
 		this.reader = reader;
+		this.rownum = firstRowNumber;
+		this.columnTypes = columnTypes;
 		this.varsFromHeader = varsFromHeader;
 		this.delimiter = delimiter == null ? ',' : delimiter;
 		// OpenCSV insists on a quote character
@@ -116,7 +184,10 @@ public class CSVParser implements ClosableIterator<Binding> {
 		for (int i = 0; i < row.length; i++) {
 			if (isUnboundValue(row[i]))
 				continue;
-			result.add(getVar(i), NodeFactory.createLiteral(sanitizeString(row[i])));
+			Node value = toNode(i, row[i]);
+			if (value == null)
+				continue;
+			result.add(getVar(i), value);
 		}
 		// Add current row number as ?ROWNUM
 		result.add(TarqlQuery.ROWNUM, NodeFactory.createLiteral(
@@ -124,6 +195,32 @@ public class CSVParser implements ClosableIterator<Binding> {
 		return result;
 	}
 
+	/**
+	 * Turns a cell value into a literal, taking into account the
+	 * declared datatype of the column, if any. Returns <code>null</code>
+	 * if the value is not valid for the datatype.
+	 */
+	private Node toNode(int column, String value) {
+		RDFDatatype type = getType(column);
+		if (type == null || type.equals(XSDDatatype.XSDstring)) {
+			return NodeFactory.createLiteral(sanitizeString(value));
+		}
+		String lexicalForm = value.trim();
+		if (!type.isValid(lexicalForm)) {
+			log.warn("Row " + rownum + ": Value of ?" + getVar(column).getName() + 
+					" is not a valid " + type.getURI() + ", leaving unbound: '" + value + "'");
+			return null;
+		}
+		return NodeFactory.createLiteral(lexicalForm, type);
+	}
+
+	private RDFDatatype getType(int column) {
+		while (types.size() <= column) {
+			types.add(columnTypes.get(getVar(types.size()).getName()));
+		}
+		return types.get(column);
+	}
+
 	/**
 	 * Remove/replace weird characters known to cause problems in RDF toolkits.
 	 */
@@ -160,10 +257,24 @@ public class CSVParser implements ClosableIterator<Binding> {
 		try {
 			while ((row = csv.readNext()) != null) {
 				// Skip rows without data
-				if (isEmpty(row))
+				if (isEmpty(row)) {
+					if (stats != null) stats.rowSkipped();
+					if (TarqlEvents.AVAILABLE) rowBatchSkipped++;
 					continue;
+				}
+				if (duplicates != null && duplicates.isDuplicate(row, getDuplicateKeyIndexes(row))) {
+					if (stats != null) stats.rowSkipped();
+					if (TarqlEvents.AVAILABLE) rowBatchSkipped++;
+					continue;
+				}
 				binding = toBinding(row);
+				bufferedRow = row;
 				rownum++;
+				if (stats != null) stats.rowParsed();
+				if (TarqlEvents.AVAILABLE && ++rowBatchRows == TarqlEvents.BATCH_SIZE) {
+					commitRowBatch();
+					rowBatchEvent = TarqlEvents.beginRowBatch();
+				}
 				break;
 			}
 		} catch (IOException e) {
@@ -178,8 +289,16 @@ public class CSVParser implements ClosableIterator<Binding> {
 				"Remove is not supported. It is a read-only iterator");
 	}
 
+	private void commitRowBatch() {
+		TarqlEvents.commitRowBatch(rowBatchEvent, rownum - rowBatchRows, rowBatchRows, rowBatchSkipped);
+		rowBatchEvent = null;
+		rowBatchRows = 0;
+		rowBatchSkipped = 0;
+	}
+
 	@Override
 	public void close() {
+		if (TarqlEvents.AVAILABLE) commitRowBatch();
 		try {
 			csv.close();
 		} catch (IOException e) {
@@ -187,6 +306,49 @@ public class CSVParser implements ClosableIterator<Binding> {
 		}
 	}
 	
+	/**
+	 * Counts parsed and skipped rows from now on. The row that is
+	 * already buffered to answer {@link #hasNext()} is counted too.
+	 * 
+	 * @param stats Where to count rows, or <code>null</code> to stop counting
+	 */
+	public void setStats(TarqlStats stats) {
+		this.stats = stats;
+		if (stats != null && binding != null) stats.rowParsed();
+	}
+
+	/**
+	 * Skips rows that are exact duplicates of an earlier row from now
+	 * on, before they are turned into bindings. Skipped rows don't get
+	 * a <code>?ROWNUM</code>, like empty rows. The row that is already
+	 * buffered to answer {@link #hasNext()} is remembered too.
+	 * 
+	 * @param windowSize Number of most recent distinct rows to compare against, or 0 for all rows
+	 * @param keyColumns Names of the columns to compare, or <code>null</code> to compare entire rows
+	 */
+	public void setDuplicateRowRemoval(int windowSize, List<String> keyColumns) {
+		duplicates = new RowDeduplicator(windowSize);
+		duplicateKeyColumns = keyColumns;
+		duplicateKeyIndexes = null;
+		if (binding != null) {
+			duplicates.isDuplicate(bufferedRow, getDuplicateKeyIndexes(bufferedRow));
+		}
+	}
+
+	private int[] getDuplicateKeyIndexes(String[] row) {
+		if (duplicateKeyColumns == null || duplicateKeyIndexes != null) return duplicateKeyIndexes;
+		// Without a header row, column names are made up as cells come in
+		if (row.length > 0) getVar(row.length - 1);
+		duplicateKeyIndexes = new int[duplicateKeyColumns.size()];
+		for (int i = 0; i < duplicateKeyIndexes.length; i++) {
+			duplicateKeyIndexes[i] = vars.indexOf(Var.alloc(duplicateKeyColumns.get(i)));
+			if (duplicateKeyIndexes[i] < 0) {
+				throw new TarqlException("Column for detecting duplicate rows not found: ?" + duplicateKeyColumns.get(i));
+			}
+		}
+		return duplicateKeyIndexes;
+	}
+
 	public List<Var> getVars() {
 		List<Var> varsWithRowNum = new ArrayList<Var>(vars);
 		varsWithRowNum.add(TarqlQuery.ROWNUM);
@@ -226,7 +388,7 @@ public class CSVParser implements ClosableIterator<Binding> {
 				break;
 			}
 		}
-		rownum = 1;
+		rowBatchEvent = TarqlEvents.beginRowBatch();
 		next();
 	}
 }
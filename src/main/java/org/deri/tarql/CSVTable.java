@@ -5,6 +5,7 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 
+import org.apache.jena.graph.Node;
 import org.apache.jena.sparql.algebra.Table;
 import org.apache.jena.sparql.algebra.table.TableBase;
 import org.apache.jena.sparql.core.Var;
@@ -30,6 +31,9 @@ public class CSVTable extends TableBase implements Table {
 	private List<Var> varsCache = null;
 	private Boolean isEmptyCache = null;
 	private Integer sizeCache = null;
+	private TarqlStats stats = null;
+	private int passes = 0;
+	private long resumeAfter = 0;
 	
 	public CSVTable(InputStreamSource source) {
 		this(source, new CSVOptions());
@@ -40,6 +44,16 @@ public class CSVTable extends TableBase implements Table {
 		this.options = options;
 	}
 	
+	/**
+	 * Counts bytes read and rows parsed in all passes
+	 * over the input. Must be called before the table is first used.
+	 * 
+	 * @param stats Where to count, or <code>null</code> to stop counting
+	 */
+	public void setStats(TarqlStats stats) {
+		this.stats = stats;
+	}
+
 	@Override
 	public QueryIterator iterator(ExecutionContext ctxt) {
 		// QueryIteratorPlainWrapper doesn't close wrapped 
@@ -54,36 +68,82 @@ public class CSVTable extends TableBase implements Table {
 		};
 	}
 
+	/**
+	 * Makes the next iterator over the table skip all rows up to and
+	 * including a given <code>?ROWNUM</code>, for resuming an
+	 * interrupted conversion. The rows are still parsed and counted.
+	 * 
+	 * @param rownum Last row to skip
+	 */
+	public void setResumeAfter(long rownum) {
+		resumeAfter = rownum;
+	}
+
 	@Override
 	public ClosableIterator<Binding> rows() {
 		ensureHasParser();
 		final ClosableIterator<Binding> wrappedIterator = nextParser;
 		nextParser = null;
+		final int pass = ++passes;
+		final long skipUpTo = resumeAfter;
+		resumeAfter = 0;
 		// We will add a wrapper to the iterator that removes it
 		// from the list of open iterators once it is closed and
 		// exhausted, and that fills the size cache once the
 		// iterator is exhausted.
 		return new ClosableIterator<Binding>() {
 			private int count = 0;
+			// Started on first use, as ARQ sets up all iterators up front
+			private Object passEvent = null;
+			private boolean started = false;
+			private Binding skipped = null;
 			@Override
 			public boolean hasNext() {
-				if (wrappedIterator.hasNext()) return true;
+				if (!started) {
+					passEvent = TarqlEvents.beginPass();
+					started = true;
+					skipped = skip();
+				}
+				if (skipped != null || wrappedIterator.hasNext()) return true;
 				if (sizeCache == null) sizeCache = count;
-				openIterators.remove(wrappedIterator);
+				if (openIterators.remove(wrappedIterator)) {
+					TarqlEvents.commitPass(passEvent, pass, count);
+				}
 				return false;
 			}
 			@Override
 			public Binding next() {
+				if (!started) hasNext();
+				if (skipped != null) {
+					Binding result = skipped;
+					skipped = null;
+					return result;
+				}
 				count++;
 				return wrappedIterator.next();
 			}
+			/**
+			 * Counts and drops the rows to be skipped, and returns
+			 * the first row after them, or null if none
+			 */
+			private Binding skip() {
+				if (skipUpTo <= 0) return null;
+				while (wrappedIterator.hasNext()) {
+					Binding binding = wrappedIterator.next();
+					count++;
+					if (getRowNumber(binding) > skipUpTo) return binding;
+				}
+				return null;
+			}
 			@Override
 			public void remove() {
 				wrappedIterator.remove();
 			}
 			@Override
 			public void close() {
-				openIterators.remove(wrappedIterator);
+				if (openIterators.remove(wrappedIterator)) {
+					TarqlEvents.commitPass(passEvent, pass, count);
+				}
 				wrappedIterator.close();
 			}
 		};
@@ -136,6 +196,11 @@ public class CSVTable extends TableBase implements Table {
 		}
 	}
 	
+	private static long getRowNumber(Binding binding) {
+		Node rownum = binding.get(TarqlQuery.ROWNUM);
+		return ((Number) rownum.getLiteralValue()).longValue();
+	}
+
 	private void ensureHasParser() {
 		if (nextParser == null) {
 			CSVParser parser = createParser();
@@ -151,7 +216,9 @@ public class CSVTable extends TableBase implements Table {
 	
 	private CSVParser createParser() {
 		try {
-			CSVParser result = options.openParserFor(source);
+			CSVParser result = options.openParserFor(
+					stats == null ? source : stats.countBytesRead(source));
+			result.setStats(stats);
 			openIterators.add(result);
 			return result;
 		} catch (IOException ex) {
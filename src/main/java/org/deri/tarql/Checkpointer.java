@@ -0,0 +1,274 @@
+package org.deri.tarql;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.jena.atlas.io.AWriter;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFParser;
+import org.apache.jena.riot.out.NodeFmtLib;
+import org.apache.jena.riot.system.StreamRDFBase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Periodically records how far a conversion to an N-Triples file
+ * has progressed, so that it can be resumed after a crash instead
+ * of being started over.
+ * <p>
+ * A checkpoint records the index of the input file, the index of the
+ * query, the last <code>?ROWNUM</code> whose triples have been written,
+ * the length of the output file at that point, and the triples in the
+ * deduplication window. Resuming truncates the output file to that
+ * length, restores the window, and skips everything up to and
+ * including the recorded row.
+ * <p>
+ * Rows are only recorded for queries that produce their results in
+ * input order. For other queries, such as those with ORDER BY, a
+ * checkpoint is only made once the query is complete.
+ * <p>
+ * The checkpoint file is replaced atomically where the file system
+ * supports it, and is deleted by {@link #finish()} once the
+ * conversion is complete.
+ */
+public class Checkpointer {
+	private final static Logger log = LoggerFactory.getLogger(Checkpointer.class);
+	/** Only look at the clock every this many rows */
+	private final static int rowsBetweenClockChecks = 1024;
+
+	/**
+	 * Starts a new conversion, replacing any previous output.
+	 *
+	 * @param checkpointFile Where to save checkpoints
+	 * @param outputFile The N-Triples output file
+	 * @param intervalMillis Minimum time between checkpoints
+	 * @return A checkpointer whose output stream writes to the output file
+	 * @throws IOException if the output file cannot be opened
+	 */
+	public static Checkpointer start(File checkpointFile, File outputFile, long intervalMillis) throws IOException {
+		return new Checkpointer(checkpointFile, outputFile, intervalMillis, new Properties());
+	}
+
+	/**
+	 * Resumes a conversion from its last checkpoint. If there is no
+	 * checkpoint file, starts a new conversion.
+	 *
+	 * @param checkpointFile Where the conversion saved its checkpoints
+	 * @param outputFile The N-Triples output file
+	 * @param intervalMillis Minimum time between checkpoints
+	 * @return A checkpointer whose output stream appends to the output file
+	 * @throws IOException if the checkpoint is unreadable or doesn't match the output file
+	 */
+	public static Checkpointer resume(File checkpointFile, File outputFile, long intervalMillis) throws IOException {
+		Properties checkpoint = new Properties();
+		if (!checkpointFile.exists()) {
+			log.info("No checkpoint, starting from the beginning: " + checkpointFile);
+			return new Checkpointer(checkpointFile, outputFile, intervalMillis, checkpoint);
+		}
+		InputStream in = new FileInputStream(checkpointFile);
+		try {
+			checkpoint.load(in);
+		} finally {
+			in.close();
+		}
+		return new Checkpointer(checkpointFile, outputFile, intervalMillis, checkpoint);
+	}
+
+	private final File checkpointFile;
+	private final long intervalMillis;
+	private final FileOutputStream output;
+	private final int resumeInput;
+	private final int resumeQuery;
+	private final long resumeRow;
+	private final List<Triple> resumeWindow;
+	private AWriter writer = null;
+	private StreamRDFDedup dedup = null;
+	private long lastSave = System.currentTimeMillis();
+	private int rowsSinceClockCheck = 0;
+
+	private Checkpointer(File checkpointFile, File outputFile, long intervalMillis, Properties checkpoint) throws IOException {
+		this.checkpointFile = checkpointFile;
+		this.intervalMillis = intervalMillis;
+		if (checkpoint.isEmpty()) {
+			resumeInput = 0;
+			resumeQuery = 0;
+			resumeRow = 0;
+			resumeWindow = new ArrayList<Triple>();
+			output = new FileOutputStream(outputFile);
+			return;
+		}
+		try {
+			resumeInput = Integer.parseInt(checkpoint.getProperty("input"));
+			resumeQuery = Integer.parseInt(checkpoint.getProperty("query"));
+			resumeRow = Long.parseLong(checkpoint.getProperty("rownum"));
+			long offset = Long.parseLong(checkpoint.getProperty("output-offset"));
+			if (outputFile.length() < offset) {
+				throw new IOException("Output file is shorter than at the checkpoint: " + outputFile);
+			}
+			// Drop whatever was written after the checkpoint
+			RandomAccessFile file = new RandomAccessFile(outputFile, "rw");
+			try {
+				file.setLength(offset);
+			} finally {
+				file.close();
+			}
+			resumeWindow = parseNTriples(checkpoint.getProperty("dedup-window", ""));
+		} catch (NumberFormatException ex) {
+			throw new IOException("Bad checkpoint file: " + checkpointFile, ex);
+		} catch (NullPointerException ex) {
+			throw new IOException("Incomplete checkpoint file: " + checkpointFile, ex);
+		}
+		log.info("Resuming at input " + (resumeInput + 1) + ", query " + (resumeQuery + 1) +
+				(resumeRow < 0 ? ", after the end" : ", after row " + resumeRow));
+		output = new FileOutputStream(outputFile, true);
+	}
+
+	/**
+	 * @return The stream to which the conversion must write its output
+	 */
+	public OutputStream getOutputStream() {
+		return output;
+	}
+
+	/**
+	 * @return Index of the input file to resume in; earlier ones are done
+	 */
+	public int getResumeInput() {
+		return resumeInput;
+	}
+
+	/**
+	 * @return Index of the query to resume in; earlier ones are done
+	 */
+	public int getResumeQuery() {
+		return resumeQuery;
+	}
+
+	/**
+	 * @return Last <code>?ROWNUM</code> that is done in the query to resume in,
+	 * 		0 if none, or -1 if the entire query is done
+	 */
+	public long getResumeRow() {
+		return resumeRow;
+	}
+
+	/**
+	 * Connects the writer that buffers output before it reaches
+	 * {@link #getOutputStream()}, and the deduplication window, if any.
+	 * Restores the window's contents when resuming.
+	 */
+	void attach(AWriter writer, StreamRDFDedup dedup) {
+		this.writer = writer;
+		this.dedup = dedup;
+		if (dedup != null) {
+			dedup.restoreWindow(resumeWindow);
+		}
+		resumeWindow.clear();
+	}
+
+	/**
+	 * Called after all triples from a row have been written.
+	 * Saves a checkpoint if the interval has passed.
+	 */
+	void rowDone(int input, int query, long rownum) {
+		if (++rowsSinceClockCheck < rowsBetweenClockChecks) return;
+		rowsSinceClockCheck = 0;
+		if (System.currentTimeMillis() - lastSave < intervalMillis) return;
+		save(input, query, rownum);
+	}
+
+	/**
+	 * Called after all triples from a query have been written.
+	 * Saves a checkpoint if the interval has passed.
+	 */
+	void queryDone(int input, int query) {
+		rowsSinceClockCheck = 0;
+		if (System.currentTimeMillis() - lastSave < intervalMillis) return;
+		save(input, query, -1);
+	}
+
+	/**
+	 * Writes a checkpoint for the current state of the output.
+	 */
+	void save(int input, int query, long rownum) {
+		try {
+			if (writer != null) {
+				writer.flush();
+			}
+			output.flush();
+			// Make sure the output is on disk before the checkpoint claims it is
+			output.getChannel().force(false);
+			Properties checkpoint = new Properties();
+			checkpoint.setProperty("input", Integer.toString(input));
+			checkpoint.setProperty("query", Integer.toString(query));
+			checkpoint.setProperty("rownum", Long.toString(rownum));
+			checkpoint.setProperty("output-offset", Long.toString(output.getChannel().position()));
+			if (dedup != null) {
+				checkpoint.setProperty("dedup-window", toNTriples(dedup.getWindow()));
+			}
+			File temp = new File(checkpointFile.getPath() + ".tmp");
+			FileOutputStream out = new FileOutputStream(temp);
+			try {
+				checkpoint.store(out, "Tarql checkpoint");
+				out.getChannel().force(false);
+			} finally {
+				out.close();
+			}
+			if (!temp.renameTo(checkpointFile)) {
+				checkpointFile.delete();
+				if (!temp.renameTo(checkpointFile)) {
+					throw new IOException("Cannot write checkpoint: " + checkpointFile);
+				}
+			}
+		} catch (IOException ex) {
+			throw new TarqlException("Cannot write checkpoint", ex);
+		}
+		lastSave = System.currentTimeMillis();
+	}
+
+	/**
+	 * Closes the output and deletes the checkpoint, as there is
+	 * nothing left to resume.
+	 *
+	 * @throws IOException if the output cannot be closed
+	 */
+	public void finish() throws IOException {
+		output.close();
+		checkpointFile.delete();
+	}
+
+	/**
+	 * Triples with blank nodes are left out, as a resumed run
+	 * creates new blank nodes that can't be duplicates of these.
+	 */
+	private static String toNTriples(List<Triple> triples) {
+		StringBuilder result = new StringBuilder();
+		for (Triple triple: triples) {
+			if (triple.getSubject().isBlank() || triple.getObject().isBlank()) continue;
+			result.append(NodeFmtLib.str(triple)).append(" .\n");
+		}
+		return result.toString();
+	}
+
+	private static List<Triple> parseNTriples(String ntriples) {
+		final List<Triple> result = new ArrayList<Triple>();
+		if (ntriples.isEmpty()) return result;
+		RDFParser.fromString(ntriples).lang(Lang.NTRIPLES).parse(new StreamRDFBase() {
+			@Override
+			public void triple(Triple triple) {
+				result.add(triple);
+			}
+		});
+		return result;
+	}
+}
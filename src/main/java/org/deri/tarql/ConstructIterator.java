@@ -0,0 +1,186 @@
+package org.deri.tarql;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.modify.TemplateLib;
+import org.apache.jena.sparql.util.ModelUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Instantiates a CONSTRUCT template once for each of a sequence of
+ * bindings. Does the same as ARQ's {@link TemplateLib#calcTriples(List, Iterator)},
+ * but can count bindings and triples into a {@link TarqlStats}, and
+ * time query evaluation and template triples into a
+ * {@link TarqlProfiler.QueryProfile}, tell a {@link Listener}
+ * when all triples of earlier bindings have been consumed, and skip or mark
+ * template triples according to a {@link TemplateAnalysis}.
+ */
+class ConstructIterator implements Iterator<Triple> {
+	private final static Logger log = LoggerFactory.getLogger(ConstructIterator.class);
+
+	/**
+	 * Maximum number of distinct once-per-value triples to remember.
+	 * Beyond that, the columns weren't low-cardinality after all, and
+	 * those triples are produced for every row again.
+	 */
+	final static int MAX_ONCE_PER_VALUE = 1000000;
+
+	private final List<Triple> template;
+	private final Iterator<Binding> bindings;
+	private final Map<Node, Node> bNodeMap = new HashMap<Node, Node>();
+	private final List<Triple> buffer = new ArrayList<Triple>();
+	private int position = 0;
+	private TarqlStats stats = null;
+	private int queryIndex = 0;
+	private TarqlProfiler.QueryProfile profile = null;
+	private Listener listener = null;
+	private Binding current = null;
+	private boolean finished = false;
+	private TemplateAnalysis analysis = null;
+	private boolean invariantDone = false;
+	private Set<Triple> seen = null;
+
+	/**
+	 * Receives notifications about the progress of the iterator.
+	 */
+	interface Listener {
+
+		/**
+		 * Called when all triples from earlier bindings have been
+		 * consumed, before any triples from the given binding are
+		 * produced.
+		 */
+		void bindingStarting(Binding binding);
+
+		/**
+		 * Called when all triples have been consumed.
+		 */
+		void finished();
+	}
+
+	ConstructIterator(List<Triple> template, Iterator<Binding> bindings) {
+		this.template = template;
+		this.bindings = bindings;
+	}
+
+	void setStats(TarqlStats stats, int queryIndex) {
+		this.stats = stats;
+		this.queryIndex = queryIndex;
+	}
+
+	void setProfile(TarqlProfiler.QueryProfile profile) {
+		this.profile = profile;
+	}
+
+	void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Produces invariant template triples only for the first binding,
+	 * and once-per-value triples only the first time they come up, and
+	 * marks row-unique triples as {@link RowUniqueTriple}s.
+	 * 
+	 * @param analysis Analysis of the template
+	 * @param invariantDone <code>true</code> if the invariant triples have
+	 * 		already been produced, as when resuming within the query
+	 */
+	void setAnalysis(TemplateAnalysis analysis, boolean invariantDone) {
+		this.analysis = analysis;
+		this.invariantDone = invariantDone;
+		this.seen = new HashSet<Triple>();
+	}
+
+	@Override
+	public boolean hasNext() {
+		while (position == buffer.size()) {
+			if (finished) return false;
+			buffer.clear();
+			position = 0;
+			current = nextBinding();
+			if (current == null) {
+				finished = true;
+				if (listener != null) listener.finished();
+				return false;
+			}
+			if (listener != null) {
+				listener.bindingStarting(current);
+			}
+			instantiate(current);
+		}
+		return true;
+	}
+
+	@Override
+	public Triple next() {
+		if (!hasNext()) throw new NoSuchElementException();
+		if (stats != null) stats.tripleEmitted();
+		return buffer.get(position++);
+	}
+
+	private Binding nextBinding() {
+		Binding result;
+		if (profile != null && profile.evaluation.sample()) {
+			long start = System.nanoTime();
+			result = bindings.hasNext() ? bindings.next() : null;
+			profile.evaluation.add(System.nanoTime() - start);
+		} else {
+			result = bindings.hasNext() ? bindings.next() : null;
+		}
+		if (result != null && stats != null) stats.bindingProduced(queryIndex);
+		return result;
+	}
+
+	private void instantiate(Binding binding) {
+		// Each binding gets its own set of blank nodes
+		bNodeMap.clear();
+		for (int i = 0; i < template.size(); i++) {
+			if (analysis != null && invariantDone && analysis.isInvariant(i)) continue;
+			Triple triple;
+			if (profile != null && profile.templateTriples.get(i).sample()) {
+				long start = System.nanoTime();
+				triple = instantiate(template.get(i), binding);
+				profile.templateTriples.get(i).add(System.nanoTime() - start);
+			} else {
+				triple = instantiate(template.get(i), binding);
+			}
+			if (triple == null) continue;
+			if (analysis != null) {
+				if (seen != null && analysis.isOncePerValue(i) && !seen.add(triple)) continue;
+				if (analysis.isRowUnique(i)) triple = new RowUniqueTriple(triple);
+			}
+			buffer.add(triple);
+		}
+		invariantDone = true;
+		if (seen != null && seen.size() > MAX_ONCE_PER_VALUE) {
+			log.warn("More than " + MAX_ONCE_PER_VALUE + 
+					" distinct once-per-value triples; no longer removing their repeats");
+			seen = null;
+		}
+	}
+
+	/**
+	 * Returns <code>null</code> if the triple has unbound variables
+	 * or is not valid RDF, e.g., has a literal in subject position.
+	 */
+	private Triple instantiate(Triple pattern, Binding binding) {
+		Triple result = TemplateLib.subst(pattern, binding, bNodeMap);
+		if (!result.isConcrete() || !ModelUtils.isValidAsStatement(
+				result.getSubject(), result.getPredicate(), result.getObject())) {
+			return null;
+		}
+		return result;
+	}
+}
@@ -0,0 +1,259 @@
+package org.deri.tarql;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+
+/**
+ * Sorts lines of text and removes duplicates, using a bounded amount
+ * of memory. Lines are collected in memory until the limit is reached,
+ * then sorted and written to a temporary file. The sorted files are
+ * merged when the result is read. If there are too many of them to
+ * open at once, groups of them are first merged into larger files.
+ * <p>
+ * Lines are compared with {@link String#compareTo(String)}. They must
+ * not contain line breaks.
+ * <p>
+ * Usage: {@link #add(String)} all lines, then read {@link #sorted()}
+ * once, then {@link #close()} to delete the temporary files.
+ */
+public class ExternalSorter implements Closeable {
+	/** Approximate memory used by a line, in addition to its characters */
+	private final static int overheadPerLine = 64;
+	/** Default for the most temporary files to read at the same time */
+	private final static int defaultMaxFanIn = 64;
+
+	private final long maxBytesInMemory;
+	private final File tempDirectory;
+	private final List<String> lines = new ArrayList<String>();
+	private final List<File> runs = new ArrayList<File>();
+	private final List<Closeable> readers = new ArrayList<Closeable>();
+	private long bytesInMemory = 0;
+	private int maxFanIn = defaultMaxFanIn;
+
+	/**
+	 * @param maxBytesInMemory Approximate memory to use for lines before writing them to disk
+	 * @param tempDirectory Where to put temporary files, or <code>null</code> for the system default
+	 */
+	public ExternalSorter(long maxBytesInMemory, File tempDirectory) {
+		this.maxBytesInMemory = maxBytesInMemory;
+		this.tempDirectory = tempDirectory;
+	}
+
+	/**
+	 * @param line A line to sort, without line break
+	 * @throws IOException if a temporary file cannot be written
+	 */
+	public void add(String line) throws IOException {
+		lines.add(line);
+		bytesInMemory += line.length() * 2 + overheadPerLine;
+		if (bytesInMemory >= maxBytesInMemory) {
+			writeRun();
+		}
+	}
+
+	/**
+	 * @param maxFanIn Most temporary files to read at the same time, at least 2
+	 */
+	void setMaxFanIn(int maxFanIn) {
+		if (maxFanIn < 2) {
+			throw new IllegalArgumentException("Fan-in must be at least 2: " + maxFanIn);
+		}
+		this.maxFanIn = maxFanIn;
+	}
+
+	/**
+	 * @return Number of temporary files written so far
+	 */
+	int getRunCount() {
+		return runs.size();
+	}
+
+	/**
+	 * Returns the lines in sorted order, without duplicates.
+	 * Can only be called once.
+	 *
+	 * @return An iterator over the sorted lines
+	 * @throws IOException if the temporary files cannot be read
+	 */
+	public Iterator<String> sorted() throws IOException {
+		Collections.sort(lines);
+		if (runs.isEmpty()) {
+			return distinct(lines.iterator());
+		}
+		if (!lines.isEmpty()) {
+			writeRun();
+		}
+		while (runs.size() > maxFanIn) {
+			mergeRuns();
+		}
+		return distinct(merge(runs));
+	}
+
+	/**
+	 * Deletes the temporary files.
+	 */
+	@Override
+	public void close() {
+		for (Closeable reader: readers) {
+			try {
+				reader.close();
+			} catch (IOException ex) {
+				// Deleting anyway
+			}
+		}
+		for (File run: runs) {
+			run.delete();
+		}
+		runs.clear();
+		lines.clear();
+	}
+
+	private void writeRun() throws IOException {
+		Collections.sort(lines);
+		File run = File.createTempFile("tarql-sort", ".txt", tempDirectory);
+		runs.add(run);
+		Writer out = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(run), StandardCharsets.UTF_8), 65536);
+		try {
+			String previous = null;
+			for (String line: lines) {
+				if (line.equals(previous)) continue;
+				out.write(line);
+				out.write('\n');
+				previous = line;
+			}
+		} finally {
+			out.close();
+		}
+		lines.clear();
+		bytesInMemory = 0;
+	}
+
+	/**
+	 * Merges the oldest {@link #maxFanIn} runs into a new run at the end
+	 * of the list, so each line passes through O(log n) intermediate files.
+	 */
+	private void mergeRuns() throws IOException {
+		List<File> group = new ArrayList<File>(runs.subList(0, maxFanIn));
+		File run = File.createTempFile("tarql-sort", ".txt", tempDirectory);
+		runs.add(run);
+		Writer out = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(run), StandardCharsets.UTF_8), 65536);
+		try {
+			Iterator<String> it = distinct(merge(group));
+			while (it.hasNext()) {
+				out.write(it.next());
+				out.write('\n');
+			}
+		} finally {
+			out.close();
+			for (Closeable reader: readers) {
+				reader.close();
+			}
+			readers.clear();
+		}
+		for (File merged: group) {
+			merged.delete();
+		}
+		runs.subList(0, maxFanIn).clear();
+	}
+
+	/**
+	 * Opens the given runs; the readers are closed by {@link #close()}
+	 * or when they reach the end.
+	 */
+	private Iterator<String> merge(List<File> files) throws IOException {
+		final PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>();
+		for (File run: files) {
+			RunReader reader = new RunReader(run);
+			readers.add(reader);
+			if (reader.advance()) {
+				queue.add(reader);
+			}
+		}
+		return new Iterator<String>() {
+			@Override
+			public boolean hasNext() {
+				return !queue.isEmpty();
+			}
+			@Override
+			public String next() {
+				if (queue.isEmpty()) throw new NoSuchElementException();
+				RunReader reader = queue.poll();
+				String result = reader.current;
+				try {
+					if (reader.advance()) {
+						queue.add(reader);
+					}
+				} catch (IOException ex) {
+					throw new TarqlException(ex);
+				}
+				return result;
+			}
+		};
+	}
+
+	private static Iterator<String> distinct(final Iterator<String> sorted) {
+		return new Iterator<String>() {
+			private String next = sorted.hasNext() ? sorted.next() : null;
+			@Override
+			public boolean hasNext() {
+				return next != null;
+			}
+			@Override
+			public String next() {
+				if (next == null) throw new NoSuchElementException();
+				String result = next;
+				do {
+					next = sorted.hasNext() ? sorted.next() : null;
+				} while (result.equals(next));
+				return result;
+			}
+		};
+	}
+
+	private static class RunReader implements Comparable<RunReader>, Closeable {
+		private final BufferedReader in;
+		String current = null;
+
+		RunReader(File file) throws IOException {
+			in = new BufferedReader(new InputStreamReader(
+					new FileInputStream(file), StandardCharsets.UTF_8), 65536);
+		}
+
+		boolean advance() throws IOException {
+			current = in.readLine();
+			if (current == null) {
+				in.close();
+				return false;
+			}
+			return true;
+		}
+
+		@Override
+		public int compareTo(RunReader other) {
+			return current.compareTo(other.current);
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
@@ -62,6 +62,26 @@ public abstract class InputStreamSource {
 		};
 	}
 	
+	/**
+	 * Wraps an input stream that can only be read once, such as
+	 * the body of a network request.
+	 * 
+	 * @param in The input stream
+	 * @return A source that will fail if opened a second time
+	 */
+	public static InputStreamSource fromInputStream(final InputStream in) {
+		return new InputStreamSource() {
+			boolean open = false;
+			public InputStream open() throws IOException {
+				if (open) {
+					throw new TarqlException("Cannot use streamed input in mapping requiring multiple read passes");
+				}
+				open = true;
+				return in;
+			}
+		};
+	}
+	
 	/**
 	 * Opens an input stream over the input data.
 	 * 
@@ -0,0 +1,152 @@
+package org.deri.tarql;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+
+/**
+ * The JFR event types of Tarql. Only to be used through
+ * {@link TarqlEvents}, which makes sure that this class is
+ * not loaded on JVMs without JFR.
+ * <p>
+ * The <code>begin</code> methods return <code>null</code> unless
+ * a recording has the event type enabled.
+ */
+final class JFREvents {
+
+	static boolean isAvailable() {
+		return FlightRecorder.isAvailable();
+	}
+
+	@Name("org.deri.tarql.RowBatch")
+	@Label("CSV Row Batch")
+	@Category("Tarql")
+	@Description("Parsing and processing of a batch of CSV rows")
+	static class RowBatchEvent extends Event {
+		@Label("First Row")
+		long firstRow;
+		@Label("Rows")
+		int rows;
+		@Label("Skipped Rows")
+		@Description("Rows skipped because they were empty")
+		int skipped;
+	}
+
+	@Name("org.deri.tarql.TablePass")
+	@Label("Table Pass")
+	@Category("Tarql")
+	@Description("A complete pass over the input CSV file")
+	static class PassEvent extends Event {
+		@Label("Pass")
+		@Description("Number of the pass over this input, starting at 1")
+		int pass;
+		@Label("Rows")
+		int rows;
+	}
+
+	@Name("org.deri.tarql.QueryExecution")
+	@Label("Query Execution")
+	@Category("Tarql")
+	@Description("Execution of one query of a mapping, from the first to the last triple")
+	static class QueryEvent extends Event {
+		@Label("Query")
+		@Description("Index of the query in the mapping, starting at 0")
+		int query;
+		@Label("Triples")
+		long triples;
+	}
+
+	@Name("org.deri.tarql.DedupEvictions")
+	@Label("Dedup Evictions")
+	@Category("Tarql")
+	@Description("A batch of triples evicted from the deduplication window")
+	static class DedupEvictionsEvent extends Event {
+		@Label("Evictions")
+		int evictions;
+		@Label("Window Size")
+		int windowSize;
+	}
+
+	@Name("org.deri.tarql.OutputWrite")
+	@Label("Output Write")
+	@Category("Tarql")
+	@Description("A buffer of serialized RDF written or flushed to the output")
+	@Threshold("1 ms")
+	static class WriteEvent extends Event {
+		@Label("Bytes")
+		@DataAmount
+		int bytes;
+		@Label("Flush")
+		boolean flush;
+	}
+
+	static Object beginRowBatch() {
+		return begin(new RowBatchEvent());
+	}
+
+	static void commitRowBatch(Object event, long firstRow, int rows, int skipped) {
+		RowBatchEvent e = (RowBatchEvent) event;
+		e.firstRow = firstRow;
+		e.rows = rows;
+		e.skipped = skipped;
+		e.commit();
+	}
+
+	static Object beginPass() {
+		return begin(new PassEvent());
+	}
+
+	static void commitPass(Object event, int pass, int rows) {
+		PassEvent e = (PassEvent) event;
+		e.pass = pass;
+		e.rows = rows;
+		e.commit();
+	}
+
+	static Object beginQuery() {
+		return begin(new QueryEvent());
+	}
+
+	static void commitQuery(Object event, int query, long triples) {
+		QueryEvent e = (QueryEvent) event;
+		e.query = query;
+		e.triples = triples;
+		e.commit();
+	}
+
+	static Object beginDedupEvictions() {
+		return begin(new DedupEvictionsEvent());
+	}
+
+	static void commitDedupEvictions(Object event, int evictions, int windowSize) {
+		DedupEvictionsEvent e = (DedupEvictionsEvent) event;
+		e.evictions = evictions;
+		e.windowSize = windowSize;
+		e.commit();
+	}
+
+	static Object beginWrite() {
+		return begin(new WriteEvent());
+	}
+
+	static void commitWrite(Object event, int bytes, boolean flush) {
+		WriteEvent e = (WriteEvent) event;
+		e.bytes = bytes;
+		e.flush = flush;
+		e.commit();
+	}
+
+	private static Event begin(Event event) {
+		if (!event.isEnabled()) return null;
+		event.begin();
+		return event;
+	}
+
+	private JFREvents() {}
+}
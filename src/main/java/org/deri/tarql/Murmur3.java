@@ -0,0 +1,94 @@
+package org.deri.tarql;
+
+/**
+ * The 128-bit x64 variant of Austin Appleby's MurmurHash3. Fast, well
+ * distributed, and not cryptographic. Results agree with the reference
+ * implementation and with Guava's <code>murmur3_128</code>.
+ */
+public class Murmur3 {
+	private final static long C1 = 0x87c37b91114253d5L;
+	private final static long C2 = 0x4cf5ad432745937fL;
+
+	/**
+	 * @param data The bytes to hash
+	 * @param offset Index of the first byte to hash
+	 * @param length Number of bytes to hash
+	 * @param seed The seed; 0 for the usual results
+	 * @return The hash, as two longs, first the low then the high half
+	 */
+	public static long[] hash128(byte[] data, int offset, int length, int seed) {
+		long h1 = seed & 0xffffffffL;
+		long h2 = seed & 0xffffffffL;
+		int blocks = length / 16;
+		for (int i = 0; i < blocks; i++) {
+			int p = offset + i * 16;
+			long k1 = getLong(data, p);
+			long k2 = getLong(data, p + 8);
+			k1 *= C1; k1 = Long.rotateLeft(k1, 31); k1 *= C2; h1 ^= k1;
+			h1 = Long.rotateLeft(h1, 27); h1 += h2; h1 = h1 * 5 + 0x52dce729;
+			k2 *= C2; k2 = Long.rotateLeft(k2, 33); k2 *= C1; h2 ^= k2;
+			h2 = Long.rotateLeft(h2, 31); h2 += h1; h2 = h2 * 5 + 0x38495ab5;
+		}
+		int tail = offset + blocks * 16;
+		long k1 = 0;
+		long k2 = 0;
+		switch (length & 15) {
+		case 15: k2 ^= (data[tail + 14] & 0xffL) << 48;
+		case 14: k2 ^= (data[tail + 13] & 0xffL) << 40;
+		case 13: k2 ^= (data[tail + 12] & 0xffL) << 32;
+		case 12: k2 ^= (data[tail + 11] & 0xffL) << 24;
+		case 11: k2 ^= (data[tail + 10] & 0xffL) << 16;
+		case 10: k2 ^= (data[tail + 9] & 0xffL) << 8;
+		case 9:  k2 ^= (data[tail + 8] & 0xffL);
+			k2 *= C2; k2 = Long.rotateLeft(k2, 33); k2 *= C1; h2 ^= k2;
+		case 8:  k1 ^= (data[tail + 7] & 0xffL) << 56;
+		case 7:  k1 ^= (data[tail + 6] & 0xffL) << 48;
+		case 6:  k1 ^= (data[tail + 5] & 0xffL) << 40;
+		case 5:  k1 ^= (data[tail + 4] & 0xffL) << 32;
+		case 4:  k1 ^= (data[tail + 3] & 0xffL) << 24;
+		case 3:  k1 ^= (data[tail + 2] & 0xffL) << 16;
+		case 2:  k1 ^= (data[tail + 1] & 0xffL) << 8;
+		case 1:  k1 ^= (data[tail] & 0xffL);
+			k1 *= C1; k1 = Long.rotateLeft(k1, 31); k1 *= C2; h1 ^= k1;
+		}
+		h1 ^= length;
+		h2 ^= length;
+		h1 += h2;
+		h2 += h1;
+		h1 = fmix(h1);
+		h2 = fmix(h2);
+		h1 += h2;
+		h2 += h1;
+		return new long[] {h1, h2};
+	}
+
+	/**
+	 * @return The hash as 16 bytes, in the byte order of the reference implementation
+	 */
+	public static byte[] hash128Bytes(byte[] data, int offset, int length, int seed) {
+		long[] hash = hash128(data, offset, length, seed);
+		byte[] result = new byte[16];
+		for (int i = 0; i < 8; i++) {
+			result[i] = (byte) (hash[0] >>> (8 * i));
+			result[i + 8] = (byte) (hash[1] >>> (8 * i));
+		}
+		return result;
+	}
+
+	private static long getLong(byte[] data, int p) {
+		return (data[p] & 0xffL) | (data[p + 1] & 0xffL) << 8 | (data[p + 2] & 0xffL) << 16
+				| (data[p + 3] & 0xffL) << 24 | (data[p + 4] & 0xffL) << 32 | (data[p + 5] & 0xffL) << 40
+				| (data[p + 6] & 0xffL) << 48 | (data[p + 7] & 0xffL) << 56;
+	}
+
+	private static long fmix(long k) {
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
+
+	private Murmur3() {}
+}
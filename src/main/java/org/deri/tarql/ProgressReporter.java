@@ -0,0 +1,103 @@
+package org.deri.tarql;
+
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.Timer;
+import java.util.TimerTask;
+
+
+/**
+ * Periodically prints the progress of a conversion: rows and triples
+ * per second, bytes consumed, and for inputs of known size, the
+ * percentage done and an estimate of the remaining time.
+ * <p>
+ * Runs on its own daemon thread and only reads the counters of a
+ * {@link TarqlStats}, so the conversion itself is not slowed down.
+ */
+public class ProgressReporter {
+	private final TarqlStats stats;
+	private final PrintStream out;
+	private final long intervalMillis;
+	private long totalBytes = -1;
+	private Timer timer = null;
+	private long lastTime;
+	private long lastRows = 0;
+	private long lastTriples = 0;
+
+	/**
+	 * @param stats The counters of the conversion
+	 * @param out Where to print progress, typically STDERR
+	 * @param intervalMillis Time between reports
+	 */
+	public ProgressReporter(TarqlStats stats, PrintStream out, long intervalMillis) {
+		this.stats = stats;
+		this.out = out;
+		this.intervalMillis = intervalMillis;
+	}
+
+	/**
+	 * Sets the number of bytes that the conversion will read in total,
+	 * counting each pass over an input separately. Without it, no
+	 * percentage and remaining time are reported.
+	 *
+	 * @param totalBytes Total bytes, or -1 if unknown
+	 */
+	public void setTotalBytes(long totalBytes) {
+		this.totalBytes = totalBytes;
+	}
+
+	public synchronized void start() {
+		if (timer != null) return;
+		lastTime = System.nanoTime();
+		timer = new Timer("tarql-progress", true);
+		timer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				out.println(report(System.nanoTime()));
+			}
+		}, intervalMillis, intervalMillis);
+	}
+
+	public synchronized void stop() {
+		if (timer == null) return;
+		timer.cancel();
+		timer = null;
+	}
+
+	/**
+	 * Computes a progress line. Rates are for the time since the
+	 * previous call.
+	 */
+	synchronized String report(long now) {
+		long rows = stats.getRowsParsed();
+		long triples = stats.getTriplesEmitted();
+		long bytes = stats.getBytesRead();
+		double seconds = Math.max(now - lastTime, 1) / 1e9;
+		StringBuilder result = new StringBuilder();
+		result.append(String.format(Locale.ROOT, "Progress: %,d rows (%,.0f/s), %,d triples (%,.0f/s), %s read",
+				rows, (rows - lastRows) / seconds, triples, (triples - lastTriples) / seconds, formatBytes(bytes)));
+		if (totalBytes > 0 && bytes > 0) {
+			double fraction = Math.min((double) bytes / totalBytes, 1);
+			long elapsed = stats.getElapsedMillis();
+			long remaining = (long) (elapsed / fraction) - elapsed;
+			result.append(String.format(Locale.ROOT, ", %.1f%%, ETA %s",
+					fraction * 100, formatDuration(remaining)));
+		}
+		lastTime = now;
+		lastRows = rows;
+		lastTriples = triples;
+		return result.toString();
+	}
+
+	static String formatBytes(long bytes) {
+		if (bytes < 1024) return bytes + " B";
+		if (bytes < 1024 * 1024) return String.format(Locale.ROOT, "%.1f KB", bytes / 1024.0);
+		if (bytes < 1024L * 1024 * 1024) return String.format(Locale.ROOT, "%.1f MB", bytes / (1024.0 * 1024));
+		return String.format(Locale.ROOT, "%.1f GB", bytes / (1024.0 * 1024 * 1024));
+	}
+
+	static String formatDuration(long millis) {
+		long seconds = millis / 1000;
+		return String.format(Locale.ROOT, "%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+	}
+}
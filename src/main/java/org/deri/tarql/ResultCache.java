@@ -0,0 +1,296 @@
+package org.deri.tarql;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * A directory of compressed outputs of earlier runs, keyed by a hash
+ * of everything that determines the output: the mapping, the CSV
+ * options, other settings, and the input files. A run whose key is
+ * in the cache can replay the output instead of computing it.
+ * <p>
+ * Input files are identified either by a hash of their contents, or,
+ * as a faster but less safe check, by their path, size and
+ * modification time.
+ * <p>
+ * The key covers only what is added to it: for the command line tool,
+ * the mapping's text, the options, the input files named on the
+ * command line, and the tables and indexes of tarql:lookup calls.
+ * Other files that the mapping reads itself are not covered, and a
+ * change to them does not invalidate cached output.
+ * <p>
+ * Replayed output is byte for byte the same as the cached run's,
+ * so it also has the same blank node labels.
+ * <p>
+ * When the cache grows beyond its size limit, the least recently used
+ * entries are deleted. Replaying an entry counts as a use.
+ */
+public class ResultCache {
+	private final static Logger log = LoggerFactory.getLogger(ResultCache.class);
+	private final static String suffix = ".gz";
+
+	private final File directory;
+	private final long maxBytes;
+
+	/**
+	 * @param directory The cache directory; created if it doesn't exist
+	 * @param maxBytes Size limit for all entries together
+	 * @throws IOException if the directory cannot be created
+	 */
+	public ResultCache(File directory, long maxBytes) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create cache directory: " + directory);
+		}
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Writes the cached output for a key, if there is one.
+	 *
+	 * @param key The key of the run
+	 * @param out Where to write the output
+	 * @return <code>true</code> if the output was in the cache and has been written
+	 * @throws IOException on error reading the cache or writing the output
+	 */
+	public boolean replay(Key key, OutputStream out) throws IOException {
+		File entry = getFile(key);
+		if (!entry.isFile()) return false;
+		InputStream in;
+		try {
+			in = new GZIPInputStream(new FileInputStream(entry));
+		} catch (IOException ex) {
+			// Deleted by eviction in another process, or corrupt
+			log.info("Ignoring unreadable cache entry: " + entry, ex);
+			return false;
+		}
+		try {
+			byte[] buffer = new byte[65536];
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				out.write(buffer, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+		entry.setLastModified(System.currentTimeMillis());
+		return true;
+	}
+
+	/**
+	 * Starts recording a run's output into the cache.
+	 *
+	 * @param key The key of the run
+	 * @param out Where the output goes
+	 * @return A stream that writes to <code>out</code> and to the cache;
+	 * 		the entry is only added on {@link Recording#commit()}
+	 * @throws IOException if the cache entry cannot be created
+	 */
+	public Recording record(Key key, OutputStream out) throws IOException {
+		return new Recording(key, out);
+	}
+
+	/**
+	 * Deletes least recently used entries until the cache is within its
+	 * size limit.
+	 */
+	void evict() {
+		File[] entries = directory.listFiles();
+		if (entries == null) return;
+		long total = 0;
+		for (File entry: entries) {
+			total += entry.length();
+		}
+		if (total <= maxBytes) return;
+		Arrays.sort(entries, new Comparator<File>() {
+			@Override
+			public int compare(File f1, File f2) {
+				return Long.compare(f1.lastModified(), f2.lastModified());
+			}
+		});
+		for (File entry: entries) {
+			if (total <= maxBytes) break;
+			if (!entry.getName().endsWith(suffix)) continue;
+			long length = entry.length();
+			if (entry.delete()) {
+				total -= length;
+			}
+		}
+	}
+
+	private File getFile(Key key) {
+		return new File(directory, key.getHash() + suffix);
+	}
+
+	/**
+	 * Writes through to the output and into a temporary file that
+	 * becomes the cache entry on {@link #commit()}.
+	 */
+	public class Recording extends FilterOutputStream {
+		private final Key key;
+		private final File temp;
+		private final OutputStream cached;
+		private boolean closed = false;
+
+		private Recording(Key key, OutputStream out) throws IOException {
+			super(out);
+			this.key = key;
+			temp = File.createTempFile(key.getHash(), ".tmp", directory);
+			cached = new GZIPOutputStream(new FileOutputStream(temp), 65536);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			cached.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			cached.write(b, off, len);
+		}
+
+		/**
+		 * Adds the recorded output to the cache, and evicts old entries
+		 * if needed. Doesn't close the output.
+		 *
+		 * @throws IOException if the entry cannot be written
+		 */
+		public void commit() throws IOException {
+			flush();
+			closeCached();
+			File entry = getFile(key);
+			if (!temp.renameTo(entry)) {
+				entry.delete();
+				if (!temp.renameTo(entry)) {
+					temp.delete();
+					throw new IOException("Cannot write cache entry: " + entry);
+				}
+			}
+			evict();
+		}
+
+		/**
+		 * Throws away the recorded output, for runs that failed.
+		 * Doesn't close the output.
+		 */
+		public void discard() {
+			try {
+				closeCached();
+			} catch (IOException ex) {
+				// Deleting anyway
+			}
+			temp.delete();
+		}
+
+		private void closeCached() throws IOException {
+			if (closed) return;
+			closed = true;
+			cached.close();
+		}
+	}
+
+	/**
+	 * A hash of everything that determines the output of a run.
+	 */
+	public static class Key {
+		private final MessageDigest digest;
+		private String hash = null;
+
+		public Key() {
+			try {
+				digest = MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException ex) {
+				// Can't happen, SHA-256 is always supported
+				throw new RuntimeException(ex);
+			}
+		}
+
+		/**
+		 * Adds a setting that affects the output.
+		 *
+		 * @param name The name of the setting
+		 * @param value Its value, or <code>null</code>
+		 * @return This key
+		 */
+		public Key add(String name, String value) {
+			update(name);
+			update(value == null ? "\u0000" : value);
+			return this;
+		}
+
+		/**
+		 * Adds an input file.
+		 *
+		 * @param file The file
+		 * @param fast Identify the file by path, size and modification
+		 * 		time instead of reading all of its contents
+		 * @return This key
+		 * @throws IOException if the file cannot be read
+		 */
+		public Key addFile(File file, boolean fast) throws IOException {
+			if (fast) {
+				return add("file", file.getAbsolutePath() + "\n" + file.length() + "\n" + file.lastModified());
+			}
+			update("contents");
+			InputStream in = new FileInputStream(file);
+			try {
+				byte[] buffer = new byte[65536];
+				int n;
+				long length = 0;
+				while ((n = in.read(buffer)) != -1) {
+					digest.update(buffer, 0, n);
+					length += n;
+				}
+				update(Long.toString(length));
+			} finally {
+				in.close();
+			}
+			return this;
+		}
+
+		/**
+		 * @return The hash as hex string; no more can be added afterwards
+		 */
+		public String getHash() {
+			if (hash == null) {
+				StringBuilder result = new StringBuilder();
+				for (byte b: digest.digest()) {
+					result.append(String.format("%02x", b));
+				}
+				hash = result.toString();
+			}
+			return hash;
+		}
+
+		/**
+		 * Prefixes each string with its length, so that different
+		 * sequences of strings cannot produce the same bytes.
+		 */
+		private void update(String s) {
+			if (hash != null) {
+				throw new IllegalStateException("Hash already computed");
+			}
+			byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+			digest.update((bytes.length + ":").getBytes(StandardCharsets.UTF_8));
+			digest.update(bytes);
+		}
+	}
+}
@@ -0,0 +1,173 @@
+package org.deri.tarql;
+
+/**
+ * Recognizes rows of an input that are exact duplicates of earlier
+ * rows, either of all earlier rows or within a window of the most
+ * recent ones. Rows are compared by a 128-bit {@link Murmur3} hash of
+ * their cells, or of selected key cells, so memory use doesn't depend
+ * on the width of the rows. Two different rows getting the same hash
+ * is so unlikely that it can be ignored.
+ * <p>
+ * Hashes are kept in an open-addressing table of longs, about 32 bytes
+ * per remembered row.
+ */
+class RowDeduplicator {
+	private final int windowSize;
+	private long[] table;
+	private int size = 0;
+	private final long[] window;
+	private int windowPosition = 0;
+	private byte[] buffer = new byte[256];
+
+	/**
+	 * @param windowSize Number of most recent rows to compare against, or 0 for all rows
+	 */
+	RowDeduplicator(int windowSize) {
+		if (windowSize < 0) {
+			throw new IllegalArgumentException("Window size must be >= 0: " + windowSize);
+		}
+		this.windowSize = windowSize;
+		this.table = new long[2 * tableSizeFor(windowSize == 0 ? 1024 : windowSize)];
+		this.window = windowSize == 0 ? null : new long[2 * windowSize];
+	}
+
+	/**
+	 * Checks if a row is a duplicate, and if not, remembers it.
+	 *
+	 * @param row The cells of the row
+	 * @param columns Indexes of the cells to compare, or <code>null</code> for all
+	 * @return <code>true</code> if the row is a duplicate
+	 */
+	boolean isDuplicate(String[] row, int[] columns) {
+		int length = 0;
+		if (columns == null) {
+			for (String cell: row) {
+				length = append(cell, length);
+			}
+		} else {
+			for (int column: columns) {
+				length = append(column < row.length ? row[column] : null, length);
+			}
+		}
+		long[] hash = Murmur3.hash128(buffer, 0, length, 0);
+		long h1 = hash[0];
+		// (0, 0) marks empty slots
+		long h2 = hash[0] == 0 && hash[1] == 0 ? 1 : hash[1];
+		if (contains(h1, h2)) return true;
+		if (window != null) {
+			if (size == windowSize) {
+				remove(window[2 * windowPosition], window[2 * windowPosition + 1]);
+			}
+			window[2 * windowPosition] = h1;
+			window[2 * windowPosition + 1] = h2;
+			windowPosition = (windowPosition + 1) % windowSize;
+		}
+		add(h1, h2);
+		return false;
+	}
+
+	/**
+	 * Encodes a cell into the buffer, prefixed by its length so that
+	 * cell boundaries are part of the hash, and <code>null</code>
+	 * differs from the empty string.
+	 */
+	private int append(String cell, int length) {
+		int chars = cell == null ? -1 : cell.length();
+		ensureCapacity(length + 4 + 2 * Math.max(chars, 0));
+		buffer[length++] = (byte) (chars >>> 24);
+		buffer[length++] = (byte) (chars >>> 16);
+		buffer[length++] = (byte) (chars >>> 8);
+		buffer[length++] = (byte) chars;
+		for (int i = 0; i < chars; i++) {
+			char c = cell.charAt(i);
+			buffer[length++] = (byte) (c >>> 8);
+			buffer[length++] = (byte) c;
+		}
+		return length;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (buffer.length >= capacity) return;
+		byte[] larger = new byte[Math.max(capacity, buffer.length * 2)];
+		System.arraycopy(buffer, 0, larger, 0, buffer.length);
+		buffer = larger;
+	}
+
+	private int slots() {
+		return table.length / 2;
+	}
+
+	private int slotFor(long h1) {
+		return (int) (h1 >>> 1) & (slots() - 1);
+	}
+
+	private boolean contains(long h1, long h2) {
+		for (int slot = slotFor(h1); ; slot = (slot + 1) & (slots() - 1)) {
+			long s1 = table[2 * slot];
+			long s2 = table[2 * slot + 1];
+			if (s1 == 0 && s2 == 0) return false;
+			if (s1 == h1 && s2 == h2) return true;
+		}
+	}
+
+	private void add(long h1, long h2) {
+		// Keep the table at most half full
+		if (2 * (size + 1) > slots()) {
+			rehash(slots() * 2);
+		}
+		int slot = slotFor(h1);
+		while (table[2 * slot] != 0 || table[2 * slot + 1] != 0) {
+			slot = (slot + 1) & (slots() - 1);
+		}
+		table[2 * slot] = h1;
+		table[2 * slot + 1] = h2;
+		size++;
+	}
+
+	/**
+	 * Removes by shifting later entries of the probe sequence back,
+	 * so that lookups never need to skip deleted slots.
+	 */
+	private void remove(long h1, long h2) {
+		int mask = slots() - 1;
+		int slot = slotFor(h1);
+		while (table[2 * slot] != h1 || table[2 * slot + 1] != h2) {
+			slot = (slot + 1) & mask;
+		}
+		int gap = slot;
+		for (int next = (gap + 1) & mask; ; next = (next + 1) & mask) {
+			long s1 = table[2 * next];
+			long s2 = table[2 * next + 1];
+			if (s1 == 0 && s2 == 0) break;
+			int home = slotFor(s1);
+			// Move the entry into the gap if its home isn't between gap and next
+			if (((next - home) & mask) >= ((next - gap) & mask)) {
+				table[2 * gap] = s1;
+				table[2 * gap + 1] = s2;
+				gap = next;
+			}
+		}
+		table[2 * gap] = 0;
+		table[2 * gap + 1] = 0;
+		size--;
+	}
+
+	private void rehash(int newSlots) {
+		long[] old = table;
+		table = new long[2 * newSlots];
+		size = 0;
+		for (int i = 0; i < old.length; i += 2) {
+			if (old[i] != 0 || old[i + 1] != 0) {
+				add(old[i], old[i + 1]);
+			}
+		}
+	}
+
+	private static int tableSizeFor(int entries) {
+		int result = 16;
+		while (result < 2 * entries) {
+			result *= 2;
+		}
+		return result;
+	}
+}
@@ -0,0 +1,16 @@
+package org.deri.tarql;
+
+import org.apache.jena.graph.Triple;
+
+
+/**
+ * A triple that a {@link TemplateAnalysis} has shown to be produced
+ * at most once in a run, so {@link StreamRDFDedup} doesn't need to
+ * remember it. Equal to any other triple with the same nodes.
+ */
+class RowUniqueTriple extends Triple {
+
+	RowUniqueTriple(Triple triple) {
+		super(triple.getSubject(), triple.getPredicate(), triple.getObject());
+	}
+}
@@ -1,7 +1,9 @@
 package org.deri.tarql;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
 
 import org.apache.jena.graph.Triple;
 import org.apache.jena.riot.system.StreamRDF;
@@ -11,13 +13,18 @@ import org.apache.jena.sparql.core.Quad;
  * Wraps another {@link StreamRDF} and attempts to remove duplicate
  * triples and quads. To maintain streaming, duplicates are only
  * removed within a sliding window of configurable size. Default
- * size is 10000 triples and quads.
+ * size is 10000 triples and quads. Triples known to be unique, such
+ * as those about a subject minted from <code>?ROWNUM</code>, are passed
+ * on without taking up space in the window.
  */
 public class StreamRDFDedup implements StreamRDF {
 	private final StreamRDF wrapped;
 	private final int windowSize;
 	private final HashSet<Object> tripleAndQuadCache;
 	private final LinkedList<Object> tripleAndQuadList = new LinkedList<Object>();
+	private TarqlStats stats = null;
+	private Object evictionEvent = null;
+	private int evictions = 0;
 	
 	public StreamRDFDedup(StreamRDF wrapped) {
 		this(wrapped, 10000);
@@ -30,6 +37,38 @@ public class StreamRDFDedup implements StreamRDF {
 		this.tripleAndQuadCache = new HashSet<Object>(windowSize * 3 / 2);
 	}
 	
+	/**
+	 * @param stats Where to count removed duplicates, or <code>null</code> for no counting
+	 */
+	public void setStats(TarqlStats stats) {
+		this.stats = stats;
+	}
+
+	/**
+	 * @return The triples in the window, oldest first
+	 */
+	public List<Triple> getWindow() {
+		List<Triple> result = new ArrayList<Triple>();
+		for (Object tuple: tripleAndQuadList) {
+			if (tuple instanceof Triple) {
+				result.add((Triple) tuple);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Fills the window with triples that have been passed on before,
+	 * for example in an earlier run that is being resumed.
+	 * 
+	 * @param triples Triples to remember, oldest first
+	 */
+	public void restoreWindow(List<Triple> triples) {
+		for (Triple triple: triples) {
+			seen(triple);
+		}
+	}
+
 	@Override
 	public void start() {
 		wrapped.start();
@@ -37,7 +76,7 @@ public class StreamRDFDedup implements StreamRDF {
 
 	@Override
 	public void triple(Triple triple) {
-		if (!seen(triple)) {
+		if (triple instanceof RowUniqueTriple || !seen(triple)) {
 			wrapped.triple(triple);
 		}
 	}
@@ -61,11 +100,13 @@ public class StreamRDFDedup implements StreamRDF {
 
 	@Override
 	public void finish() {
+		if (evictions > 0) commitEvictions();
 		wrapped.finish();
 	}
 	
 	private boolean seen(Object tuple) {
 		if (tripleAndQuadCache.contains(tuple)) {
+			if (stats != null) stats.dedupHit();
 			return true;
 		}
 		tripleAndQuadCache.add(tuple);
@@ -77,6 +118,20 @@ public class StreamRDFDedup implements StreamRDF {
 	}
 	
 	private void forgetOldest() {
+		if (TarqlEvents.AVAILABLE) {
+			if (evictions == 0) {
+				evictionEvent = TarqlEvents.beginDedupEvictions();
+			}
+			if (++evictions == TarqlEvents.BATCH_SIZE) {
+				commitEvictions();
+			}
+		}
 		tripleAndQuadCache.remove(tripleAndQuadList.removeFirst());
 	}
+
+	private void commitEvictions() {
+		TarqlEvents.commitDedupEvictions(evictionEvent, evictions, windowSize);
+		evictionEvent = null;
+		evictions = 0;
+	}
 }
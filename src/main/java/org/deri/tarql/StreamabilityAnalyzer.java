@@ -0,0 +1,125 @@
+package org.deri.tarql;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.jena.sparql.algebra.Op;
+import org.apache.jena.sparql.algebra.OpVisitorBase;
+import org.apache.jena.sparql.algebra.OpWalker;
+import org.apache.jena.sparql.algebra.Transformer;
+import org.apache.jena.sparql.algebra.TransformCopy;
+import org.apache.jena.sparql.algebra.op.OpDistinct;
+import org.apache.jena.sparql.algebra.op.OpGroup;
+import org.apache.jena.sparql.algebra.op.OpJoin;
+import org.apache.jena.sparql.algebra.op.OpLeftJoin;
+import org.apache.jena.sparql.algebra.op.OpMinus;
+import org.apache.jena.sparql.algebra.op.OpOrder;
+import org.apache.jena.sparql.algebra.op.OpTable;
+import org.apache.jena.sparql.algebra.op.OpTopN;
+import org.apache.jena.sparql.algebra.table.TableN;
+
+
+/**
+ * Inspects the optimized ARQ algebra of a query for operators that
+ * prevent it from streaming, that is, from processing the CSV input
+ * row by row in constant memory. ARQ evaluates these operators by
+ * holding all rows, groups or results in memory, which can exhaust
+ * the heap on large inputs.
+ * <p>
+ * If the algebra comes from a query that has been rewritten to
+ * include the {@link CSVTable}, the number of passes over the
+ * input is also reported.
+ */
+public class StreamabilityAnalyzer {
+	private final Set<String> blockers = new LinkedHashSet<String>();
+	private int passes = 0;
+
+	/**
+	 * @param op Optimized algebra expression of the query
+	 */
+	public StreamabilityAnalyzer(Op op) {
+		OpWalker.walk(op, new OpVisitorBase() {
+			@Override
+			public void visit(OpOrder opOrder) {
+				blockers.add("ORDER BY holds all results in memory");
+			}
+			@Override
+			public void visit(OpTopN opTop) {
+				blockers.add("ORDER BY with LIMIT produces nothing until the input is exhausted");
+			}
+			@Override
+			public void visit(OpGroup opGroup) {
+				blockers.add("GROUP BY or aggregate holds all groups in memory");
+			}
+			@Override
+			public void visit(OpDistinct opDistinct) {
+				blockers.add("DISTINCT holds all distinct results in memory");
+			}
+			@Override
+			public void visit(OpLeftJoin opLeftJoin) {
+				// ARQ turns OPTIONALs that can be evaluated row by row into
+				// OpConditional; the others remain as OpLeftJoin
+				blockers.add("OPTIONAL that uses variables from outside is evaluated by holding its results in memory");
+			}
+			@Override
+			public void visit(OpJoin opJoin) {
+				// Likewise, streaming joins become OpSequence
+				blockers.add("Sub-select or nested group that cannot be evaluated row by row is held in memory");
+			}
+			@Override
+			public void visit(OpMinus opMinus) {
+				blockers.add("MINUS holds its right-hand side in memory");
+			}
+			@Override
+			public void visit(OpTable opTable) {
+				if (opTable.getTable() instanceof CSVTable) {
+					passes++;
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return <code>true</code> if the query processes the input row by row in constant memory
+	 */
+	public boolean isStreaming() {
+		return blockers.isEmpty();
+	}
+
+	/**
+	 * @return Descriptions of the constructs that prevent streaming; empty if none
+	 */
+	public List<String> getBlockers() {
+		return Collections.unmodifiableList(new ArrayList<String>(blockers));
+	}
+
+	/**
+	 * @return Number of passes over the CSV input needed to evaluate the query
+	 */
+	public int getPasses() {
+		return passes;
+	}
+
+	/**
+	 * Replaces the CSV table in an algebra expression with an empty table
+	 * that has the same variables, so that the expression can be printed
+	 * without printing the entire input.
+	 *
+	 * @param op An algebra expression that may contain a {@link CSVTable}
+	 * @return The expression with any CSV table replaced
+	 */
+	public static Op hideCSVTable(Op op) {
+		return Transformer.transform(new TransformCopy() {
+			@Override
+			public Op transform(OpTable opTable) {
+				if (opTable.getTable() instanceof CSVTable) {
+					return OpTable.create(new TableN(opTable.getTable().getVars()));
+				}
+				return super.transform(opTable);
+			}
+		}, op);
+	}
+}
@@ -27,9 +27,11 @@ import org.apache.jena.vocabulary.RDF;
  * functionality in Jena/ARQ that doesn't require a Graph or Model.
  */
 public class StreamingRDFWriter {
-	private final OutputStream out;
+	private OutputStream out;
 	private final Iterator<Triple> triples;
 	private int dedupWindowSize = 10000;
+	private TarqlStats stats = null;
+	private Checkpointer checkpointer = null;
 	
 	public StreamingRDFWriter(OutputStream out, Iterator<Triple> triples) {
 		this.out = out;
@@ -40,10 +42,37 @@ public class StreamingRDFWriter {
 		this.dedupWindowSize = newSize;
 	}
 	
+	/**
+	 * Counts removed duplicates and bytes written.
+	 * 
+	 * @param stats Where to count, or <code>null</code> for no counting
+	 */
+	public void setStats(TarqlStats stats) {
+		this.stats = stats;
+	}
+
+	/**
+	 * Lets a checkpointer flush the output and save the deduplication
+	 * window. Only supported for N-Triples, as the Turtle writer
+	 * keeps state that cannot be restored.
+	 * 
+	 * @param checkpointer The checkpointer, or <code>null</code> for no checkpoints
+	 */
+	public void setCheckpointer(Checkpointer checkpointer) {
+		this.checkpointer = checkpointer;
+	}
+
 	public void writeNTriples() {
-		StreamRDF writer = new WriterStreamRDFPlain(new IndentedWriter(out));
+		wrapOutput();
+		IndentedWriter indentedWriter = new IndentedWriter(out);
+		StreamRDF writer = new WriterStreamRDFPlain(indentedWriter);
+		StreamRDFDedup dedup = null;
 		if (dedupWindowSize > 0) {
-			writer = new StreamRDFDedup(writer, dedupWindowSize);
+			dedup = createDedup(writer);
+			writer = dedup;
+		}
+		if (checkpointer != null) {
+			checkpointer.attach(indentedWriter, dedup);
 		}
 		writer.start();
 		StreamOps.sendTriplesToStream(triples, writer);
@@ -51,6 +80,10 @@ public class StreamingRDFWriter {
 	}
 
 	public void writeTurtle(String baseIRI, PrefixMapping prefixes, boolean writeBase) {
+		if (checkpointer != null) {
+			throw new IllegalStateException("Checkpoints are only supported for N-Triples");
+		}
+		wrapOutput();
 		// Auto-register RDF prefix so that rdf:type is displayed well
 		// All other prefixes come from the query and should be as author intended
 		prefixes = ensureRDFPrefix(prefixes);
@@ -65,7 +98,7 @@ public class StreamingRDFWriter {
 		
 		StreamRDF writer = new WriterStreamRDFBlocks(out);
 		if (dedupWindowSize > 0) {
-			writer = new StreamRDFDedup(writer, dedupWindowSize);
+			writer = createDedup(writer);
 		}
 		writer.start();
 		writer.base(baseIRI);
@@ -76,6 +109,19 @@ public class StreamingRDFWriter {
 		writer.finish();
 	}
 	
+	private void wrapOutput() {
+		if (stats != null) {
+			out = stats.countBytesWritten(out);
+		}
+		out = TarqlEvents.recordWrites(out);
+	}
+
+	private StreamRDFDedup createDedup(StreamRDF writer) {
+		StreamRDFDedup result = new StreamRDFDedup(writer, dedupWindowSize);
+		result.setStats(stats);
+		return result;
+	}
+
 	private PrefixMapping ensureRDFPrefix(PrefixMapping prefixes) {
 		// Some prefix already registered for the RDF namespace -- good enough
 		if (prefixes.getNsURIPrefix(RDF.getURI()) != null) return prefixes;
@@ -0,0 +1,149 @@
+package org.deri.tarql;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.query.ReadWrite;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFWrapper;
+import org.apache.jena.sparql.core.DatasetGraph;
+import org.apache.jena.sparql.core.Quad;
+import org.apache.jena.tdb2.DatabaseMgr;
+import org.apache.jena.tdb2.loader.DataLoader;
+import org.apache.jena.tdb2.loader.LoaderFactory;
+import org.apache.jena.tdb2.loader.base.LoaderOps;
+
+
+/**
+ * Loads the results of CONSTRUCT queries directly into a local TDB2
+ * dataset, without writing and re-parsing N-Triples.
+ * <p>
+ * If the dataset is empty when the loader is created, the TDB2 bulk
+ * loader is used, which builds the indexes much faster but only makes
+ * the data visible at the end. Otherwise, triples are added in write
+ * transactions of a fixed number of triples each, so that readers see
+ * progress and a failure only loses the current transaction.
+ * <p>
+ * Usage: {@link #load(TarqlQueryExecution, Node)} each input, then
+ * {@link #finish()}, or {@link #abort(Exception)} on error.
+ */
+public class TDB2Loader {
+	private final DatasetGraph dataset;
+	private final int transactionSize;
+	private final DataLoader bulkLoader;
+	private long triples = 0;
+
+	/**
+	 * @param directory The TDB2 database directory; created if it doesn't exist
+	 * @param transactionSize Number of triples per write transaction, unless bulk loading
+	 */
+	public TDB2Loader(String directory, int transactionSize) {
+		this(DatabaseMgr.connectDatasetGraph(directory), transactionSize);
+	}
+
+	/**
+	 * @param dataset A TDB2 dataset
+	 * @param transactionSize Number of triples per write transaction, unless bulk loading
+	 */
+	public TDB2Loader(DatasetGraph dataset, int transactionSize) {
+		if (transactionSize < 1) {
+			throw new IllegalArgumentException("Transaction size must be >= 1: " + transactionSize);
+		}
+		this.dataset = dataset;
+		this.transactionSize = transactionSize;
+		if (isEmpty(dataset)) {
+			bulkLoader = LoaderFactory.createLoader(dataset, LoaderOps.nullOutput());
+			bulkLoader.startBulk();
+		} else {
+			bulkLoader = null;
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the TDB2 bulk loader is used
+	 */
+	public boolean isBulk() {
+		return bulkLoader != null;
+	}
+
+	/**
+	 * Executes the CONSTRUCT queries of a mapping over an input and
+	 * adds the resulting triples to the dataset.
+	 *
+	 * @param ex The execution to load
+	 * @param graph Name of the graph to load into, or <code>null</code> for the default graph
+	 */
+	public void load(TarqlQueryExecution ex, final Node graph) {
+		if (bulkLoader != null) {
+			StreamRDF sink = graph == null
+					? bulkLoader.stream()
+					: LoaderOps.toNamedGraph(bulkLoader.stream(), graph);
+			// The bulk loader is started and finished once for all inputs
+			ex.exec(new StreamRDFWrapper(sink) {
+				@Override
+				public void start() {}
+				@Override
+				public void triple(Triple triple) {
+					super.triple(triple);
+					triples++;
+				}
+				@Override
+				public void finish() {}
+			});
+			return;
+		}
+		ex.exec(new TarqlQueryExecution.BatchSink() {
+			@Override
+			public void triples(Triple[] batch, int count) {
+				Node g = graph == null ? Quad.defaultGraphIRI : graph;
+				dataset.begin(ReadWrite.WRITE);
+				try {
+					for (int i = 0; i < count; i++) {
+						dataset.add(g, batch[i].getSubject(), batch[i].getPredicate(), batch[i].getObject());
+					}
+					dataset.commit();
+				} finally {
+					dataset.end();
+				}
+				triples += count;
+			}
+		}, transactionSize);
+	}
+
+	/**
+	 * @return Number of triples passed to the dataset, including duplicates
+	 */
+	public long getTriples() {
+		return triples;
+	}
+
+	/**
+	 * Completes loading. With the bulk loader, this is when the
+	 * indexes are built and the data becomes visible.
+	 */
+	public void finish() {
+		if (bulkLoader != null) {
+			bulkLoader.finishBulk();
+		}
+	}
+
+	/**
+	 * Stops loading after an error. Transactions that have been
+	 * committed, if not bulk loading, remain in the dataset.
+	 *
+	 * @param cause The error
+	 */
+	public void abort(Exception cause) {
+		if (bulkLoader != null) {
+			bulkLoader.finishException(cause);
+		}
+	}
+
+	private static boolean isEmpty(DatasetGraph dataset) {
+		dataset.begin(ReadWrite.READ);
+		try {
+			return dataset.isEmpty();
+		} finally {
+			dataset.end();
+		}
+	}
+}
@@ -0,0 +1,267 @@
+package org.deri.tarql;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Supports converting only the rows that have been appended to CSV
+ * files since the previous run, for log-like files that only grow.
+ * <p>
+ * A checkpoint file records, for each input file, the byte offset up
+ * to which it has been converted, the last <code>?ROWNUM</code>, and
+ * checksums of the header line and of the bytes just before the offset.
+ * The next run reads the header line plus the bytes after the offset,
+ * and continues the row numbering. If the file is shorter than the
+ * offset or a checksum doesn't match, the file has been rewritten,
+ * and it is converted in full.
+ * <p>
+ * Each run only reads up to the last line break in the file, so that
+ * a row that is still being written is left for the next run. For the
+ * same reason, this only works with encodings where a line break is a
+ * single <code>\n</code> byte, such as UTF-8 and the ISO-8859 family.
+ * <p>
+ * Usage: {@link #open(File, boolean)} each input, convert it with
+ * {@link #getFirstRowNumber(File)} as first row number, then
+ * {@link #update(File, int)} and finally {@link #save()}.
+ */
+public class TailCheckpoint {
+	private final static Logger log = LoggerFactory.getLogger(TailCheckpoint.class);
+	private final static int tailLength = 4096;
+
+	private final File checkpointFile;
+	private final Properties checkpoint = new Properties();
+	private final Map<String, Run> runs = new HashMap<String, Run>();
+
+	/**
+	 * @param checkpointFile File to load the checkpoint from, if it exists, and to save it to
+	 * @throws IOException if the checkpoint file exists but cannot be read
+	 */
+	public TailCheckpoint(File checkpointFile) throws IOException {
+		this.checkpointFile = checkpointFile;
+		if (checkpointFile.exists()) {
+			InputStream in = new FileInputStream(checkpointFile);
+			try {
+				checkpoint.load(in);
+			} finally {
+				in.close();
+			}
+		}
+	}
+
+	/**
+	 * Prepares to convert the new rows of an input file.
+	 *
+	 * @param input The input file
+	 * @param hasHeader Whether the first line contains column names
+	 * @return A source over the header line, if any, and the new complete lines of the file
+	 * @throws IOException if the file cannot be read
+	 */
+	public InputStreamSource open(File input, boolean hasHeader) throws IOException {
+		String key = key(input);
+		Run run = new Run();
+		run.file = input;
+		RandomAccessFile file = new RandomAccessFile(input, "r");
+		try {
+			run.end = findEndOfLastLine(file);
+			run.headerEnd = hasHeader ? findEndOfFirstLine(file, run.end) : 0;
+			run.start = run.headerEnd;
+			run.firstRowNumber = 1;
+			if (checkpoint.containsKey(key + ".offset")) {
+				long offset = Long.parseLong(checkpoint.getProperty(key + ".offset"));
+				if (isUnchanged(file, key, offset, run)) {
+					run.start = offset;
+					run.firstRowNumber = Integer.parseInt(checkpoint.getProperty(key + ".rownum")) + 1;
+				} else {
+					log.info("File has been rewritten, converting all of it: " + input);
+				}
+			}
+			run.header = read(file, 0, run.headerEnd);
+		} finally {
+			file.close();
+		}
+		runs.put(key, run);
+		final Run r = run;
+		return new InputStreamSource() {
+			@Override
+			public InputStream open() throws IOException {
+				final FileInputStream in = new FileInputStream(r.file);
+				long skipped = 0;
+				while (skipped < r.start) {
+					long n = in.skip(r.start - skipped);
+					if (n <= 0) throw new IOException("Cannot skip to offset " + r.start + " in " + r.file);
+					skipped += n;
+				}
+				InputStream tail = new FilterInputStream(in) {
+					private long remaining = r.end - r.start;
+					@Override
+					public int read() throws IOException {
+						if (remaining <= 0) return -1;
+						int b = super.read();
+						if (b != -1) remaining--;
+						return b;
+					}
+					@Override
+					public int read(byte[] b, int off, int len) throws IOException {
+						if (remaining <= 0) return -1;
+						int n = super.read(b, off, (int) Math.min(len, remaining));
+						if (n > 0) remaining -= n;
+						return n;
+					}
+				};
+				return new SequenceInputStream(new ByteArrayInputStream(r.header), tail);
+			}
+		};
+	}
+
+	/**
+	 * @param input An input file passed to {@link #open(File, boolean)}
+	 * @return The <code>?ROWNUM</code> for the first new row
+	 */
+	public int getFirstRowNumber(File input) {
+		return getRun(input).firstRowNumber;
+	}
+
+	/**
+	 * Records that the new rows of an input file have been converted.
+	 *
+	 * @param input An input file passed to {@link #open(File, boolean)}
+	 * @param rows Number of rows that were converted
+	 * @throws IOException if the file cannot be read
+	 */
+	public void update(File input, int rows) throws IOException {
+		String key = key(input);
+		Run run = getRun(input);
+		RandomAccessFile file = new RandomAccessFile(input, "r");
+		try {
+			checkpoint.setProperty(key + ".offset", Long.toString(run.end));
+			checkpoint.setProperty(key + ".rownum", Integer.toString(run.firstRowNumber + rows - 1));
+			checkpoint.setProperty(key + ".header-length", Long.toString(run.headerEnd));
+			checkpoint.setProperty(key + ".header-crc", Long.toString(crc(run.header)));
+			long tailStart = Math.max(run.headerEnd, run.end - tailLength);
+			checkpoint.setProperty(key + ".tail-length", Long.toString(run.end - tailStart));
+			checkpoint.setProperty(key + ".tail-crc", Long.toString(crc(read(file, tailStart, run.end))));
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Writes the checkpoint file. The file is replaced atomically where
+	 * the file system supports it, so a crash leaves the old checkpoint.
+	 *
+	 * @throws IOException if the checkpoint file cannot be written
+	 */
+	public void save() throws IOException {
+		File temp = new File(checkpointFile.getPath() + ".tmp");
+		OutputStream out = new FileOutputStream(temp);
+		try {
+			checkpoint.store(out, "Tarql tail checkpoint");
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(checkpointFile)) {
+			checkpointFile.delete();
+			if (!temp.renameTo(checkpointFile)) {
+				throw new IOException("Cannot write checkpoint: " + checkpointFile);
+			}
+		}
+	}
+
+	private boolean isUnchanged(RandomAccessFile file, String key, long offset, Run run) throws IOException {
+		if (offset > run.end || offset < run.headerEnd) return false;
+		long headerLength = Long.parseLong(checkpoint.getProperty(key + ".header-length", "0"));
+		if (headerLength != run.headerEnd) return false;
+		if (crc(read(file, 0, headerLength)) != Long.parseLong(checkpoint.getProperty(key + ".header-crc", "0"))) {
+			return false;
+		}
+		long tail = Long.parseLong(checkpoint.getProperty(key + ".tail-length", "0"));
+		if (tail > offset) return false;
+		return crc(read(file, offset - tail, offset)) == Long.parseLong(checkpoint.getProperty(key + ".tail-crc", "0"));
+	}
+
+	private Run getRun(File input) {
+		Run result = runs.get(key(input));
+		if (result == null) {
+			throw new IllegalStateException("Not opened: " + input);
+		}
+		return result;
+	}
+
+	private static String key(File input) {
+		return input.getAbsolutePath();
+	}
+
+	/**
+	 * Returns the offset just after the last line break, or 0 if none.
+	 */
+	private static long findEndOfLastLine(RandomAccessFile file) throws IOException {
+		long pos = file.length();
+		byte[] buffer = new byte[8192];
+		while (pos > 0) {
+			int n = (int) Math.min(buffer.length, pos);
+			pos -= n;
+			file.seek(pos);
+			file.readFully(buffer, 0, n);
+			for (int i = n - 1; i >= 0; i--) {
+				if (buffer[i] == '\n') return pos + i + 1;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Returns the offset just after the first line break, but not beyond end.
+	 */
+	private static long findEndOfFirstLine(RandomAccessFile file, long end) throws IOException {
+		long pos = 0;
+		byte[] buffer = new byte[8192];
+		file.seek(0);
+		while (pos < end) {
+			int n = (int) Math.min(buffer.length, end - pos);
+			file.readFully(buffer, 0, n);
+			for (int i = 0; i < n; i++) {
+				if (buffer[i] == '\n') return pos + i + 1;
+			}
+			pos += n;
+		}
+		return end;
+	}
+
+	private static byte[] read(RandomAccessFile file, long from, long to) throws IOException {
+		byte[] result = new byte[(int) (to - from)];
+		file.seek(from);
+		file.readFully(result);
+		return result;
+	}
+
+	private static long crc(byte[] bytes) {
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		return crc.getValue();
+	}
+
+	private static class Run {
+		File file;
+		long headerEnd;
+		long start;
+		long end;
+		int firstRowNumber;
+		byte[] header;
+	}
+}
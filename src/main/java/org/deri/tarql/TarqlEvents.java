@@ -0,0 +1,92 @@
+package org.deri.tarql;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+/**
+ * Emits Java Flight Recorder events for the stages of a conversion:
+ * batches of parsed rows, passes over a table, query executions,
+ * batches of dedup window evictions, and writes to the output.
+ * <p>
+ * JFR is optional. On JVMs without it, {@link #AVAILABLE} is false
+ * and nothing happens; the JFR event classes in {@link JFREvents}
+ * are never loaded. Event objects are handled as plain
+ * {@link Object}s outside of this class for the same reason.
+ * Per-row and per-triple activity is aggregated into batches of
+ * {@link #BATCH_SIZE}, so recording stays cheap. Setting the system
+ * property <code>tarql.jfr</code> to <code>false</code> disables all events.
+ */
+final class TarqlEvents {
+	static final boolean AVAILABLE = detect();
+	static final int BATCH_SIZE = 10000;
+
+	private static boolean detect() {
+		if ("false".equals(System.getProperty("tarql.jfr"))) return false;
+		try {
+			Class.forName("jdk.jfr.Event");
+			return JFREvents.isAvailable();
+		} catch (ClassNotFoundException ex) {
+			return false;
+		} catch (LinkageError ex) {
+			return false;
+		}
+	}
+
+	static Object beginRowBatch() {
+		return AVAILABLE ? JFREvents.beginRowBatch() : null;
+	}
+
+	static void commitRowBatch(Object event, long firstRow, int rows, int skipped) {
+		if (event != null) JFREvents.commitRowBatch(event, firstRow, rows, skipped);
+	}
+
+	static Object beginPass() {
+		return AVAILABLE ? JFREvents.beginPass() : null;
+	}
+
+	static void commitPass(Object event, int pass, int rows) {
+		if (event != null) JFREvents.commitPass(event, pass, rows);
+	}
+
+	static Object beginQuery() {
+		return AVAILABLE ? JFREvents.beginQuery() : null;
+	}
+
+	static void commitQuery(Object event, int query, long triples) {
+		if (event != null) JFREvents.commitQuery(event, query, triples);
+	}
+
+	static Object beginDedupEvictions() {
+		return AVAILABLE ? JFREvents.beginDedupEvictions() : null;
+	}
+
+	static void commitDedupEvictions(Object event, int evictions, int windowSize) {
+		if (event != null) JFREvents.commitDedupEvictions(event, evictions, windowSize);
+	}
+
+	/**
+	 * Wraps an output stream so that each write and flush on it, which
+	 * Jena's writers only do once their buffer is full, becomes an event.
+	 */
+	static OutputStream recordWrites(OutputStream out) {
+		if (!AVAILABLE) return out;
+		return new FilterOutputStream(out) {
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				Object event = JFREvents.beginWrite();
+				out.write(b, off, len);
+				if (event != null) JFREvents.commitWrite(event, len, false);
+			}
+			@Override
+			public void flush() throws IOException {
+				Object event = JFREvents.beginWrite();
+				out.flush();
+				if (event != null) JFREvents.commitWrite(event, 0, true);
+			}
+		};
+	}
+
+	private TarqlEvents() {}
+}
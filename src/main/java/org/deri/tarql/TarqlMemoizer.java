@@ -0,0 +1,366 @@
+package org.deri.tarql;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.graph.Node;
+import org.apache.jena.query.Query;
+import org.apache.jena.sparql.algebra.walker.Walker;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.expr.E_BNode;
+import org.apache.jena.sparql.expr.E_Function;
+import org.apache.jena.sparql.expr.E_IRI;
+import org.apache.jena.sparql.expr.E_Now;
+import org.apache.jena.sparql.expr.E_Random;
+import org.apache.jena.sparql.expr.E_Regex;
+import org.apache.jena.sparql.expr.E_StrConcat;
+import org.apache.jena.sparql.expr.E_StrEncodeForURI;
+import org.apache.jena.sparql.expr.E_StrReplace;
+import org.apache.jena.sparql.expr.E_StrUUID;
+import org.apache.jena.sparql.expr.E_UUID;
+import org.apache.jena.sparql.expr.Expr;
+import org.apache.jena.sparql.expr.ExprAggregator;
+import org.apache.jena.sparql.expr.ExprDigest;
+import org.apache.jena.sparql.expr.ExprEvalException;
+import org.apache.jena.sparql.expr.ExprFunction;
+import org.apache.jena.sparql.expr.ExprFunction0;
+import org.apache.jena.sparql.expr.ExprFunction1;
+import org.apache.jena.sparql.expr.ExprFunction2;
+import org.apache.jena.sparql.expr.ExprFunction3;
+import org.apache.jena.sparql.expr.ExprFunctionN;
+import org.apache.jena.sparql.expr.ExprFunctionOp;
+import org.apache.jena.sparql.expr.ExprList;
+import org.apache.jena.sparql.expr.ExprVar;
+import org.apache.jena.sparql.expr.ExprVars;
+import org.apache.jena.sparql.expr.ExprVisitorBase;
+import org.apache.jena.sparql.expr.NodeValue;
+import org.apache.jena.sparql.function.FunctionEnv;
+import org.apache.jena.sparql.syntax.Element;
+import org.apache.jena.sparql.syntax.ElementBind;
+import org.apache.jena.sparql.syntax.ElementFilter;
+import org.apache.jena.sparql.syntax.syntaxtransform.ElementTransformCopyBase;
+import org.apache.jena.sparql.syntax.syntaxtransform.ElementTransformer;
+
+
+/**
+ * Caches the results of expensive expressions in BINDs and FILTERs,
+ * such as <code>IRI(CONCAT(...))</code>, <code>REPLACE</code> or
+ * <code>SHA1</code>, for inputs whose columns repeat the same few
+ * values, so that each distinct combination of values is computed
+ * only once.
+ * <p>
+ * The largest deterministic subexpressions that contain an expensive
+ * function call are memoized, keyed on the values of the variables
+ * they use. Errors are cached too. Expressions that use
+ * <code>?ROWNUM</code>, or functions that give a different result
+ * on each call, such as <code>RAND()</code>, <code>BNODE()</code>
+ * or extension functions other than tarql's own and XSD casts, are
+ * left alone. If an expression turns out to hit the cache only rarely,
+ * it is no longer memoized, to save the cost of maintaining the cache.
+ * <p>
+ * All memoized expressions share one cache, which holds at most a
+ * given number of results and evicts the least recently used.
+ * A mapping is prepared with {@link #instrument(TarqlQuery)} before
+ * it is executed for the first time, in the same way as for
+ * {@link TarqlProfiler}. The cache is only used by the thread
+ * running the queries.
+ */
+public class TarqlMemoizer {
+	/** Number of calls after which to check if an expression is worth memoizing */
+	private final static int PROBATION_CALLS = 10000;
+	/** Lowest share of cache hits, in percent, to keep memoizing after probation */
+	private final static int MIN_HIT_PERCENT = 10;
+	private final static Object NOT_CACHED = new Object();
+
+	private final Map<Key, Object> cache;
+	private final List<MemoizedExpr> expressions = new ArrayList<MemoizedExpr>();
+	private TarqlStats stats = null;
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	/**
+	 * @param maxEntries Maximum number of results to keep
+	 */
+	public TarqlMemoizer(final int maxEntries) {
+		if (maxEntries < 1) {
+			throw new IllegalArgumentException("Cache size must be >= 1: " + maxEntries);
+		}
+		this.cache = new LinkedHashMap<Key, Object>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, Object> eldest) {
+				if (size() <= maxEntries) return false;
+				evictions++;
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Counts cache hits and misses in the given statistics.
+	 */
+	public void setStats(TarqlStats stats) {
+		this.stats = stats;
+	}
+
+	/**
+	 * Sets up memoization for all queries of a mapping, by wrapping
+	 * expensive parts of their BIND and FILTER expressions.
+	 * Modifies the queries in place.
+	 *
+	 * @param tq The mapping
+	 */
+	public void instrument(TarqlQuery tq) {
+		for (Query query: tq.getQueries()) {
+			Element pattern = ElementTransformer.transform(query.getQueryPattern(), new ElementTransformCopyBase() {
+				@Override
+				public Element transform(ElementBind el, Var v, Expr expr) {
+					Expr memoized = memoize(expr);
+					return memoized == expr ? el : new ElementBind(v, memoized);
+				}
+				@Override
+				public Element transform(ElementFilter el, Expr expr) {
+					Expr memoized = memoize(expr);
+					return memoized == expr ? el : new ElementFilter(memoized);
+				}
+			});
+			query.setQueryPattern(pattern);
+		}
+	}
+
+	/**
+	 * @return Number of memoized expressions
+	 */
+	public int getExpressionCount() {
+		return expressions.size();
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+
+	public long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * @return Number of results in the cache
+	 */
+	public int size() {
+		return cache.size();
+	}
+
+	/**
+	 * Wraps the largest memoizable subexpressions of an expression.
+	 *
+	 * @return The expression itself if nothing was wrapped
+	 */
+	Expr memoize(Expr expr) {
+		if (isMemoizable(expr)) {
+			MemoizedExpr result = new MemoizedExpr(expr, this);
+			expressions.add(result);
+			return result;
+		}
+		if (!(expr instanceof ExprFunction) || expr instanceof ExprFunction0
+				|| expr instanceof ExprFunctionOp) {
+			return expr;
+		}
+		List<Expr> args = ((ExprFunction) expr).getArgs();
+		ExprList memoizedArgs = new ExprList();
+		boolean changed = false;
+		for (Expr arg: args) {
+			Expr memoized = memoize(arg);
+			changed |= memoized != arg;
+			memoizedArgs.add(memoized);
+		}
+		if (!changed) return expr;
+		if (expr instanceof ExprFunction1) {
+			return ((ExprFunction1) expr).copy(memoizedArgs.get(0));
+		}
+		if (expr instanceof ExprFunction2) {
+			return ((ExprFunction2) expr).copy(memoizedArgs.get(0), memoizedArgs.get(1));
+		}
+		if (expr instanceof ExprFunction3) {
+			return ((ExprFunction3) expr).copy(memoizedArgs.get(0), memoizedArgs.get(1), memoizedArgs.get(2));
+		}
+		if (expr instanceof ExprFunctionN) {
+			return ((ExprFunctionN) expr).copy(memoizedArgs);
+		}
+		return expr;
+	}
+
+	private static boolean isMemoizable(Expr expr) {
+		if (!(expr instanceof ExprFunction) || expr instanceof ExprFunctionOp) return false;
+		final boolean[] deterministic = {true};
+		final boolean[] expensive = {false};
+		Walker.walk(expr, new ExprVisitorBase() {
+			@Override
+			public void visit(ExprVar nv) {
+				if (nv.asVar().equals(TarqlQuery.ROWNUM)) {
+					// Different on every row; caching would only cost
+					deterministic[0] = false;
+				}
+			}
+			@Override
+			public void visit(ExprFunction0 func) {
+				if (func instanceof E_Random || func instanceof E_UUID
+						|| func instanceof E_StrUUID || func instanceof E_Now) {
+					deterministic[0] = false;
+				}
+			}
+			@Override
+			public void visit(ExprFunction1 func) {
+				if (func instanceof E_IRI || func instanceof E_StrEncodeForURI || func instanceof ExprDigest) {
+					expensive[0] = true;
+				}
+			}
+			@Override
+			public void visit(ExprFunctionN func) {
+				if (func instanceof E_BNode) {
+					deterministic[0] = false;
+				} else if (func instanceof E_Function) {
+					String iri = ((E_Function) func).getFunctionIRI();
+					if (iri.startsWith(tarql.NS) || iri.startsWith(XSDDatatype.XSD + "#")) {
+						expensive[0] = true;
+					} else {
+						// Extension functions might not give the same result each time
+						deterministic[0] = false;
+					}
+				} else if (func instanceof E_StrConcat || func instanceof E_StrReplace
+						|| func instanceof E_Regex) {
+					expensive[0] = true;
+				}
+			}
+			@Override
+			public void visit(ExprFunctionOp funcOp) {
+				deterministic[0] = false;
+			}
+			@Override
+			public void visit(ExprAggregator eAgg) {
+				deterministic[0] = false;
+			}
+		});
+		return deterministic[0] && expensive[0] && !ExprVars.getVarsMentioned(expr).isEmpty();
+	}
+
+	private Object get(Key key) {
+		Object result = cache.get(key);
+		if (result == null) {
+			misses++;
+			if (stats != null) stats.memoMiss();
+			return NOT_CACHED;
+		}
+		hits++;
+		if (stats != null) stats.memoHit();
+		return result;
+	}
+
+	private void put(Key key, Object value) {
+		cache.put(key, value);
+	}
+
+	/**
+	 * An expression and the values of its variables.
+	 */
+	private static class Key {
+		private final MemoizedExpr expr;
+		private final Node[] values;
+		private final int hashCode;
+
+		Key(MemoizedExpr expr, Node[] values) {
+			this.expr = expr;
+			this.values = values;
+			this.hashCode = expr.id * 31 + Arrays.hashCode(values);
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Key)) return false;
+			Key key = (Key) other;
+			return expr == key.expr && Arrays.equals(values, key.values);
+		}
+	}
+
+	/**
+	 * Wraps an expression to look up its result in the cache before
+	 * evaluating it. Behaves like the wrapped expression otherwise.
+	 */
+	static class MemoizedExpr extends ExprFunction1 {
+		private final TarqlMemoizer memoizer;
+		private final Var[] vars;
+		private final int id = System.identityHashCode(this);
+		private long calls = 0;
+		private long hits = 0;
+		private boolean bypass = false;
+
+		MemoizedExpr(Expr expr, TarqlMemoizer memoizer) {
+			super(expr, "tarql:memoized");
+			this.memoizer = memoizer;
+			this.vars = ExprVars.getVarsMentioned(expr).toArray(new Var[0]);
+		}
+
+		@Override
+		protected NodeValue evalSpecial(Binding binding, FunctionEnv env) {
+			if (bypass) {
+				return expr.eval(binding, env);
+			}
+			if (++calls == PROBATION_CALLS && hits * 100 < calls * MIN_HIT_PERCENT) {
+				bypass = true;
+			}
+			Node[] values = new Node[vars.length];
+			for (int i = 0; i < vars.length; i++) {
+				values[i] = binding.get(vars[i]);
+			}
+			Key key = new Key(this, values);
+			Object cached = memoizer.get(key);
+			if (cached != NOT_CACHED) {
+				hits++;
+				if (cached instanceof ExprEvalException) {
+					throw (ExprEvalException) cached;
+				}
+				return (NodeValue) cached;
+			}
+			try {
+				NodeValue result = expr.eval(binding, env);
+				memoizer.put(key, result);
+				return result;
+			} catch (ExprEvalException ex) {
+				memoizer.put(key, ex);
+				throw ex;
+			}
+		}
+
+		/**
+		 * @return <code>true</code> if memoization was turned off for
+		 * 		too few cache hits
+		 */
+		boolean isBypassed() {
+			return bypass;
+		}
+
+		@Override
+		public NodeValue eval(NodeValue v) {
+			return v;
+		}
+
+		@Override
+		public Expr copy(Expr expr) {
+			return new MemoizedExpr(expr, memoizer);
+		}
+	}
+}
@@ -0,0 +1,254 @@
+package org.deri.tarql;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.jena.atlas.io.IndentedLineBuffer;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.query.Query;
+import org.apache.jena.sparql.algebra.Algebra;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.expr.Expr;
+import org.apache.jena.sparql.expr.ExprFunction1;
+import org.apache.jena.sparql.expr.NodeValue;
+import org.apache.jena.sparql.function.FunctionEnv;
+import org.apache.jena.sparql.serializer.SerializationContext;
+import org.apache.jena.sparql.syntax.Element;
+import org.apache.jena.sparql.syntax.ElementBind;
+import org.apache.jena.sparql.syntax.ElementFilter;
+import org.apache.jena.sparql.syntax.syntaxtransform.ElementTransformCopyBase;
+import org.apache.jena.sparql.syntax.syntaxtransform.ElementTransformer;
+import org.apache.jena.sparql.util.ExprUtils;
+import org.apache.jena.sparql.util.FmtUtils;
+
+
+/**
+ * Collects cumulative time and call counts per query, per BIND and
+ * FILTER expression, and per CONSTRUCT template triple of a mapping.
+ * Also lists constructs in each query that force ARQ to hold
+ * intermediate results in memory instead of streaming them.
+ * <p>
+ * To keep overhead low, only one in every <em>sampleRate</em>
+ * calls is timed, and total times are extrapolated from those.
+ * Call counts are exact.
+ * <p>
+ * A mapping is prepared for profiling with {@link #instrument(TarqlQuery)},
+ * which replaces its BIND and FILTER expressions with timed wrappers.
+ * This must happen before it is executed for the first time.
+ */
+public class TarqlProfiler {
+	private final int sampleRate;
+	private final List<QueryProfile> queries = new ArrayList<QueryProfile>();
+
+	/**
+	 * @param sampleRate Time one in this many calls; 1 to time all calls
+	 */
+	public TarqlProfiler(int sampleRate) {
+		if (sampleRate < 1) {
+			throw new IllegalArgumentException("Sample rate must be >= 1: " + sampleRate);
+		}
+		this.sampleRate = sampleRate;
+	}
+
+	/**
+	 * Sets up profiling for all queries of a mapping, by wrapping
+	 * their BIND and FILTER expressions. Modifies the queries in place.
+	 *
+	 * @param tq The mapping
+	 */
+	public void instrument(TarqlQuery tq) {
+		queries.clear();
+		for (Query query: tq.getQueries()) {
+			final QueryProfile profile = new QueryProfile(queries.size() + 1, query);
+			queries.add(profile);
+			final SerializationContext context = new SerializationContext(query);
+			Element pattern = ElementTransformer.transform(query.getQueryPattern(), new ElementTransformCopyBase() {
+				@Override
+				public Element transform(ElementBind el, Var v, Expr expr) {
+					String label = "BIND (" + format(expr, context) + " AS " + v + ")";
+					return new ElementBind(v, new ProfiledExpr(expr, profile.addExpression(label)));
+				}
+				@Override
+				public Element transform(ElementFilter el, Expr expr) {
+					String label = "FILTER (" + format(expr, context) + ")";
+					return new ElementFilter(new ProfiledExpr(expr, profile.addExpression(label)));
+				}
+			});
+			query.setQueryPattern(pattern);
+		}
+	}
+
+	/**
+	 * @param index Index of the query in the mapping, starting at 0
+	 * @return The profile of the query
+	 */
+	QueryProfile getProfile(int index) {
+		return queries.get(index);
+	}
+
+	/**
+	 * @return A human-readable report of the collected data
+	 */
+	public String report() {
+		StringBuilder result = new StringBuilder();
+		result.append("Profile");
+		if (sampleRate > 1) {
+			result.append(" (times extrapolated from 1 in ").append(sampleRate).append(" calls)");
+		}
+		result.append(":\n");
+		for (QueryProfile query: queries) {
+			result.append(String.format(Locale.ROOT, "Query %d: %,d ms%n",
+					query.number, (query.evaluation.getNanos() + query.getTemplateNanos()) / 1000000));
+			append(result, query.evaluation);
+			for (Counter expression: query.expressions) {
+				append(result, expression);
+			}
+			for (Counter triple: query.templateTriples) {
+				append(result, triple);
+			}
+			for (String blocker: query.blockers) {
+				result.append("  Does not stream: ").append(blocker).append('\n');
+			}
+		}
+		if (queries.size() > 1) {
+			result.append("Each query makes its own pass over the input, " + queries.size() + " passes in total\n");
+		}
+		return result.toString();
+	}
+
+	private void append(StringBuilder result, Counter counter) {
+		result.append(String.format(Locale.ROOT, "  %,12d calls %,10d ms  %s%n",
+				counter.getCalls(), counter.getNanos() / 1000000, counter.label));
+	}
+
+	private static String format(Expr expr, SerializationContext context) {
+		IndentedLineBuffer out = new IndentedLineBuffer();
+		ExprUtils.fmtSPARQL(out, expr, context);
+		return out.asString();
+	}
+
+	/**
+	 * Call count and sampled time of one part of a query.
+	 * Only updated by the thread running the query.
+	 * <p>
+	 * The first call is always timed, but not used for extrapolation,
+	 * as it can take far longer than the rest, e.g., if all results
+	 * are computed up front for ORDER BY, or because of class loading.
+	 */
+	class Counter {
+		final String label;
+		private long calls = 0;
+		private long firstNanos = 0;
+		private long samples = 0;
+		private long sampledNanos = 0;
+
+		Counter(String label) {
+			this.label = label;
+		}
+
+		/**
+		 * Counts a call and tells whether it is to be timed. If so, its
+		 * time must be reported to {@link #add(long)}.
+		 */
+		boolean sample() {
+			return calls++ % sampleRate == 0;
+		}
+
+		void add(long nanos) {
+			if (calls == 1) {
+				firstNanos = nanos;
+				return;
+			}
+			samples++;
+			sampledNanos += nanos;
+		}
+
+		long getCalls() {
+			return calls;
+		}
+
+		/**
+		 * @return Total time of all calls, extrapolated from the timed ones
+		 */
+		long getNanos() {
+			if (samples == 0) return firstNanos;
+			return firstNanos + sampledNanos * (calls - 1) / samples;
+		}
+	}
+
+	/**
+	 * Counters for one query of the mapping.
+	 */
+	class QueryProfile {
+		final int number;
+		/** Time spent producing bindings, including expression evaluation */
+		final Counter evaluation = new Counter("Parsing and evaluation, per binding");
+		final List<Counter> expressions = new ArrayList<Counter>();
+		final List<Counter> templateTriples = new ArrayList<Counter>();
+		final List<String> blockers = new ArrayList<String>();
+
+		QueryProfile(int number, Query query) {
+			this.number = number;
+			if (query.isConstructType()) {
+				for (Triple triple: query.getConstructTemplate().getTriples()) {
+					templateTriples.add(new Counter("Template " +
+							FmtUtils.stringForTriple(triple, query.getPrefixMapping())));
+				}
+			}
+			blockers.addAll(new StreamabilityAnalyzer(
+					Algebra.optimize(Algebra.compile(query))).getBlockers());
+		}
+
+		Counter addExpression(String label) {
+			Counter result = new Counter(label);
+			expressions.add(result);
+			return result;
+		}
+
+		long getTemplateNanos() {
+			long result = 0;
+			for (Counter counter: templateTriples) {
+				result += counter.getNanos();
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Wraps an expression to count and time its evaluation.
+	 * Behaves like the wrapped expression otherwise.
+	 */
+	static class ProfiledExpr extends ExprFunction1 {
+		private final Counter counter;
+
+		ProfiledExpr(Expr expr, Counter counter) {
+			super(expr, "tarql:profiled");
+			this.counter = counter;
+		}
+
+		@Override
+		protected NodeValue evalSpecial(Binding binding, FunctionEnv env) {
+			if (!counter.sample()) {
+				return expr.eval(binding, env);
+			}
+			long start = System.nanoTime();
+			try {
+				return expr.eval(binding, env);
+			} finally {
+				counter.add(System.nanoTime() - start);
+			}
+		}
+
+		@Override
+		public NodeValue eval(NodeValue v) {
+			return v;
+		}
+
+		@Override
+		public Expr copy(Expr expr) {
+			return new ProfiledExpr(expr, counter);
+		}
+	}
+}
@@ -7,8 +7,13 @@ import org.apache.jena.query.Query;
 import org.apache.jena.sparql.core.Prologue;
 import org.apache.jena.sparql.core.Var;
 import org.apache.jena.sparql.function.FunctionRegistry;
+import org.apache.jena.sparql.pfunction.PropertyFunctionRegistry;
 import org.deri.tarql.functions.ExpandPrefixFunction;
 import org.deri.tarql.functions.ExpandPrefixedNameFunction;
+import org.deri.tarql.functions.HashFunction;
+import org.deri.tarql.functions.LookupFunction;
+import org.deri.tarql.functions.SplitPropertyFunction;
+import org.deri.tarql.functions.UUID5Function;
 
 
 /**
@@ -26,6 +31,13 @@ public class TarqlQuery {
 		registered = true;
 		FunctionRegistry.get().put(ExpandPrefixFunction.IRI, ExpandPrefixFunction.class);
 		FunctionRegistry.get().put(ExpandPrefixedNameFunction.IRI, ExpandPrefixedNameFunction.class);
+		FunctionRegistry.get().put(LookupFunction.IRI, LookupFunction.class);
+		FunctionRegistry.get().put(HashFunction.XXHASH64_IRI, HashFunction.class);
+		FunctionRegistry.get().put(HashFunction.XXHASH64_URL_IRI, HashFunction.class);
+		FunctionRegistry.get().put(HashFunction.MURMUR3_IRI, HashFunction.class);
+		FunctionRegistry.get().put(HashFunction.MURMUR3_URL_IRI, HashFunction.class);
+		FunctionRegistry.get().put(UUID5Function.IRI, UUID5Function.class);
+		PropertyFunctionRegistry.get().put(SplitPropertyFunction.IRI, SplitPropertyFunction.class);
 	}
 	private static boolean registered = false;
 	
@@ -63,6 +75,23 @@ public class TarqlQuery {
 		return !queries.isEmpty() && queries.get(0).isConstructType();
 	}
 	
+	/**
+	 * Returns a copy of this mapping whose queries can be modified
+	 * without affecting this instance. Executions modify their queries
+	 * in place, so a parsed mapping that is executed repeatedly must
+	 * be copied for each execution.
+	 * 
+	 * @return A new instance with copies of the queries
+	 */
+	public TarqlQuery copy() {
+		TarqlQuery result = new TarqlQuery();
+		result.setPrologue(prologue.copy());
+		for (Query q: queries) {
+			result.addQuery(q.cloneQuery());
+		}
+		return result;
+	}
+	
 	public void makeTest() {
 		for (Query q: queries) {
 			if (q.isConstructType()) {
@@ -1,8 +1,14 @@
 package org.deri.tarql;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
 
+import org.apache.jena.graph.Node;
 import org.apache.jena.graph.Triple;
 import org.apache.jena.query.Query;
 import org.apache.jena.query.QueryExecution;
@@ -10,25 +16,50 @@ import org.apache.jena.query.QueryExecutionFactory;
 import org.apache.jena.query.ResultSet;
 import org.apache.jena.rdf.model.Model;
 import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.shared.PrefixMapping;
 import org.apache.jena.shared.impl.PrefixMappingImpl;
+import org.apache.jena.sparql.algebra.Algebra;
+import org.apache.jena.sparql.algebra.Op;
 import org.apache.jena.sparql.algebra.Table;
 import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.expr.E_Function;
+import org.apache.jena.sparql.expr.Expr;
+import org.apache.jena.sparql.expr.ExprFunctionN;
+import org.apache.jena.sparql.expr.ExprList;
+import org.apache.jena.sparql.expr.ExprTransformCopy;
+import org.apache.jena.sparql.function.Function;
+import org.apache.jena.sparql.function.FunctionFactory;
+import org.apache.jena.sparql.function.FunctionRegistry;
 import org.apache.jena.sparql.syntax.Element;
 import org.apache.jena.sparql.syntax.ElementData;
 import org.apache.jena.sparql.syntax.ElementGroup;
+import org.apache.jena.sparql.syntax.syntaxtransform.ElementTransformCopyBase;
+import org.apache.jena.sparql.syntax.syntaxtransform.ElementTransformer;
 import org.apache.jena.util.iterator.ExtendedIterator;
 import org.apache.jena.util.iterator.NullIterator;
 import org.deri.tarql.functions.ExpandPrefixFunction;
+import org.deri.tarql.functions.SpecializableFunction;
 
 
 /**
  * The execution of a {@link TarqlQuery} over a particular CSV file.
- * Results can be delivered written into a {@link Model} or as an
- * iterator over triples.
+ * Results can be delivered written into a {@link Model}, as an
+ * iterator over triples, or pushed into a {@link StreamRDF}.
  */
 public class TarqlQueryExecution {
 	private final CSVTable table;
 	private final TarqlQuery tq;
+	private TarqlStats stats = null;
+	private TarqlProfiler profiler = null;
+	private Checkpointer checkpointer = null;
+	private int inputIndex = 0;
+	private int resumeQuery = 0;
+	private long resumeRow = 0;
+	private Collection<String> lowCardinalityColumns = Collections.emptySet();
+	private Collection<String> keyColumns = null;
+	private PrefixMapping prefixes = null;
 
 	/**
 	 * Sets up a new query execution.
@@ -58,6 +89,80 @@ public class TarqlQueryExecution {
 		tq = query;
 	}
 
+	/**
+	 * Collects statistics during execution of the CONSTRUCT queries
+	 * through {@link #execTriples()}. Must be called before execution.
+	 * 
+	 * @param stats Where to count, or <code>null</code> for no counting
+	 */
+	public void setStats(TarqlStats stats) {
+		this.stats = stats;
+		table.setStats(stats);
+	}
+
+	/**
+	 * Profiles execution of the CONSTRUCT queries through
+	 * {@link #execTriples()}. The mapping must have been prepared
+	 * with {@link TarqlProfiler#instrument(TarqlQuery)}.
+	 * 
+	 * @param profiler Where to collect the profile, or <code>null</code> for no profiling
+	 */
+	public void setProfiler(TarqlProfiler profiler) {
+		this.profiler = profiler;
+	}
+
+	/**
+	 * Reports progress of the CONSTRUCT queries through {@link #execTriples()}
+	 * to a checkpointer. Must be called before execution.
+	 * 
+	 * @param checkpointer Where to report, or <code>null</code> for no checkpoints
+	 * @param inputIndex Index of this execution's input among all inputs of the conversion
+	 */
+	public void setCheckpointer(Checkpointer checkpointer, int inputIndex) {
+		this.checkpointer = checkpointer;
+		this.inputIndex = inputIndex;
+	}
+
+	/**
+	 * Makes {@link #execTriples()} skip output that an earlier run has
+	 * already produced: all queries before the given one, and in that
+	 * query, all rows up to and including the given <code>?ROWNUM</code>.
+	 * 
+	 * @param query Index of the query to resume in
+	 * @param rownum Last row that is done, 0 if none, or -1 if the entire query is done
+	 */
+	public void setResumePoint(int query, long rownum) {
+		this.resumeQuery = query;
+		this.resumeRow = rownum;
+	}
+
+	/**
+	 * Names columns that have few distinct values. Template triples of
+	 * the CONSTRUCT queries that use only these columns, and no blank
+	 * nodes, are produced only once for each distinct combination of
+	 * values, instead of once per row. Template triples that are the
+	 * same in every row are always produced just once.
+	 * Ignored when reporting to a {@link Checkpointer}.
+	 * 
+	 * @param columns Names of low-cardinality columns, as used in the queries
+	 */
+	public void setLowCardinalityColumns(Collection<String> columns) {
+		this.lowCardinalityColumns = columns;
+	}
+
+	/**
+	 * Names columns whose values are unique, so that triples about
+	 * subjects minted from them can't be duplicates, and are marked
+	 * to bypass {@link StreamRDFDedup}. <code>ROWNUM</code> can be
+	 * included if there is only one input.
+	 * Marking has a small cost, so only set this when deduplicating.
+	 * 
+	 * @param columns Names of key columns, or <code>null</code> for no marking
+	 */
+	public void setKeyColumns(Collection<String> columns) {
+		this.keyColumns = columns;
+	}
+
 	/**
 	 * Modifies a query so that it operates onto a table. This is achieved
 	 * by appending the table as a VALUES block to the end of the main
@@ -67,12 +172,7 @@ public class TarqlQueryExecution {
 	 * @param table Data table to be added into the query
 	 */
 	private void modifyQuery(Query query, final Table table) {
-		ElementData tableElement = new ElementData() {
-			@Override
-			public Table getTable() {
-				return table;
-			}
-		};
+		ElementData tableElement = new CSVTableElement(table);
 		for (Var var: table.getVars()) {
 			// Skip ?ROWNUM for "SELECT *" queries -- see further below
 			if (query.isSelectType() && query.isQueryResultStar() 
@@ -83,10 +183,13 @@ public class TarqlQueryExecution {
 		groupElement.addElement(tableElement);
 		if (query.getQueryPattern() instanceof ElementGroup) {
 			for (Element element: ((ElementGroup) query.getQueryPattern()).getElements()) {
-				groupElement.addElement(element);
+				// The query may have been modified for an earlier execution
+				// over another input; replace that input's table
+				if (element instanceof CSVTableElement) continue;
+				groupElement.addElement(specializeFunctions(element));
 			}
 		} else {
-			groupElement.addElement(query.getQueryPattern());
+			groupElement.addElement(specializeFunctions(query.getQueryPattern()));
 		}
 		query.setQueryPattern(groupElement);
 		
@@ -110,12 +213,60 @@ public class TarqlQueryExecution {
 		}*/
 	}
 
+	/**
+	 * A VALUES block whose data is the table, marking where
+	 * {@link #modifyQuery(Query, Table)} added the input to a query.
+	 */
+	static class CSVTableElement extends ElementData {
+		private final Table table;
+		CSVTableElement(Table table) {
+			this.table = table;
+		}
+		@Override
+		public Table getTable() {
+			return table;
+		}
+	}
+
+	/**
+	 * Replaces calls of {@link SpecializableFunction}s in BIND and FILTER
+	 * expressions with what they specialize to for the mapping's prefixes,
+	 * e.g., <code>tarql:expandPrefix('ex')</code> with the namespace.
+	 */
+	private Element specializeFunctions(Element element) {
+		return ElementTransformer.transform(element, new ElementTransformCopyBase(), new ExprTransformCopy() {
+			@Override
+			public Expr transform(ExprFunctionN func, ExprList args) {
+				if (func instanceof E_Function) {
+					String iri = ((E_Function) func).getFunctionIRI();
+					FunctionFactory factory = FunctionRegistry.get().get(iri);
+					Function function = factory == null ? null : factory.create(iri);
+					if (function instanceof SpecializableFunction) {
+						Expr result = ((SpecializableFunction) function).specialize(args, getPrefixMapping());
+						if (result != null) return result;
+					}
+				}
+				return super.transform(func, args);
+			}
+		});
+	}
+
+	/**
+	 * The prefixes of the mapping, plus <code>tarql:</code>, as seen by
+	 * {@link ExpandPrefixFunction} and other tarql: functions.
+	 */
+	private PrefixMapping getPrefixMapping() {
+		if (prefixes == null) {
+			prefixes = new PrefixMappingImpl();
+			prefixes.setNsPrefixes(tq.getPrologue().getPrefixMapping());
+			prefixes.setNsPrefix("tarql", tarql.NS);
+		}
+		return prefixes;
+	}
+
 	private QueryExecution createQueryExecution(Query query, Model model) {
 		QueryExecution result = QueryExecutionFactory.create(query, model);
-		PrefixMappingImpl prefixes = new PrefixMappingImpl();
-		prefixes.setNsPrefixes(tq.getPrologue().getPrefixMapping());
-		prefixes.setNsPrefix("tarql", tarql.NS);
-		result.getContext().set(ExpandPrefixFunction.PREFIX_MAPPING, prefixes);
+		result.getContext().set(ExpandPrefixFunction.PREFIX_MAPPING, getPrefixMapping());
 		return result;
 	}
 	
@@ -133,14 +284,264 @@ public class TarqlQueryExecution {
 	public Iterator<Triple> execTriples() throws IOException {
 		Model model = ModelFactory.createDefaultModel();
 		ExtendedIterator<Triple> result = new NullIterator<Triple>();
+		for (int i = 0; i < tq.getQueries().size(); i++) {
+			Iterator<Triple> triples = execConstructTriples(i, model);
+			if (triples != null) {
+				result = result.andThen(triples);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Pushes the results of the CONSTRUCT queries into a sink: the base
+	 * IRI and prefixes of the mapping, then the triples of each query
+	 * as they are produced. Calls {@link StreamRDF#start()} and
+	 * {@link StreamRDF#finish()}. Each query is set up only when the
+	 * previous one is done.
+	 * 
+	 * @param sink Where to send the results
+	 */
+	public void exec(StreamRDF sink) {
+		sink.start();
+		if (tq.getPrologue().getBaseURI() != null) {
+			sink.base(tq.getPrologue().getBaseURI());
+		}
+		for (Entry<String, String> prefix: tq.getPrologue().getPrefixMapping().getNsPrefixMap().entrySet()) {
+			// As in exec(Model), the tarql: namespace is for functions, not data
+			if (tarql.NS.equals(prefix.getValue())) continue;
+			sink.prefix(prefix.getKey(), prefix.getValue());
+		}
+		Model model = ModelFactory.createDefaultModel();
+		for (int i = 0; i < tq.getQueries().size(); i++) {
+			Iterator<Triple> triples = execConstructTriples(i, model);
+			if (triples == null) continue;
+			while (triples.hasNext()) {
+				sink.triple(triples.next());
+			}
+		}
+		sink.finish();
+	}
+
+	/**
+	 * Receives the results of {@link TarqlQueryExecution#exec(BatchSink, int)}
+	 * in batches.
+	 */
+	public interface BatchSink {
+
+		/**
+		 * Receives a batch of triples. The array is reused for the next
+		 * batch, so it must not be kept after the call returns.
+		 * 
+		 * @param batch Holds the triples, starting at index 0
+		 * @param count Number of triples in the batch; at least 1
+		 */
+		void triples(Triple[] batch, int count);
+	}
+
+	/**
+	 * Pushes the triples of the CONSTRUCT queries into a sink in batches,
+	 * for consumers that have a fixed cost per call, such as bulk loaders.
+	 * All batches are full except for the last one.
+	 * 
+	 * @param sink Where to send the triples
+	 * @param batchSize Maximum number of triples per batch
+	 */
+	public void exec(BatchSink sink, int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("Batch size must be >= 1: " + batchSize);
+		}
+		Triple[] batch = new Triple[batchSize];
+		int count = 0;
+		Model model = ModelFactory.createDefaultModel();
+		for (int i = 0; i < tq.getQueries().size(); i++) {
+			Iterator<Triple> triples = execConstructTriples(i, model);
+			if (triples == null) continue;
+			while (triples.hasNext()) {
+				batch[count++] = triples.next();
+				if (count == batchSize) {
+					sink.triples(batch, count);
+					count = 0;
+				}
+			}
+		}
+		if (count > 0) {
+			sink.triples(batch, count);
+		}
+	}
+
+	/**
+	 * Sets up one CONSTRUCT query of the mapping for execution.
+	 * 
+	 * @param index Index of the query in the mapping
+	 * @param model The model to execute against; empty
+	 * @return The triples produced by the query, or <code>null</code> if
+	 * 		the query is skipped because an earlier run has completed it
+	 */
+	private Iterator<Triple> execConstructTriples(int index, Model model) {
+		if (index < resumeQuery || (index == resumeQuery && resumeRow < 0)) return null;
+		Query q = tq.getQueries().get(index);
+		modifyQuery(q, table);
+		if (index == resumeQuery && resumeRow > 0) {
+			if (!canResumeWithinQuery(q)) {
+				throw new TarqlException("Cannot resume within query " + (index + 1) + 
+						" as it doesn't produce results in input order");
+			}
+			table.setResumeAfter(resumeRow);
+		}
+		// The values seen so far aren't in the checkpoint, so a resumed
+		// run couldn't tell which once-per-value triples are done
+		TemplateAnalysis analysis = new TemplateAnalysis(q, checkpointer == null
+				? lowCardinalityColumns : Collections.<String>emptySet());
+		if (keyColumns != null) {
+			analysis.findRowUnique(tq.getQueries(), keyColumns);
+		}
+		QueryExecution ex = createQueryExecution(q, model);
+		Iterator<Triple> triples = stats == null && profiler == null && checkpointer == null && !analysis.hasAny()
+				? ex.execConstructTriples()
+				: execConstructTriplesInstrumented(q, ex, index, analysis);
+		if (TarqlEvents.AVAILABLE) {
+			triples = recordQueryEvent(triples, index);
+		}
+		return triples;
+	}
+
+	/**
+	 * Times a query from its first to its last triple as a JFR event.
+	 * Queries are chained lazily, so it doesn't start when execution
+	 * is set up.
+	 */
+	private Iterator<Triple> recordQueryEvent(final Iterator<Triple> triples, final int index) {
+		return new Iterator<Triple>() {
+			private boolean started = false;
+			private boolean done = false;
+			private Object event = null;
+			private long count = 0;
+			@Override
+			public boolean hasNext() {
+				if (!started) {
+					event = TarqlEvents.beginQuery();
+					started = true;
+				}
+				if (triples.hasNext()) return true;
+				if (!done) {
+					TarqlEvents.commitQuery(event, index, count);
+					done = true;
+				}
+				return false;
+			}
+			@Override
+			public Triple next() {
+				count++;
+				return triples.next();
+			}
+		};
+	}
+
+	/**
+	 * Does the same as ARQ's {@link QueryExecution#execConstructTriples()},
+	 * but counts and profiles along the way, and skips repeated triples.
+	 */
+	private Iterator<Triple> execConstructTriplesInstrumented(Query query, QueryExecution ex, int index,
+			TemplateAnalysis analysis) {
+		ConstructIterator result = new ConstructIterator(
+				query.getConstructTemplate().getTriples(), execBindings(query, ex));
+		if (analysis.hasAny()) {
+			// When resuming within the query, the earlier run has produced the invariant triples
+			result.setAnalysis(analysis, index == resumeQuery && resumeRow > 0);
+		}
+		if (stats != null) {
+			result.setStats(stats, index);
+		}
+		if (profiler != null) {
+			result.setProfile(profiler.getProfile(index));
+		}
+		if (checkpointer != null) {
+			result.setListener(createCheckpointListener(index, canResumeWithinQuery(query)));
+		}
+		return result;
+	}
+
+	private ConstructIterator.Listener createCheckpointListener(final int query, final boolean rowByRow) {
+		return new ConstructIterator.Listener() {
+			// A row can give several bindings, e.g., with UNION, so a row is
+			// only done once the first binding of a later row comes up
+			private long lastRow = 0;
+			@Override
+			public void bindingStarting(Binding binding) {
+				if (!rowByRow) return;
+				Node rownum = binding.get(TarqlQuery.ROWNUM);
+				if (rownum == null || !rownum.isLiteral() 
+						|| !(rownum.getLiteralValue() instanceof Number)) return;
+				long row = ((Number) rownum.getLiteralValue()).longValue();
+				if (row == lastRow) return;
+				if (lastRow > 0) {
+					checkpointer.rowDone(inputIndex, query, lastRow);
+				}
+				lastRow = row;
+			}
+			@Override
+			public void finished() {
+				checkpointer.queryDone(inputIndex, query);
+			}
+		};
+	}
+
+	/**
+	 * Skipping the rows that are done before they reach the query only
+	 * gives the same results for the rest if the query processes rows
+	 * one by one, in order, in a single pass, and doesn't count them.
+	 * Must be called after {@link #modifyQuery(Query, Table)}.
+	 */
+	private boolean canResumeWithinQuery(Query query) {
+		if (query.hasLimit() || query.hasOffset()) return false;
+		StreamabilityAnalyzer analyzer = new StreamabilityAnalyzer(
+				Algebra.optimize(Algebra.compile(query)));
+		return analyzer.isStreaming() && analyzer.getPasses() == 1;
+	}
+
+	/**
+	 * Executes a CONSTRUCT query as SELECT * to get at its bindings.
+	 * ARQ does the same internally before instantiating the template.
+	 */
+	private Iterator<Binding> execBindings(Query query, QueryExecution ex) {
+		final ResultSet rs;
+		query.setQuerySelectType();
+		query.setQueryResultStar(true);
+		try {
+			rs = ex.execSelect();
+		} finally {
+			query.setQueryConstructType();
+		}
+		return new Iterator<Binding>() {
+			@Override
+			public boolean hasNext() {
+				return rs.hasNext();
+			}
+			@Override
+			public Binding next() {
+				return rs.nextBinding();
+			}
+		};
+	}
+	
+	/**
+	 * Rewrites the queries to operate on the CSV table, as for execution,
+	 * and returns their algebra expressions as optimized by ARQ, without
+	 * executing them. This only reads the header of the input. For SELECT
+	 * and ASK, only the first query would be executed.
+	 * 
+	 * @return Optimized algebra of each query
+	 */
+	public List<Op> getAlgebra() {
+		List<Op> result = new ArrayList<Op>();
 		for (Query q: tq.getQueries()) {
 			modifyQuery(q, table);
-			QueryExecution ex = createQueryExecution(q, model);
-			result = result.andThen(ex.execConstructTriples());
+			result.add(Algebra.optimize(Algebra.compile(q)));
 		}
 		return result;
 	}
-	
+
 	public ResultSet execSelect() {
 		//TODO check only first query. right?
 		Query q = getFirstQuery();
@@ -149,6 +550,16 @@ public class TarqlQueryExecution {
 		return ex.execSelect();
 	}
 
+	/**
+	 * Returns the number of data rows in the input. This is free after
+	 * execution has read all of the input, and needs another pass otherwise.
+	 * 
+	 * @return Number of rows, not counting the header and empty rows
+	 */
+	public int getRowCount() {
+		return table.size();
+	}
+
 	public Query getFirstQuery() {
 		return tq.getQueries().get(0);
 	}
@@ -0,0 +1,280 @@
+package org.deri.tarql;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.jena.query.QueryParseException;
+import org.apache.jena.query.ResultSetFormatter;
+import org.apache.jena.shared.NotFoundException;
+import org.apache.jena.util.FileManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+
+/**
+ * A long-running HTTP server that executes Tarql mappings, to avoid
+ * paying JVM startup, initialization and JIT warm-up for each of
+ * many small conversions. Parsed mappings are cached by a hash of
+ * their text and base IRI.
+ * <p>
+ * The server listens on the loopback interface only. Jobs are
+ * submitted to <code>/convert</code> with these query parameters:
+ * <ul>
+ * <li><code>mapping</code>: Filename or URL of the mapping (required)</li>
+ * <li><code>input</code>: Filename or URL of the CSV file, possibly with
+ *     options in the fragment; if absent, the mapping's FROM clause or
+ *     else the request body is the input</li>
+ * <li><code>options</code>: CSV options in URL fragment syntax, e.g.,
+ *     <code>header=absent;delimiter=tab</code></li>
+ * <li><code>base</code>: Base IRI for the mapping</li>
+ * <li><code>ntriples</code>: If <code>true</code>, write N-Triples instead of Turtle</li>
+ * <li><code>dedup</code>: Window size in which to remove duplicate triples</li>
+ * </ul>
+ * Results are streamed back as they are produced. CONSTRUCT results
+ * are RDF, SELECT and ASK results are CSV.
+ */
+public class TarqlServer {
+	private final static Logger log = LoggerFactory.getLogger(TarqlServer.class);
+	private final static int mappingCacheSize = 100;
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	@SuppressWarnings("serial")
+	private final Map<String, TarqlQuery> mappingCache = new LinkedHashMap<String, TarqlQuery>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Entry<String, TarqlQuery> eldest) {
+			return size() > mappingCacheSize;
+		}
+	};
+
+	/**
+	 * @param port The port to listen on, or 0 for any free port
+	 * @throws IOException if the server socket cannot be opened
+	 */
+	public TarqlServer(int port) throws IOException {
+		TarqlQuery.registerFunctions();
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/convert", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					handleConvert(exchange);
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		server.setExecutor(executor);
+	}
+
+	public void start() {
+		server.start();
+		log.info("Listening on port " + getPort());
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdown();
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * Returns a parsed copy of a mapping, parsing it only if no
+	 * mapping with the same text and base IRI has been seen before.
+	 *
+	 * @param text The text of the mapping
+	 * @param baseIRI The base IRI of the mapping
+	 * @return A fresh copy of the parsed mapping
+	 */
+	public TarqlQuery getMapping(String text, String baseIRI) {
+		String key = hash(baseIRI + "\n" + text);
+		TarqlQuery result;
+		synchronized (mappingCache) {
+			result = mappingCache.get(key);
+		}
+		if (result == null) {
+			result = new TarqlParser(new StringReader(text), baseIRI).getResult();
+			synchronized (mappingCache) {
+				mappingCache.put(key, result);
+			}
+		}
+		synchronized (result) {
+			return result.copy();
+		}
+	}
+
+	private void handleConvert(HttpExchange exchange) throws IOException {
+		Map<String, String> params = parseParams(exchange.getRequestURI().getRawQuery());
+		String mapping = params.get("mapping");
+		if (mapping == null) {
+			sendError(exchange, 400, "Missing parameter: mapping");
+			return;
+		}
+		// Check all parameters now; errors can't be reported once the response has started
+		boolean ntriples = "true".equals(params.get("ntriples"));
+		Integer dedupWindowSize = null;
+		if (params.containsKey("dedup")) {
+			try {
+				dedupWindowSize = Integer.parseInt(params.get("dedup"));
+			} catch (NumberFormatException e) {
+				dedupWindowSize = -1;
+			}
+			if (dedupWindowSize < 0) {
+				sendError(exchange, 400, "Value of dedup must be integer >= 0");
+				return;
+			}
+		}
+		boolean headersSent = false;
+		TarqlQueryExecution ex = null;
+		try {
+			String baseIRI = params.containsKey("base") ? params.get("base") : FileManager.get().mapURI(mapping);
+			TarqlQuery tq = getMapping(readMapping(mapping), baseIRI);
+			CSVOptions options = params.containsKey("options")
+					? new URLOptionsParser("#" + params.get("options")).getOptions()
+					: new CSVOptions();
+			if (params.containsKey("input")) {
+				URLOptionsParser parseResult = new URLOptionsParser(params.get("input"));
+				ex = TarqlQueryExecutionFactory.create(tq,
+						InputStreamSource.fromFilenameOrIRI(parseResult.getRemainingURL()),
+						parseResult.getOptions(options));
+			} else if (!tq.getQueries().get(0).getGraphURIs().isEmpty()) {
+				ex = TarqlQueryExecutionFactory.create(tq, options);
+			} else {
+				ex = TarqlQueryExecutionFactory.create(tq,
+						InputStreamSource.fromInputStream(exchange.getRequestBody()), options);
+			}
+			if (ex.getFirstQuery().isConstructType()) {
+				exchange.getResponseHeaders().set("Content-Type",
+						ntriples ? "application/n-triples" : "text/turtle; charset=utf-8");
+				exchange.sendResponseHeaders(200, 0);
+				headersSent = true;
+				OutputStream out = exchange.getResponseBody();
+				if (dedupWindowSize == null || dedupWindowSize != 0) {
+					ex.setKeyColumns(Collections.singleton(TarqlQuery.ROWNUM.getName()));
+				}
+				StreamingRDFWriter writer = new StreamingRDFWriter(out, ex.execTriples());
+				if (dedupWindowSize != null) {
+					writer.setDedupWindowSize(dedupWindowSize);
+				}
+				if (ntriples) {
+					writer.writeNTriples();
+				} else {
+					writer.writeTurtle(tq.getPrologue().getBaseURI(),
+							tq.getPrologue().getPrefixMapping(), false);
+				}
+				out.flush();
+			} else if (ex.getFirstQuery().isSelectType() || ex.getFirstQuery().isAskType()) {
+				exchange.getResponseHeaders().set("Content-Type", "text/csv; charset=utf-8");
+				exchange.sendResponseHeaders(200, 0);
+				headersSent = true;
+				ResultSetFormatter.outputAsCSV(exchange.getResponseBody(), ex.execSelect());
+			} else {
+				sendError(exchange, 400, "Only query forms CONSTRUCT, SELECT and ASK are supported");
+			}
+		} catch (NotFoundException e) {
+			handleError(exchange, headersSent, 404, "Not found: " + e.getMessage(), e);
+		} catch (QueryParseException e) {
+			handleError(exchange, headersSent, 400, "Error parsing SPARQL query: " + e.getMessage(), e);
+		} catch (NumberFormatException e) {
+			handleError(exchange, headersSent, 400, "Bad number: " + e.getMessage(), e);
+		} catch (TarqlException e) {
+			handleError(exchange, headersSent, 400, e.getMessage(), e);
+		} catch (RuntimeException e) {
+			handleError(exchange, headersSent, 500, e.getMessage(), e);
+		} finally {
+			if (ex != null) {
+				ex.close();
+			}
+		}
+	}
+
+	private void handleError(HttpExchange exchange, boolean headersSent,
+			int status, String message, Exception cause) throws IOException {
+		log.info(message, cause);
+		if (headersSent) {
+			// Too late to report an error status; the client will
+			// see a truncated response.
+			return;
+		}
+		sendError(exchange, status, message);
+	}
+
+	private void sendError(HttpExchange exchange, int status, String message) throws IOException {
+		byte[] body = (message + "\n").getBytes("utf-8");
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(status, body.length);
+		exchange.getResponseBody().write(body);
+	}
+
+	private static String readMapping(String filenameOrURL) throws IOException {
+		InputStream in = FileManager.get().open(filenameOrURL);
+		if (in == null) throw new NotFoundException(filenameOrURL);
+		try {
+			ByteArrayOutputStream result = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				result.write(buffer, 0, n);
+			}
+			return result.toString("utf-8");
+		} finally {
+			in.close();
+		}
+	}
+
+	private static Map<String, String> parseParams(String rawQuery) throws UnsupportedEncodingException {
+		Map<String, String> result = new HashMap<String, String>();
+		if (rawQuery == null) return result;
+		for (String param: rawQuery.split("&")) {
+			int eq = param.indexOf('=');
+			if (eq == -1) {
+				result.put(URLDecoder.decode(param, "utf-8"), "");
+			} else {
+				result.put(URLDecoder.decode(param.substring(0, eq), "utf-8"),
+						URLDecoder.decode(param.substring(eq + 1), "utf-8"));
+			}
+		}
+		return result;
+	}
+
+	private static String hash(String s) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			StringBuilder result = new StringBuilder();
+			for (byte b: digest.digest(s.getBytes("utf-8"))) {
+				result.append(String.format("%02x", b));
+			}
+			return result.toString();
+		} catch (NoSuchAlgorithmException ex) {
+			// Can't happen, SHA-256 is always supported
+			throw new RuntimeException(ex);
+		} catch (UnsupportedEncodingException ex) {
+			// Can't happen, UTF-8 is always supported
+			throw new RuntimeException(ex);
+		}
+	}
+}
@@ -0,0 +1,266 @@
+package org.deri.tarql;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+
+/**
+ * Counters for the stages of a Tarql conversion: bytes read, rows
+ * parsed and skipped, bindings produced per query, triples emitted,
+ * duplicates removed, hits and misses of the {@link TarqlMemoizer}
+ * cache, and bytes written.
+ * <p>
+ * Collecting statistics is optional. Components that support it
+ * have a <code>setStats</code> method, and do no counting at all
+ * if none has been set. Counters are updated only by the thread
+ * running the conversion, but can be read from any thread while
+ * it runs, for example through JMX after {@link #registerMBean(String)}.
+ * Updates use lazy (ordered) writes, which are cheaper than volatile
+ * writes and don't need a memory fence on every row and triple.
+ */
+public class TarqlStats implements TarqlStatsMBean {
+	private final long startTime = System.nanoTime();
+	private volatile long endTime = -1;
+	private volatile long bytesRead = 0;
+	private volatile long rowsParsed = 0;
+	private volatile long rowsSkipped = 0;
+	private volatile long bindings = 0;
+	private volatile long[] bindingsPerQuery = new long[0];
+	private volatile long triplesEmitted = 0;
+	private volatile long dedupHits = 0;
+	private volatile long memoHits = 0;
+	private volatile long memoMisses = 0;
+	private volatile long bytesWritten = 0;
+	private ObjectName mbeanName = null;
+
+	private static final AtomicLongFieldUpdater<TarqlStats> BYTES_READ = updater("bytesRead");
+	private static final AtomicLongFieldUpdater<TarqlStats> ROWS_PARSED = updater("rowsParsed");
+	private static final AtomicLongFieldUpdater<TarqlStats> ROWS_SKIPPED = updater("rowsSkipped");
+	private static final AtomicLongFieldUpdater<TarqlStats> BINDINGS = updater("bindings");
+	private static final AtomicLongFieldUpdater<TarqlStats> TRIPLES_EMITTED = updater("triplesEmitted");
+	private static final AtomicLongFieldUpdater<TarqlStats> DEDUP_HITS = updater("dedupHits");
+	private static final AtomicLongFieldUpdater<TarqlStats> MEMO_HITS = updater("memoHits");
+	private static final AtomicLongFieldUpdater<TarqlStats> MEMO_MISSES = updater("memoMisses");
+	private static final AtomicLongFieldUpdater<TarqlStats> BYTES_WRITTEN = updater("bytesWritten");
+
+	private static AtomicLongFieldUpdater<TarqlStats> updater(String field) {
+		return AtomicLongFieldUpdater.newUpdater(TarqlStats.class, field);
+	}
+
+	@Override
+	public long getBytesRead() {
+		return bytesRead;
+	}
+
+	@Override
+	public long getRowsParsed() {
+		return rowsParsed;
+	}
+
+	@Override
+	public long getRowsSkipped() {
+		return rowsSkipped;
+	}
+
+	@Override
+	public long getBindings() {
+		return bindings;
+	}
+
+	/**
+	 * @param query Index of a query in the mapping
+	 * @return Number of bindings produced by the query so far, summed over all inputs
+	 */
+	public long getBindings(int query) {
+		long[] counts = bindingsPerQuery;
+		return query < counts.length ? counts[query] : 0;
+	}
+
+	@Override
+	public long getTriplesEmitted() {
+		return triplesEmitted;
+	}
+
+	@Override
+	public long getDedupHits() {
+		return dedupHits;
+	}
+
+	@Override
+	public long getMemoHits() {
+		return memoHits;
+	}
+
+	@Override
+	public long getMemoMisses() {
+		return memoMisses;
+	}
+
+	@Override
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	@Override
+	public long getElapsedMillis() {
+		long end = endTime == -1 ? System.nanoTime() : endTime;
+		return (end - startTime) / 1000000;
+	}
+
+	/**
+	 * Stops the clock. Counters can still be read afterwards.
+	 */
+	public void finish() {
+		if (endTime == -1) {
+			endTime = System.nanoTime();
+		}
+	}
+
+	void rowParsed() {
+		ROWS_PARSED.lazySet(this, rowsParsed + 1);
+	}
+
+	void rowSkipped() {
+		ROWS_SKIPPED.lazySet(this, rowsSkipped + 1);
+	}
+
+	void bindingProduced(int query) {
+		long[] counts = bindingsPerQuery;
+		if (query >= counts.length) {
+			long[] grown = new long[query + 1];
+			System.arraycopy(counts, 0, grown, 0, counts.length);
+			bindingsPerQuery = counts = grown;
+		}
+		counts[query]++;
+		BINDINGS.lazySet(this, bindings + 1);
+	}
+
+	void tripleEmitted() {
+		TRIPLES_EMITTED.lazySet(this, triplesEmitted + 1);
+	}
+
+	void dedupHit() {
+		DEDUP_HITS.lazySet(this, dedupHits + 1);
+	}
+
+	void memoHit() {
+		MEMO_HITS.lazySet(this, memoHits + 1);
+	}
+
+	void memoMiss() {
+		MEMO_MISSES.lazySet(this, memoMisses + 1);
+	}
+
+	/**
+	 * Wraps a source so that all bytes read from it are counted.
+	 */
+	InputStreamSource countBytesRead(final InputStreamSource source) {
+		return new InputStreamSource() {
+			@Override
+			public InputStream open() throws IOException {
+				return new FilterInputStream(source.open()) {
+					@Override
+					public int read() throws IOException {
+						int b = super.read();
+						if (b != -1) BYTES_READ.lazySet(TarqlStats.this, bytesRead + 1);
+						return b;
+					}
+					@Override
+					public int read(byte[] b, int off, int len) throws IOException {
+						int n = super.read(b, off, len);
+						if (n > 0) BYTES_READ.lazySet(TarqlStats.this, bytesRead + n);
+						return n;
+					}
+					@Override
+					public long skip(long n) throws IOException {
+						long skipped = super.skip(n);
+						BYTES_READ.lazySet(TarqlStats.this, bytesRead + skipped);
+						return skipped;
+					}
+				};
+			}
+		};
+	}
+
+	/**
+	 * Wraps an output stream so that all bytes written to it are counted.
+	 */
+	OutputStream countBytesWritten(OutputStream out) {
+		return new FilterOutputStream(out) {
+			@Override
+			public void write(int b) throws IOException {
+				out.write(b);
+				BYTES_WRITTEN.lazySet(TarqlStats.this, bytesWritten + 1);
+			}
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+				BYTES_WRITTEN.lazySet(TarqlStats.this, bytesWritten + len);
+			}
+		};
+	}
+
+	/**
+	 * Makes the counters available through JMX, in the platform
+	 * MBean server, under <code>org.deri.tarql:type=Stats,name=</code><em>name</em>.
+	 *
+	 * @param name Name of the job, to tell apart concurrent jobs
+	 */
+	public void registerMBean(String name) {
+		try {
+			ObjectName objectName = new ObjectName("org.deri.tarql:type=Stats,name=" + ObjectName.quote(name));
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			server.registerMBean(this, objectName);
+			mbeanName = objectName;
+		} catch (JMException ex) {
+			throw new TarqlException(ex);
+		}
+	}
+
+	/**
+	 * Removes the MBean registered with {@link #registerMBean(String)}, if any.
+	 */
+	public void unregisterMBean() {
+		if (mbeanName == null) return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+		} catch (JMException ex) {
+			// Already gone
+		}
+		mbeanName = null;
+	}
+
+	@Override
+	public String toJSON() {
+		StringBuilder result = new StringBuilder();
+		result.append("{\n");
+		result.append("  \"elapsedMillis\": ").append(getElapsedMillis()).append(",\n");
+		result.append("  \"bytesRead\": ").append(bytesRead).append(",\n");
+		result.append("  \"rowsParsed\": ").append(rowsParsed).append(",\n");
+		result.append("  \"rowsSkipped\": ").append(rowsSkipped).append(",\n");
+		result.append("  \"bindings\": ").append(bindings).append(",\n");
+		result.append("  \"bindingsPerQuery\": [");
+		long[] counts = bindingsPerQuery;
+		for (int i = 0; i < counts.length; i++) {
+			if (i > 0) result.append(", ");
+			result.append(counts[i]);
+		}
+		result.append("],\n");
+		result.append("  \"triplesEmitted\": ").append(triplesEmitted).append(",\n");
+		result.append("  \"dedupHits\": ").append(dedupHits).append(",\n");
+		result.append("  \"memoHits\": ").append(memoHits).append(",\n");
+		result.append("  \"memoMisses\": ").append(memoMisses).append(",\n");
+		result.append("  \"bytesWritten\": ").append(bytesWritten).append("\n");
+		result.append("}");
+		return result.toString();
+	}
+}
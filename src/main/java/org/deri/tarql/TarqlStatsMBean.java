@@ -0,0 +1,32 @@
+package org.deri.tarql;
+
+/**
+ * JMX management interface of {@link TarqlStats}.
+ */
+public interface TarqlStatsMBean {
+
+	long getBytesRead();
+
+	long getRowsParsed();
+
+	long getRowsSkipped();
+
+	long getBindings();
+
+	long getTriplesEmitted();
+
+	long getDedupHits();
+
+	long getMemoHits();
+
+	long getMemoMisses();
+
+	long getBytesWritten();
+
+	long getElapsedMillis();
+
+	/**
+	 * @return All counters as a JSON object
+	 */
+	String toJSON();
+}
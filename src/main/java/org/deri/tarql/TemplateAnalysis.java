@@ -0,0 +1,291 @@
+package org.deri.tarql;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.query.Query;
+import org.apache.jena.sparql.algebra.walker.Walker;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.expr.E_BNode;
+import org.apache.jena.sparql.expr.E_Function;
+import org.apache.jena.sparql.expr.E_IRI;
+import org.apache.jena.sparql.expr.E_Random;
+import org.apache.jena.sparql.expr.E_Str;
+import org.apache.jena.sparql.expr.E_StrConcat;
+import org.apache.jena.sparql.expr.E_StrEncodeForURI;
+import org.apache.jena.sparql.expr.E_StrUUID;
+import org.apache.jena.sparql.expr.E_UUID;
+import org.apache.jena.sparql.expr.Expr;
+import org.apache.jena.sparql.expr.ExprAggregator;
+import org.apache.jena.sparql.expr.ExprFunction0;
+import org.apache.jena.sparql.expr.ExprFunction1;
+import org.apache.jena.sparql.expr.ExprFunctionN;
+import org.apache.jena.sparql.expr.ExprFunctionOp;
+import org.apache.jena.sparql.expr.ExprVar;
+import org.apache.jena.sparql.expr.ExprVisitorBase;
+import org.apache.jena.sparql.syntax.Element;
+import org.apache.jena.sparql.syntax.ElementBind;
+import org.apache.jena.sparql.syntax.ElementFilter;
+import org.apache.jena.sparql.syntax.ElementGroup;
+
+
+/**
+ * Finds the triples of a CONSTRUCT template that come out the same for
+ * every row, so that they can be produced once instead of once per row.
+ * <p>
+ * A template triple is <em>invariant</em> if it has no blank nodes, and
+ * its variables, if any, are bound at the top level of the query by BIND
+ * expressions that use no variables and always give the same result,
+ * such as <code>BIND (IRI('http://example.com/data') AS ?dataset)</code>.
+ * <p>
+ * Optionally, a set of columns with few distinct values can be given.
+ * A template triple that has no blank nodes and only uses those columns
+ * and invariant variables is <em>once per value</em>: it needs to be
+ * produced only once for each distinct combination of the values.
+ * <p>
+ * Finally, a template triple is <em>row-unique</em> if it can't come
+ * out the same twice in a run, so there is no point in looking for
+ * duplicates of it. See {@link #findRowUnique(List, Collection)}.
+ */
+class TemplateAnalysis {
+	private final Query query;
+	private final List<Triple> template;
+	private final boolean[] invariant;
+	private final boolean[] oncePerValue;
+	private final boolean[] rowUnique;
+	private boolean hasAny = false;
+
+	/**
+	 * @param query A CONSTRUCT query
+	 * @param lowCardinalityColumns Names of columns with few distinct values; may be empty
+	 */
+	TemplateAnalysis(Query query, Collection<String> lowCardinalityColumns) {
+		this.query = query;
+		this.template = query.getConstructTemplate().getTriples();
+		invariant = new boolean[template.size()];
+		oncePerValue = new boolean[template.size()];
+		rowUnique = new boolean[template.size()];
+		Set<Var> constantVars = findConstantVars(query);
+		Set<Var> lowCardinalityVars = new HashSet<Var>(constantVars);
+		for (String column: lowCardinalityColumns) {
+			lowCardinalityVars.add(Var.alloc(column));
+		}
+		for (int i = 0; i < template.size(); i++) {
+			Triple triple = template.get(i);
+			if (usesOnly(triple, constantVars)) {
+				invariant[i] = true;
+				hasAny = true;
+			} else if (!lowCardinalityColumns.isEmpty() && usesOnly(triple, lowCardinalityVars)) {
+				oncePerValue[i] = true;
+				hasAny = true;
+			}
+		}
+	}
+
+	/**
+	 * Finds the row-unique template triples. Those are the triples whose
+	 * subject is a template blank node, which is fresh for each result,
+	 * and the triples whose subject is a key column or is minted from one
+	 * by a top-level BIND, if the query produces at most one result per row.
+	 * Either way, no other template triple of the mapping may be able to
+	 * produce the same triple.
+	 * 
+	 * @param mapping All queries of the mapping, including the analyzed one
+	 * @param keyColumns Names of columns whose values are unique in the run, such as <code>ROWNUM</code>
+	 */
+	void findRowUnique(List<Query> mapping, Collection<String> keyColumns) {
+		Set<Var> keyVars = new HashSet<Var>();
+		for (String column: keyColumns) {
+			keyVars.add(Var.alloc(column));
+		}
+		Set<Var> keyedVars = findKeyedVars(query, keyVars);
+		boolean oneResultPerRow = isOneResultPerRow(query);
+		for (int i = 0; i < template.size(); i++) {
+			Node subject = template.get(i).getSubject();
+			if (subject.isBlank()) {
+				rowUnique[i] = !canCollideWithinTemplate(i);
+			} else if (subject.isVariable() && oneResultPerRow && keyedVars.contains(Var.alloc(subject))) {
+				rowUnique[i] = !canCollideWithinTemplate(i) && !canCollideWithOtherQueries(i, mapping);
+			}
+			if (rowUnique[i]) hasAny = true;
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if any template triple is invariant, once per value, or row-unique
+	 */
+	boolean hasAny() {
+		return hasAny;
+	}
+
+	boolean isInvariant(int index) {
+		return invariant[index];
+	}
+
+	boolean isOncePerValue(int index) {
+		return oncePerValue[index];
+	}
+
+	boolean isRowUnique(int index) {
+		return rowUnique[index];
+	}
+
+	private boolean canCollideWithinTemplate(int index) {
+		for (int j = 0; j < template.size(); j++) {
+			if (j != index && canCollide(template.get(index), template.get(j))) return true;
+		}
+		return false;
+	}
+
+	private boolean canCollideWithOtherQueries(int index, List<Query> mapping) {
+		for (Query other: mapping) {
+			if (other == query || other.getConstructTemplate() == null) continue;
+			for (Triple triple: other.getConstructTemplate().getTriples()) {
+				if (canCollide(template.get(index), triple)) return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Two template triples can produce the same triple unless they have
+	 * different fixed nodes in the same position. A template blank node
+	 * is fresh, so no variable can be bound to it.
+	 */
+	private static boolean canCollide(Triple t1, Triple t2) {
+		return canCollide(t1.getSubject(), t2.getSubject()) && canCollide(t1.getPredicate(), t2.getPredicate())
+				&& canCollide(t1.getObject(), t2.getObject());
+	}
+
+	private static boolean canCollide(Node n1, Node n2) {
+		if (n1.isBlank() || n2.isBlank()) return n1.equals(n2);
+		return n1.isVariable() || n2.isVariable() || n1.equals(n2);
+	}
+
+	private static boolean usesOnly(Triple triple, Set<Var> vars) {
+		return usesOnly(triple.getSubject(), vars) && usesOnly(triple.getPredicate(), vars)
+				&& usesOnly(triple.getObject(), vars);
+	}
+
+	private static boolean usesOnly(Node node, Set<Var> vars) {
+		// Template blank nodes are fresh for each row
+		if (node.isBlank()) return false;
+		if (node.isVariable()) return vars.contains(Var.alloc(node));
+		return true;
+	}
+
+	/**
+	 * Variables bound by top-level BINDs to expressions that give the
+	 * same value in every row.
+	 */
+	private static Set<Var> findConstantVars(Query query) {
+		Set<Var> result = new HashSet<Var>();
+		Element pattern = query.getQueryPattern();
+		if (!(pattern instanceof ElementGroup)) return result;
+		for (Element element: ((ElementGroup) pattern).getElements()) {
+			if (!(element instanceof ElementBind)) continue;
+			ElementBind bind = (ElementBind) element;
+			if (isConstant(bind.getExpr())) {
+				result.add(bind.getVar());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Key variables, and variables bound by top-level BINDs to
+	 * expressions that give a different value for each key value.
+	 */
+	private static Set<Var> findKeyedVars(Query query, Set<Var> keyVars) {
+		Set<Var> result = new HashSet<Var>(keyVars);
+		Element pattern = query.getQueryPattern();
+		if (!(pattern instanceof ElementGroup)) return result;
+		for (Element element: ((ElementGroup) pattern).getElements()) {
+			if (!(element instanceof ElementBind)) continue;
+			ElementBind bind = (ElementBind) element;
+			if (isInjective(bind.getExpr(), result)) {
+				result.add(bind.getVar());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Recognizes the usual ways of minting IRIs from a key, such as
+	 * <code>IRI(CONCAT('http://example.com/item/', STR(?id)))</code>.
+	 */
+	private static boolean isInjective(Expr expr, Set<Var> keyVars) {
+		if (expr.isVariable()) {
+			return keyVars.contains(expr.asVar());
+		}
+		if (expr instanceof TarqlMemoizer.MemoizedExpr || expr instanceof TarqlProfiler.ProfiledExpr) {
+			return isInjective(((ExprFunction1) expr).getArg(), keyVars);
+		}
+		if (expr instanceof E_IRI || expr instanceof E_Str || expr instanceof E_StrEncodeForURI) {
+			return isInjective(((ExprFunction1) expr).getArg(), keyVars);
+		}
+		if (expr instanceof E_StrConcat) {
+			// A single varying part between fixed strings
+			int injective = 0;
+			for (Expr arg: ((E_StrConcat) expr).getArgs()) {
+				if (isConstant(arg)) continue;
+				if (!isInjective(arg, keyVars)) return false;
+				injective++;
+			}
+			return injective == 1;
+		}
+		return false;
+	}
+
+	/**
+	 * Only BINDs and FILTERs on the input table ensure that each
+	 * row yields at most one result.
+	 */
+	private static boolean isOneResultPerRow(Query query) {
+		if (query.hasGroupBy() || query.hasAggregators() || query.hasValues()) return false;
+		Element pattern = query.getQueryPattern();
+		if (!(pattern instanceof ElementGroup)) return false;
+		for (Element element: ((ElementGroup) pattern).getElements()) {
+			if (element instanceof ElementBind || element instanceof ElementFilter
+					|| element instanceof TarqlQueryExecution.CSVTableElement) continue;
+			return false;
+		}
+		return true;
+	}
+
+	private static boolean isConstant(Expr expr) {
+		final boolean[] result = {true};
+		Walker.walk(expr, new ExprVisitorBase() {
+			@Override
+			public void visit(ExprVar nv) {
+				result[0] = false;
+			}
+			@Override
+			public void visit(ExprFunction0 func) {
+				if (func instanceof E_Random || func instanceof E_UUID || func instanceof E_StrUUID) {
+					result[0] = false;
+				}
+			}
+			@Override
+			public void visit(ExprFunctionN func) {
+				// Extension functions might not give the same result each time
+				if (func instanceof E_BNode || func instanceof E_Function) {
+					result[0] = false;
+				}
+			}
+			@Override
+			public void visit(ExprFunctionOp funcOp) {
+				result[0] = false;
+			}
+			@Override
+			public void visit(ExprAggregator eAgg) {
+				result[0] = false;
+			}
+		});
+		return result[0];
+	}
+}
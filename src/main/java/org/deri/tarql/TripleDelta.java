@@ -0,0 +1,227 @@
+package org.deri.tarql;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.out.NodeFmtLib;
+
+
+/**
+ * Compares the triples of a run with those of a previous run, and
+ * writes the triples that were added and removed as N-Triples, for
+ * updating a triple store with a patch instead of reloading it.
+ * <p>
+ * Both sets of triples are sorted with an {@link ExternalSorter}, so
+ * memory use is bounded regardless of size. The previous run can be
+ * given as any N-Triples file, or as a <em>snapshot</em>: the sorted,
+ * duplicate-free N-Triples that {@link #compute} can write for the
+ * current run. A snapshot doesn't need sorting again, and may be
+ * gzipped.
+ * <p>
+ * Blank nodes get new labels in each run, so triples with blank
+ * nodes always show up as removed and added.
+ */
+public class TripleDelta {
+	/** First line of a snapshot; a comment in N-Triples */
+	final static String SNAPSHOT_HEADER = "# Tarql snapshot, sorted";
+
+	private final long maxBytesInMemory;
+	private final File tempDirectory;
+	private long added = 0;
+	private long removed = 0;
+	private long unchanged = 0;
+
+	/**
+	 * @param maxBytesInMemory Approximate memory to use for sorting each set of triples
+	 * @param tempDirectory Where to put temporary files, or <code>null</code> for the system default
+	 */
+	public TripleDelta(long maxBytesInMemory, File tempDirectory) {
+		this.maxBytesInMemory = maxBytesInMemory;
+		this.tempDirectory = tempDirectory;
+	}
+
+	/**
+	 * Computes the delta between a previous run and the current one.
+	 *
+	 * @param previous N-Triples file or snapshot of the previous run, or <code>null</code> if none
+	 * @param current The triples of the current run
+	 * @param addedOut Where to write added triples, or <code>null</code>
+	 * @param removedOut Where to write removed triples, or <code>null</code>
+	 * @param snapshotOut Where to write a snapshot of the current run, or <code>null</code>
+	 * @throws IOException on error reading or writing files
+	 */
+	public void compute(File previous, Iterator<Triple> current,
+			OutputStream addedOut, OutputStream removedOut, OutputStream snapshotOut) throws IOException {
+		ExternalSorter currentSorter = new ExternalSorter(maxBytesInMemory, tempDirectory);
+		ExternalSorter previousSorter = null;
+		InputStream previousIn = null;
+		try {
+			while (current.hasNext()) {
+				currentSorter.add(format(current.next()));
+			}
+			Iterator<String> previousLines;
+			if (previous == null) {
+				previousLines = Collections.<String>emptyIterator();
+			} else {
+				previousIn = open(previous);
+				if (isSnapshot(previousIn)) {
+					previousLines = readSnapshot(previousIn);
+				} else {
+					previousSorter = new ExternalSorter(maxBytesInMemory, tempDirectory);
+					Iterator<Triple> triples = RDFDataMgr.createIteratorTriples(previousIn, Lang.NTRIPLES, null);
+					while (triples.hasNext()) {
+						previousSorter.add(format(triples.next()));
+					}
+					previousLines = previousSorter.sorted();
+				}
+			}
+			merge(previousLines, currentSorter.sorted(),
+					writer(addedOut), writer(removedOut), writer(snapshotOut));
+		} finally {
+			currentSorter.close();
+			if (previousSorter != null) {
+				previousSorter.close();
+			}
+			if (previousIn != null) {
+				previousIn.close();
+			}
+		}
+	}
+
+	public long getAdded() {
+		return added;
+	}
+
+	public long getRemoved() {
+		return removed;
+	}
+
+	public long getUnchanged() {
+		return unchanged;
+	}
+
+	private void merge(Iterator<String> previous, Iterator<String> current,
+			Writer addedOut, Writer removedOut, Writer snapshotOut) throws IOException {
+		write(snapshotOut, SNAPSHOT_HEADER);
+		String p = previous.hasNext() ? previous.next() : null;
+		String c = current.hasNext() ? current.next() : null;
+		while (p != null || c != null) {
+			int comparison = p == null ? 1 : c == null ? -1 : p.compareTo(c);
+			if (comparison < 0) {
+				write(removedOut, p);
+				removed++;
+				p = previous.hasNext() ? previous.next() : null;
+			} else if (comparison > 0) {
+				write(addedOut, c);
+				write(snapshotOut, c);
+				added++;
+				c = current.hasNext() ? current.next() : null;
+			} else {
+				write(snapshotOut, c);
+				unchanged++;
+				p = previous.hasNext() ? previous.next() : null;
+				c = current.hasNext() ? current.next() : null;
+			}
+		}
+		flush(addedOut);
+		flush(removedOut);
+		flush(snapshotOut);
+	}
+
+	static String format(Triple triple) {
+		return NodeFmtLib.str(triple) + " .";
+	}
+
+	private static void write(Writer out, String line) throws IOException {
+		if (out == null) return;
+		out.write(line);
+		out.write('\n');
+	}
+
+	private static void flush(Writer out) throws IOException {
+		if (out != null) out.flush();
+	}
+
+	private static Writer writer(OutputStream out) {
+		if (out == null) return null;
+		return new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 65536);
+	}
+
+	/**
+	 * Opens a file, decompressing it if it is gzipped.
+	 */
+	private static InputStream open(File file) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(file), 65536);
+		in.mark(2);
+		int b1 = in.read();
+		int b2 = in.read();
+		in.reset();
+		if (b1 == 0x1f && b2 == 0x8b) {
+			return new BufferedInputStream(new GZIPInputStream(in, 65536), 65536);
+		}
+		return in;
+	}
+
+	private static boolean isSnapshot(InputStream in) throws IOException {
+		byte[] header = SNAPSHOT_HEADER.getBytes(StandardCharsets.UTF_8);
+		in.mark(header.length);
+		byte[] start = new byte[header.length];
+		int n = 0;
+		while (n < start.length) {
+			int read = in.read(start, n, start.length - n);
+			if (read < 0) break;
+			n += read;
+		}
+		in.reset();
+		return n == header.length && Arrays.equals(start, header);
+	}
+
+	private static Iterator<String> readSnapshot(InputStream in) throws IOException {
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 65536);
+		// Skip the header
+		reader.readLine();
+		return new Iterator<String>() {
+			private String next = readLine();
+			@Override
+			public boolean hasNext() {
+				return next != null;
+			}
+			@Override
+			public String next() {
+				if (next == null) throw new NoSuchElementException();
+				String result = next;
+				next = readLine();
+				return result;
+			}
+			private String readLine() {
+				try {
+					String line;
+					do {
+						line = reader.readLine();
+					} while (line != null && line.isEmpty());
+					return line;
+				} catch (IOException ex) {
+					throw new TarqlException(ex);
+				}
+			}
+		};
+	}
+}
@@ -2,11 +2,15 @@ package org.deri.tarql;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
+import java.util.Map.Entry;
+
+import org.apache.jena.datatypes.RDFDatatype;
 
 /**
  * Extracts a CSVOptions object from the fragment part of a
  * CSV file URL, e.g.,
  * <code>http://example.com/file.csv#encoding=utf-8;header=absent</code>
+ * or <code>file.csv#types=price:decimal,qty:integer</code>
  * The remainder of the URL, with anything interpretable
  * removed, can also be obtained from the returned
  * parse result.
@@ -18,6 +22,7 @@ public class URLOptionsParser {
 	private final static String delimiterKey = "delimiter=";
 	private final static String quoteCharKey = "quotechar=";
 	private final static String escapeCharKey = "escapechar=";
+	private final static String typesKey = "types=";
 
 	private final StringBuilder remainingURL = new StringBuilder();
 	private final CSVOptions options = new CSVOptions();
@@ -138,8 +143,17 @@ public class URLOptionsParser {
 				options.setEscapeChar(c);
 				return true;
 			}
+			if (part.startsWith(typesKey)) {
+				String value = URLDecoder.decode(part.substring(typesKey.length()), "utf-8");
+				for (Entry<String, RDFDatatype> entry: CSVOptions.parseColumnTypes(value).entrySet()) {
+					options.setColumnType(entry.getKey(), entry.getValue());
+				}
+				return true;
+			}
 		} catch (IllegalArgumentException ex) {
 			// Not interpretable -- treat as part of remaining URL
+		} catch (UnsupportedEncodingException ex) {
+			// Can't happen, UTF-8 always supported
 		}
 		return false;
 	}
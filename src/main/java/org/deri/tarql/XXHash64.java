@@ -0,0 +1,95 @@
+package org.deri.tarql;
+
+/**
+ * Yann Collet's 64-bit xxHash. Faster than {@link Murmur3}, with
+ * a shorter result, and not cryptographic. Results agree with the
+ * reference implementation's <code>XXH64</code>.
+ */
+public class XXHash64 {
+	private final static long P1 = 0x9E3779B185EBCA87L;
+	private final static long P2 = 0xC2B2AE3D27D4EB4FL;
+	private final static long P3 = 0x165667B19E3779F9L;
+	private final static long P4 = 0x85EBCA77C2B2AE63L;
+	private final static long P5 = 0x27D4EB2F165667C5L;
+
+	/**
+	 * @param data The bytes to hash
+	 * @param offset Index of the first byte to hash
+	 * @param length Number of bytes to hash
+	 * @param seed The seed; 0 for the usual results
+	 * @return The hash
+	 */
+	public static long hash(byte[] data, int offset, int length, long seed) {
+		int p = offset;
+		int end = offset + length;
+		long h;
+		if (length >= 32) {
+			long v1 = seed + P1 + P2;
+			long v2 = seed + P2;
+			long v3 = seed;
+			long v4 = seed - P1;
+			int limit = end - 32;
+			do {
+				v1 = round(v1, getLong(data, p));
+				v2 = round(v2, getLong(data, p + 8));
+				v3 = round(v3, getLong(data, p + 16));
+				v4 = round(v4, getLong(data, p + 24));
+				p += 32;
+			} while (p <= limit);
+			h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7)
+					+ Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+			h = merge(h, v1);
+			h = merge(h, v2);
+			h = merge(h, v3);
+			h = merge(h, v4);
+		} else {
+			h = seed + P5;
+		}
+		h += length;
+		while (p + 8 <= end) {
+			h ^= round(0, getLong(data, p));
+			h = Long.rotateLeft(h, 27) * P1 + P4;
+			p += 8;
+		}
+		if (p + 4 <= end) {
+			h ^= (getInt(data, p) & 0xffffffffL) * P1;
+			h = Long.rotateLeft(h, 23) * P2 + P3;
+			p += 4;
+		}
+		while (p < end) {
+			h ^= (data[p] & 0xffL) * P5;
+			h = Long.rotateLeft(h, 11) * P1;
+			p++;
+		}
+		h ^= h >>> 33;
+		h *= P2;
+		h ^= h >>> 29;
+		h *= P3;
+		h ^= h >>> 32;
+		return h;
+	}
+
+	private static long round(long acc, long input) {
+		acc += input * P2;
+		acc = Long.rotateLeft(acc, 31);
+		return acc * P1;
+	}
+
+	private static long merge(long acc, long v) {
+		acc ^= round(0, v);
+		return acc * P1 + P4;
+	}
+
+	private static long getLong(byte[] data, int p) {
+		return (data[p] & 0xffL) | (data[p + 1] & 0xffL) << 8 | (data[p + 2] & 0xffL) << 16
+				| (data[p + 3] & 0xffL) << 24 | (data[p + 4] & 0xffL) << 32 | (data[p + 5] & 0xffL) << 40
+				| (data[p + 6] & 0xffL) << 48 | (data[p + 7] & 0xffL) << 56;
+	}
+
+	private static int getInt(byte[] data, int p) {
+		return (data[p] & 0xff) | (data[p + 1] & 0xff) << 8 | (data[p + 2] & 0xff) << 16
+				| (data[p + 3] & 0xff) << 24;
+	}
+
+	private XXHash64() {}
+}
@@ -0,0 +1,99 @@
+package org.deri.tarql.functions;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.expr.ExprEvalException;
+import org.apache.jena.sparql.expr.ExprList;
+import org.apache.jena.sparql.expr.NodeValue;
+import org.apache.jena.sparql.function.FunctionEnv;
+
+
+/**
+ * Writes the values of function arguments as UTF-8 into a reusable
+ * buffer, so that they can be hashed without building intermediate
+ * strings. Literals contribute their lexical form, IRIs the IRI.
+ * <p>
+ * Arguments are separated by the byte 0x1F (unit separator), so that
+ * <code>('ab', 'c')</code> and <code>('a', 'bc')</code> differ.
+ * A single argument is just its UTF-8 bytes, so its hash is the
+ * usual hash of the string.
+ */
+class ArgumentEncoder {
+	private final static byte SEPARATOR = 0x1F;
+	private final String functionName;
+	private byte[] buffer = new byte[256];
+	private int length = 0;
+
+	/**
+	 * @param functionName Name of the function, for error messages
+	 */
+	ArgumentEncoder(String functionName) {
+		this.functionName = functionName;
+	}
+
+	/**
+	 * Evaluates and encodes arguments, replacing what was encoded before.
+	 *
+	 * @param first Index of the first argument to encode
+	 */
+	void encode(Binding binding, ExprList args, int first, FunctionEnv env) {
+		length = 0;
+		for (int i = first; i < args.size(); i++) {
+			if (i > first) {
+				ensureCapacity(length + 1);
+				buffer[length++] = SEPARATOR;
+			}
+			append(toString(args.get(i).eval(binding, env)));
+		}
+	}
+
+	byte[] getBuffer() {
+		return buffer;
+	}
+
+	int getLength() {
+		return length;
+	}
+
+	String toString(NodeValue value) {
+		Node node = value.asNode();
+		if (node.isLiteral()) return node.getLiteralLexicalForm();
+		if (node.isURI()) return node.getURI();
+		throw new ExprEvalException(functionName + ": not a literal or IRI: " + value);
+	}
+
+	private void append(String s) {
+		// At most 3 bytes per char; surrogate pairs take 4 bytes for 2 chars
+		ensureCapacity(length + 3 * s.length());
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				buffer[length++] = (byte) c;
+			} else if (c < 0x800) {
+				buffer[length++] = (byte) (0xC0 | c >> 6);
+				buffer[length++] = (byte) (0x80 | c & 0x3F);
+			} else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+					&& Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				buffer[length++] = (byte) (0xF0 | cp >> 18);
+				buffer[length++] = (byte) (0x80 | cp >> 12 & 0x3F);
+				buffer[length++] = (byte) (0x80 | cp >> 6 & 0x3F);
+				buffer[length++] = (byte) (0x80 | cp & 0x3F);
+			} else if (Character.isSurrogate(c)) {
+				// Unpaired surrogate; encoded as '?', like String.getBytes() does
+				buffer[length++] = '?';
+			} else {
+				buffer[length++] = (byte) (0xE0 | c >> 12);
+				buffer[length++] = (byte) (0x80 | c >> 6 & 0x3F);
+				buffer[length++] = (byte) (0x80 | c & 0x3F);
+			}
+		}
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (buffer.length >= capacity) return;
+		byte[] larger = new byte[Math.max(capacity, buffer.length * 2)];
+		System.arraycopy(buffer, 0, larger, 0, length);
+		buffer = larger;
+	}
+}
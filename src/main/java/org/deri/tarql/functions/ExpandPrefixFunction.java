@@ -1,14 +1,17 @@
 package org.deri.tarql.functions;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import org.apache.jena.atlas.lib.Lib;
 import org.apache.jena.query.QueryBuildException;
 import org.apache.jena.shared.PrefixMapping;
 import org.apache.jena.sparql.ARQInternalErrorException;
 import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.expr.Expr;
 import org.apache.jena.sparql.expr.ExprEvalException;
 import org.apache.jena.sparql.expr.ExprList;
 import org.apache.jena.sparql.expr.NodeValue;
-import org.apache.jena.sparql.function.Function;
 import org.apache.jena.sparql.function.FunctionEnv;
 import org.apache.jena.sparql.util.Context;
 import org.apache.jena.sparql.util.Symbol;
@@ -19,18 +22,31 @@ import org.deri.tarql.tarql;
 /**
  * The function tarql:expandPrefix(?prefix). Expands a prefix
  * defined in the query to its associated namespace URI.
+ * <p>
+ * The prefix mapping is looked up in the context only when the
+ * context changes, and results are remembered, as the same few
+ * prefixes are expanded on every row. Calls with a constant prefix
+ * are replaced with the namespace before execution.
  */
-public class ExpandPrefixFunction implements Function {
+public class ExpandPrefixFunction implements SpecializableFunction {
 
 	public static String IRI = tarql.NS + "expandPrefix";
 	public static String NAME = "tarql:expandPrefix";
 	
 	public static final Symbol PREFIX_MAPPING = Symbol.create("prefixMapping");
+
+	/** Number of results to remember before starting over */
+	final static int MAX_CACHED = 10000;
 	
 	static {
 		TarqlQuery.registerFunctions();
 	}
 	
+	// Context of the last call, its prefix mapping, and results so far
+	private Context lastContext = null;
+	private PrefixMapping prefixes = null;
+	private final Map<String, NodeValue> results = new HashMap<String, NodeValue>();
+	
 	public ExpandPrefixFunction() {
 		super();
 	}
@@ -42,15 +58,41 @@ public class ExpandPrefixFunction implements Function {
 		if (!prefix.isString()) {
 			throw new ExprEvalException(NAME + ": not a string: " + prefix);
 		}
-		PrefixMapping prefixes = context.get(PREFIX_MAPPING);
+		PrefixMapping prefixes = getPrefixes(context);
 		if (prefixes == null) {
 			throw new ExprEvalException(NAME + ": no prefix mapping registered");
 		}
+		NodeValue result = results.get(prefix.asString());
+		if (result != null) return result;
 		String iri = prefixes.getNsPrefixURI(prefix.asString());
 		if (iri == null) {
 			throw new ExprEvalException(NAME + ": prefix not defined: " + prefix);
 		}
-		return NodeValue.makeString(iri);
+		result = NodeValue.makeString(iri);
+		if (results.size() >= MAX_CACHED) {
+			results.clear();
+		}
+		results.put(prefix.asString(), result);
+		return result;
+	}
+
+	private PrefixMapping getPrefixes(Context context) {
+		if (context != lastContext) {
+			prefixes = context.get(PREFIX_MAPPING);
+			lastContext = context;
+			results.clear();
+		}
+		return prefixes;
+	}
+
+	@Override
+	public Expr specialize(ExprList args, PrefixMapping prefixes) {
+		if (args.size() != 1 || !args.get(0).isConstant()) return null;
+		NodeValue prefix = args.get(0).getConstant();
+		if (!prefix.isString()) return null;
+		String iri = prefixes.getNsPrefixURI(prefix.asString());
+		// Undefined prefixes are left to fail at execution time
+		return iri == null ? null : NodeValue.makeString(iri);
 	}
 
 	@Override
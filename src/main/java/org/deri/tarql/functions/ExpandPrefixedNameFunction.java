@@ -1,15 +1,18 @@
 package org.deri.tarql.functions;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import org.apache.jena.atlas.lib.Lib;
 import org.apache.jena.graph.NodeFactory;
 import org.apache.jena.query.QueryBuildException;
 import org.apache.jena.shared.PrefixMapping;
 import org.apache.jena.sparql.ARQInternalErrorException;
 import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.expr.Expr;
 import org.apache.jena.sparql.expr.ExprEvalException;
 import org.apache.jena.sparql.expr.ExprList;
 import org.apache.jena.sparql.expr.NodeValue;
-import org.apache.jena.sparql.function.Function;
 import org.apache.jena.sparql.function.FunctionEnv;
 import org.apache.jena.sparql.util.Context;
 import org.deri.tarql.TarqlQuery;
@@ -20,8 +23,12 @@ import org.deri.tarql.tarql;
  * The function tarql:expandPrefixedName(?name). Expands a prefixed
  * name, such as dc:title, using any prefixes defined in the
  * query. The result is an IRI.
+ * <p>
+ * Like {@link ExpandPrefixFunction}, looks up the prefix mapping only
+ * when the context changes, remembers results, and replaces calls
+ * with a constant name with the IRI before execution.
  */
-public class ExpandPrefixedNameFunction implements Function {
+public class ExpandPrefixedNameFunction implements SpecializableFunction {
 
 	public static String IRI = tarql.NS + "expandPrefixedName";
 	public static String Name = "tarql:expandPrefixedName";
@@ -30,6 +37,11 @@ public class ExpandPrefixedNameFunction implements Function {
 		TarqlQuery.registerFunctions();
 	}
 	
+	// Context of the last call, its prefix mapping, and results so far
+	private Context lastContext = null;
+	private PrefixMapping prefixes = null;
+	private final Map<String, NodeValue> results = new HashMap<String, NodeValue>();
+	
 	public ExpandPrefixedNameFunction() {
 		super();
 	}
@@ -37,14 +49,39 @@ public class ExpandPrefixedNameFunction implements Function {
 	public NodeValue exec(NodeValue name, Context context) {
 		if (name == null) return null;
 		if (!name.isString()) throw new ExprEvalException("Not a string: " + name);
-		PrefixMapping prefixes = context.get(ExpandPrefixFunction.PREFIX_MAPPING);
+		if (context != lastContext) {
+			prefixes = context.get(ExpandPrefixFunction.PREFIX_MAPPING);
+			lastContext = context;
+			results.clear();
+		}
 		if (prefixes == null) throw new ExprEvalException("No prefix mapping registered");
 		String pname = name.asString();
+		NodeValue result = results.get(pname);
+		if (result != null) return result;
 		int idx = pname.indexOf(':');
 		if (idx == -1) throw new ExprEvalException("Not a prefixed name: " + name);
 		String prefix = pname.substring(0, idx);
 		String iri = prefixes.getNsPrefixURI(prefix);
 		if (iri == null) throw new ExprEvalException("Prefix not defined: " + prefix);
+		result = NodeValue.makeNode(NodeFactory.createURI(iri + pname.substring(idx + 1)));
+		if (results.size() >= ExpandPrefixFunction.MAX_CACHED) {
+			results.clear();
+		}
+		results.put(pname, result);
+		return result;
+	}
+
+	@Override
+	public Expr specialize(ExprList args, PrefixMapping prefixes) {
+		if (args.size() != 1 || !args.get(0).isConstant()) return null;
+		NodeValue name = args.get(0).getConstant();
+		if (!name.isString()) return null;
+		String pname = name.asString();
+		int idx = pname.indexOf(':');
+		if (idx == -1) return null;
+		String iri = prefixes.getNsPrefixURI(pname.substring(0, idx));
+		// Undefined prefixes are left to fail at execution time
+		if (iri == null) return null;
 		return NodeValue.makeNode(NodeFactory.createURI(iri + pname.substring(idx + 1)));
 	}
 
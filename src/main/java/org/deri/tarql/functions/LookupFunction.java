@@ -0,0 +1,129 @@
+package org.deri.tarql.functions;
+
+import java.io.File;
+
+import org.apache.jena.atlas.lib.Lib;
+import org.apache.jena.graph.Node;
+import org.apache.jena.query.QueryBuildException;
+import org.apache.jena.sparql.ARQInternalErrorException;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.expr.ExprEvalException;
+import org.apache.jena.sparql.expr.ExprList;
+import org.apache.jena.sparql.expr.NodeValue;
+import org.apache.jena.sparql.function.Function;
+import org.apache.jena.sparql.function.FunctionEnv;
+import org.deri.tarql.TarqlQuery;
+import org.deri.tarql.tarql;
+
+
+/**
+ * The function tarql:lookup(table, keyColumn, ?key, valueColumn).
+ * Finds the row of a secondary CSV file, such as a code list, whose
+ * <code>keyColumn</code> has the value <code>?key</code>, and returns
+ * the row's value in <code>valueColumn</code> as a string. The result
+ * is unbound if there is no such row.
+ * <p>
+ * The table is loaded into a {@link LookupTable} the first time it is
+ * used, so each lookup takes constant time instead of joining against
+ * the whole table.
+ * <p>
+ * The function tarql:lookup(index, ?key) looks up the value of
+ * <code>?key</code> in a {@link LookupIndex} file built with
+ * <code>tarql --build-lookup</code>, for tables too large to load.
+ */
+public class LookupFunction implements Function {
+
+	public static String IRI = tarql.NS + "lookup";
+	public static String NAME = "tarql:lookup";
+
+	static {
+		TarqlQuery.registerFunctions();
+	}
+
+	// The table of the last call; usually the same for every row
+	private String lastTable = null;
+	private String lastKeyColumn = null;
+	private LookupTable table = null;
+	private String lastIndex = null;
+	private LookupIndex index = null;
+
+	public LookupFunction() {
+		super();
+	}
+
+	public NodeValue exec(NodeValue tableName, NodeValue keyColumn, NodeValue key, NodeValue valueColumn) {
+		if (!tableName.isString()) {
+			throw new ExprEvalException(NAME + ": table name not a string: " + tableName);
+		}
+		if (!keyColumn.isString() || !valueColumn.isString()) {
+			throw new ExprEvalException(NAME + ": column name not a string");
+		}
+		String value = getTable(tableName.asString(), keyColumn.asString())
+				.lookup(toKey(key), valueColumn.asString());
+		if (value == null) {
+			throw new ExprEvalException(NAME + ": not found: " + key);
+		}
+		return NodeValue.makeString(value);
+	}
+
+	public NodeValue exec(NodeValue indexName, NodeValue key) {
+		if (!indexName.isString()) {
+			throw new ExprEvalException(NAME + ": index name not a string: " + indexName);
+		}
+		String value = getIndex(indexName.asString()).lookup(toKey(key));
+		if (value == null) {
+			throw new ExprEvalException(NAME + ": not found: " + key);
+		}
+		return NodeValue.makeString(value);
+	}
+
+	private synchronized LookupIndex getIndex(String name) {
+		if (!name.equals(lastIndex)) {
+			index = LookupIndex.open(new File(name));
+			lastIndex = name;
+		}
+		return index;
+	}
+
+	private synchronized LookupTable getTable(String name, String keyColumn) {
+		if (!name.equals(lastTable) || !keyColumn.equals(lastKeyColumn)) {
+			table = LookupTable.load(name, keyColumn);
+			lastTable = name;
+			lastKeyColumn = keyColumn;
+		}
+		return table;
+	}
+
+	/**
+	 * Keys are compared as strings: the lexical form of
+	 * literals, or the IRI.
+	 */
+	static String toKey(NodeValue key) {
+		Node node = key.asNode();
+		if (node.isLiteral()) return node.getLiteralLexicalForm();
+		if (node.isURI()) return node.getURI();
+		throw new ExprEvalException(NAME + ": not a valid key: " + key);
+	}
+
+	@Override
+	public NodeValue exec(Binding binding, ExprList args, String uri, FunctionEnv env) {
+		if (args == null) {
+			throw new ARQInternalErrorException("LookupFunction: Null args list");
+		}
+		if (args.size() == 2) {
+			return exec(args.get(0).eval(binding, env), args.get(1).eval(binding, env));
+		}
+		if (args.size() != 4) {
+			throw new ExprEvalException("LookupFunction: Wrong number of arguments: Wanted 2 or 4, got " + args.size());
+		}
+		return exec(args.get(0).eval(binding, env), args.get(1).eval(binding, env),
+				args.get(2).eval(binding, env), args.get(3).eval(binding, env));
+	}
+
+	@Override
+	public void build(String uri, ExprList args) {
+		if (args.size() != 2 && args.size() != 4) {
+			throw new QueryBuildException("Function '" + Lib.className(this) + "' takes two or four arguments");
+		}
+	}
+}
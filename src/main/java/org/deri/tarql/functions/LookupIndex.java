@@ -0,0 +1,337 @@
+package org.deri.tarql.functions;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.deri.tarql.CSVOptions;
+import org.deri.tarql.CSVParser;
+import org.deri.tarql.InputStreamSource;
+import org.deri.tarql.Murmur3;
+import org.deri.tarql.TarqlException;
+
+
+/**
+ * A key/value lookup table in an on-disk hash index, for
+ * {@link LookupFunction}. The index is built once from a two-column
+ * CSV file with {@link #build(InputStreamSource, CSVOptions, File)},
+ * and is memory-mapped when used. Opening it takes no time regardless
+ * of size, only the pages that are used are read, and processes that
+ * use the same index share the operating system's page cache.
+ * <p>
+ * The file has a header, an open-addressing table of 8-byte slots,
+ * and the keys and values. Each slot holds 24 bits of the key's hash,
+ * to skip most mismatches without reading the key, and the position
+ * of the key in the data area. If a key occurs several times in the
+ * CSV file, the first row wins.
+ */
+public class LookupIndex {
+	private final static byte[] MAGIC = "TARQLIDX".getBytes(StandardCharsets.US_ASCII);
+	private final static int VERSION = 1;
+	private final static int HEADER_SIZE = 64;
+	private final static long OFFSET_MASK = (1L << 40) - 1;
+	private final static Map<String, LookupIndex> cache = new HashMap<String, LookupIndex>();
+
+	/**
+	 * Gets an index, mapping it into memory if it isn't mapped yet.
+	 * The index is mapped again if the file has been modified.
+	 *
+	 * @param file The index file
+	 * @return The index
+	 * @throws TarqlException if the file cannot be read or isn't an index
+	 */
+	public static LookupIndex open(File file) {
+		String cacheKey = file.getAbsolutePath();
+		synchronized (cache) {
+			LookupIndex result = cache.get(cacheKey);
+			if (result == null || result.lastModified != file.lastModified()) {
+				try {
+					result = new LookupIndex(file);
+				} catch (IOException ex) {
+					throw new TarqlException("Error reading lookup index " + file + ": " + ex.getMessage(), ex);
+				}
+				cache.put(cacheKey, result);
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Checks whether a file starts like an index.
+	 */
+	public static boolean isIndex(File file) {
+		if (!file.isFile() || file.length() < HEADER_SIZE) return false;
+		try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+			byte[] magic = new byte[MAGIC.length];
+			in.readFully(magic);
+			return Arrays.equals(magic, MAGIC);
+		} catch (IOException ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * Builds an index from the first two columns of a CSV file, keys
+	 * and values. Rows with an empty key or value are skipped. Reads the
+	 * input twice: once to size the index, and once to fill it.
+	 *
+	 * @param source The CSV file
+	 * @param options Options for reading the CSV file
+	 * @param indexFile Where to write the index
+	 * @return Number of distinct keys
+	 * @throws IOException on error reading or writing
+	 */
+	public static long build(InputStreamSource source, CSVOptions options, File indexFile) throws IOException {
+		long rows = 0;
+		long dataSize = 0;
+		CSVParser parser = options.openParserFor(source);
+		try {
+			while (parser.hasNext()) {
+				String[] pair = toPair(parser.next(), parser.getVars());
+				if (pair == null) continue;
+				rows++;
+				dataSize += 8 + utf8Length(pair[0]) + utf8Length(pair[1]);
+			}
+		} finally {
+			parser.close();
+		}
+		// Keep the table at most 70% full
+		long slots = 16;
+		while (slots * 7 < rows * 10) {
+			slots *= 2;
+		}
+		long dataStart = HEADER_SIZE + slots * 8;
+		indexFile.delete();
+		MappedFile out = new MappedFile(indexFile, dataStart + dataSize, true);
+		long entries = 0;
+		long dataEnd = dataStart;
+		parser = options.openParserFor(source);
+		try {
+			while (parser.hasNext()) {
+				String[] pair = toPair(parser.next(), parser.getVars());
+				if (pair == null) continue;
+				byte[] key = pair[0].getBytes(StandardCharsets.UTF_8);
+				long[] hash = Murmur3.hash128(key, 0, key.length, 0);
+				long fingerprint = hash[1] >>> 40;
+				long slot = hash[0] & (slots - 1);
+				boolean duplicate = false;
+				while (true) {
+					long value = out.getLong(HEADER_SIZE + slot * 8);
+					if (value == 0) break;
+					if ((value >>> 40) == fingerprint
+							&& keyEquals(out, dataStart + (value & OFFSET_MASK) - 1, key)) {
+						duplicate = true;
+						break;
+					}
+					slot = (slot + 1) & (slots - 1);
+				}
+				if (duplicate) continue;
+				long offset = dataEnd - dataStart + 1;
+				if (offset > OFFSET_MASK) {
+					throw new TarqlException("Lookup index too large: " + indexFile);
+				}
+				out.putLong(HEADER_SIZE + slot * 8, (fingerprint << 40) | offset);
+				byte[] value = pair[1].getBytes(StandardCharsets.UTF_8);
+				out.putInt(dataEnd, key.length);
+				out.put(dataEnd + 4, key);
+				out.putInt(dataEnd + 4 + key.length, value.length);
+				out.put(dataEnd + 8 + key.length, value);
+				dataEnd += 8 + key.length + value.length;
+				entries++;
+			}
+		} finally {
+			parser.close();
+		}
+		out.put(0, MAGIC);
+		out.putInt(8, VERSION);
+		out.putLong(16, slots);
+		out.putLong(24, entries);
+		out.putLong(32, dataStart);
+		out.force();
+		return entries;
+	}
+
+	private final long lastModified;
+	private final MappedFile file;
+	private final long slots;
+	private final long entries;
+	private final long dataStart;
+
+	private LookupIndex(File file) throws IOException {
+		this.lastModified = file.lastModified();
+		if (!isIndex(file)) {
+			throw new IOException("Not a lookup index");
+		}
+		this.file = new MappedFile(file, file.length(), false);
+		if (this.file.getInt(8) != VERSION) {
+			throw new IOException("Unsupported version: " + this.file.getInt(8));
+		}
+		this.slots = this.file.getLong(16);
+		this.entries = this.file.getLong(24);
+		this.dataStart = this.file.getLong(32);
+	}
+
+	/**
+	 * @param key The key to look up
+	 * @return The value, or <code>null</code> if the key isn't in the index
+	 */
+	public String lookup(String key) {
+		byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+		long[] hash = Murmur3.hash128(bytes, 0, bytes.length, 0);
+		long fingerprint = hash[1] >>> 40;
+		long slot = hash[0] & (slots - 1);
+		while (true) {
+			long value = file.getLong(HEADER_SIZE + slot * 8);
+			if (value == 0) return null;
+			if ((value >>> 40) == fingerprint) {
+				long position = dataStart + (value & OFFSET_MASK) - 1;
+				if (keyEquals(file, position, bytes)) {
+					position += 4 + bytes.length;
+					byte[] result = new byte[file.getInt(position)];
+					file.get(position + 4, result);
+					return new String(result, StandardCharsets.UTF_8);
+				}
+			}
+			slot = (slot + 1) & (slots - 1);
+		}
+	}
+
+	/**
+	 * @return Number of distinct keys
+	 */
+	public long size() {
+		return entries;
+	}
+
+	private static boolean keyEquals(MappedFile file, long position, byte[] key) {
+		if (file.getInt(position) != key.length) return false;
+		byte[] stored = new byte[key.length];
+		file.get(position + 4, stored);
+		return Arrays.equals(stored, key);
+	}
+
+	private static String[] toPair(Binding binding, List<Var> vars) {
+		if (vars.size() < 3) {
+			// The ROWNUM column is always there
+			throw new TarqlException("Lookup index needs two columns, key and value");
+		}
+		Node key = binding.get(vars.get(0));
+		Node value = binding.get(vars.get(1));
+		if (key == null || value == null) return null;
+		return new String[] {key.getLiteralLexicalForm(), value.getLiteralLexicalForm()};
+	}
+
+	private static long utf8Length(String s) {
+		return s.getBytes(StandardCharsets.UTF_8).length;
+	}
+
+	/**
+	 * A file mapped into memory in segments, as a single mapping
+	 * cannot be larger than 2 GB.
+	 */
+	private static class MappedFile {
+		private final static int SEGMENT_BITS = 30;
+		private final static long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+		private final MappedByteBuffer[] segments;
+
+		MappedFile(File file, long size, boolean write) throws IOException {
+			RandomAccessFile raf = new RandomAccessFile(file, write ? "rw" : "r");
+			try {
+				if (write) raf.setLength(size);
+				FileChannel channel = raf.getChannel();
+				segments = new MappedByteBuffer[(int) ((size + SEGMENT_SIZE - 1) >> SEGMENT_BITS)];
+				for (int i = 0; i < segments.length; i++) {
+					long start = i * SEGMENT_SIZE;
+					segments[i] = channel.map(write ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY,
+							start, Math.min(SEGMENT_SIZE, size - start));
+				}
+			} finally {
+				// Mappings stay valid after closing
+				raf.close();
+			}
+		}
+
+		private ByteBuffer segment(long position) {
+			return segments[(int) (position >> SEGMENT_BITS)];
+		}
+
+		private static int offset(long position) {
+			return (int) (position & (SEGMENT_SIZE - 1));
+		}
+
+		private boolean fits(long position, int length) {
+			return offset(position) + length <= SEGMENT_SIZE;
+		}
+
+		long getLong(long position) {
+			if (fits(position, 8)) return segment(position).getLong(offset(position));
+			byte[] bytes = new byte[8];
+			get(position, bytes);
+			return ByteBuffer.wrap(bytes).getLong();
+		}
+
+		int getInt(long position) {
+			if (fits(position, 4)) return segment(position).getInt(offset(position));
+			byte[] bytes = new byte[4];
+			get(position, bytes);
+			return ByteBuffer.wrap(bytes).getInt();
+		}
+
+		void get(long position, byte[] dst) {
+			for (int i = 0; i < dst.length; i++) {
+				if (fits(position + i, dst.length - i)) {
+					ByteBuffer segment = segment(position + i).duplicate();
+					segment.position(offset(position + i));
+					segment.get(dst, i, dst.length - i);
+					return;
+				}
+				dst[i] = segment(position + i).get(offset(position + i));
+			}
+		}
+
+		void putLong(long position, long value) {
+			if (fits(position, 8)) {
+				segment(position).putLong(offset(position), value);
+				return;
+			}
+			put(position, ByteBuffer.allocate(8).putLong(value).array());
+		}
+
+		void putInt(long position, int value) {
+			if (fits(position, 4)) {
+				segment(position).putInt(offset(position), value);
+				return;
+			}
+			put(position, ByteBuffer.allocate(4).putInt(value).array());
+		}
+
+		void put(long position, byte[] src) {
+			for (int i = 0; i < src.length; i++) {
+				if (fits(position + i, src.length - i)) {
+					ByteBuffer segment = segment(position + i).duplicate();
+					segment.position(offset(position + i));
+					segment.put(src, i, src.length - i);
+					return;
+				}
+				segment(position + i).put(offset(position + i), src[i]);
+			}
+		}
+
+		void force() {
+			for (MappedByteBuffer segment: segments) {
+				segment.force();
+			}
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package org.deri.tarql.functions;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.deri.tarql.CSVParser;
+import org.deri.tarql.InputStreamSource;
+import org.deri.tarql.TarqlException;
+import org.deri.tarql.URLOptionsParser;
+
+
+/**
+ * A secondary CSV file, such as a code list or crosswalk, held in a
+ * hash index on one of its columns for {@link LookupFunction}. Each
+ * table is loaded once per key column and shared by all queries; a
+ * local file is loaded again if it has been modified.
+ * <p>
+ * If a key occurs in several rows, the first row wins.
+ */
+public class LookupTable {
+	private final static Map<String, LookupTable> cache = new HashMap<String, LookupTable>();
+
+	/**
+	 * Gets a table, loading it if it isn't loaded yet.
+	 *
+	 * @param table File name or IRI of the CSV file, optionally with options as in FROM clauses, e.g., <code>codes.csv#delimiter=;</code>
+	 * @param keyColumn Name of the column to index
+	 * @return The table
+	 * @throws TarqlException if the file cannot be read or has no such column
+	 */
+	public static LookupTable load(String table, String keyColumn) {
+		String cacheKey = keyColumn + " " + table;
+		synchronized (cache) {
+			LookupTable result = cache.get(cacheKey);
+			if (result == null || result.isModified()) {
+				result = new LookupTable(table, keyColumn);
+				cache.put(cacheKey, result);
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Unloads all tables.
+	 */
+	public static void clearCache() {
+		synchronized (cache) {
+			cache.clear();
+		}
+	}
+
+	private final File file;
+	private final long lastModified;
+	private final Map<String, Integer> columns = new HashMap<String, Integer>();
+	private final Map<String, String[]> rows = new HashMap<String, String[]>();
+
+	private LookupTable(String table, String keyColumn) {
+		URLOptionsParser parseResult = new URLOptionsParser(table);
+		File f = new File(parseResult.getRemainingURL());
+		this.file = f.isFile() ? f : null;
+		this.lastModified = file == null ? 0 : file.lastModified();
+		CSVParser parser;
+		try {
+			parser = parseResult.getOptions().openParserFor(
+					InputStreamSource.fromFilenameOrIRI(parseResult.getRemainingURL()));
+		} catch (IOException ex) {
+			throw new TarqlException("Error reading lookup table " + table + ": " + ex.getMessage(), ex);
+		}
+		try {
+			List<Var> vars = null;
+			int key = -1;
+			while (parser.hasNext()) {
+				Binding binding = parser.next();
+				if (vars == null) {
+					// Column names are known once the first row is in
+					vars = parser.getVars();
+					key = vars.indexOf(Var.alloc(keyColumn));
+					if (key < 0) {
+						throw new TarqlException("Lookup table " + table + " has no column ?" + keyColumn);
+					}
+				}
+				String[] row = new String[vars.size()];
+				for (int i = 0; i < row.length; i++) {
+					Node value = binding.get(vars.get(i));
+					row[i] = value == null ? null : value.getLiteralLexicalForm();
+				}
+				if (row[key] != null && !rows.containsKey(row[key])) {
+					rows.put(row[key], row);
+				}
+			}
+			if (vars != null) {
+				for (int i = 0; i < vars.size(); i++) {
+					columns.put(vars.get(i).getName(), i);
+				}
+			}
+		} finally {
+			parser.close();
+		}
+	}
+
+	/**
+	 * @param key The key to look up
+	 * @param valueColumn Name of the column whose value to return
+	 * @return The value in the first row with the key, or <code>null</code>
+	 * 		if there is no such row or the value is empty
+	 * @throws TarqlException if there is no such column
+	 */
+	public String lookup(String key, String valueColumn) {
+		Integer column = columns.get(valueColumn);
+		if (column == null && !rows.isEmpty()) {
+			throw new TarqlException("Lookup table has no column ?" + valueColumn);
+		}
+		String[] row = rows.get(key);
+		return row == null ? null : row[column];
+	}
+
+	/**
+	 * @return Number of distinct keys
+	 */
+	public int size() {
+		return rows.size();
+	}
+
+	private boolean isModified() {
+		return file != null && file.lastModified() != lastModified;
+	}
+}
@@ -0,0 +1,27 @@
+package org.deri.tarql.functions;
+
+import org.apache.jena.shared.PrefixMapping;
+import org.apache.jena.sparql.expr.Expr;
+import org.apache.jena.sparql.expr.ExprList;
+import org.apache.jena.sparql.function.Function;
+
+
+/**
+ * A function whose calls can be simplified once the mapping they
+ * occur in is known, before it is executed. Typically, a call with
+ * constant arguments is replaced with its result, so that it isn't
+ * evaluated again for every row.
+ * <p>
+ * This is done for all calls in BIND and FILTER expressions when a
+ * {@link org.deri.tarql.TarqlQueryExecution} prepares the queries.
+ */
+public interface SpecializableFunction extends Function {
+
+	/**
+	 * @param args Arguments of a call of the function
+	 * @param prefixes The prefixes of the mapping, as they will be in
+	 * 		the context at execution time
+	 * @return An equivalent expression, or <code>null</code> to keep the call
+	 */
+	Expr specialize(ExprList args, PrefixMapping prefixes);
+}
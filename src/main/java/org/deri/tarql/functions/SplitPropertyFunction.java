@@ -0,0 +1,154 @@
+package org.deri.tarql.functions;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.query.QueryBuildException;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.ExecutionContext;
+import org.apache.jena.sparql.engine.QueryIterator;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingFactory;
+import org.apache.jena.sparql.engine.binding.BindingMap;
+import org.apache.jena.sparql.engine.iterator.QueryIterNullIterator;
+import org.apache.jena.sparql.engine.iterator.QueryIterPlainWrapper;
+import org.apache.jena.sparql.expr.NodeValue;
+import org.apache.jena.sparql.pfunction.PropFuncArg;
+import org.apache.jena.sparql.pfunction.PropertyFunctionBase;
+import org.deri.tarql.TarqlQuery;
+import org.deri.tarql.tarql;
+
+
+/**
+ * The property function <code>?value tarql:split (?cell ";")</code>.
+ * Splits a multi-valued cell at each occurrence of a delimiter, and
+ * binds <code>?value</code> to each part in turn, for one triple per
+ * value. The delimiter is a plain string, not a regular expression,
+ * and an empty delimiter doesn't split. Parts are literals with the
+ * cell's language tag, if any.
+ * <p>
+ * An optional third argument, <code>true</code>, trims whitespace from
+ * each part. Empty parts are skipped, like empty cells. The subject can
+ * also be a list <code>(?value ?index)</code> to also bind the position
+ * of each value, starting at 1. If the cell is unbound, there are
+ * no results; use OPTIONAL to keep such rows.
+ * <p>
+ * Parts are found and bound one at a time as the query consumes them,
+ * without building a list of all parts first.
+ */
+public class SplitPropertyFunction extends PropertyFunctionBase {
+
+	public static String IRI = tarql.NS + "split";
+	public static String NAME = "tarql:split";
+
+	static {
+		TarqlQuery.registerFunctions();
+	}
+
+	public SplitPropertyFunction() {
+		super();
+	}
+
+	@Override
+	public void build(PropFuncArg argSubject, Node predicate, PropFuncArg argObject, ExecutionContext execCxt) {
+		if (argSubject.isList() && argSubject.getArgListSize() != 2) {
+			throw new QueryBuildException(NAME + ": subject must be ?value or (?value ?index)");
+		}
+		if (!argObject.isList() || argObject.getArgListSize() < 2 || argObject.getArgListSize() > 3) {
+			throw new QueryBuildException(NAME + ": object must be (?cell delimiter) or (?cell delimiter trim)");
+		}
+	}
+
+	@Override
+	public QueryIterator exec(Binding binding, PropFuncArg argSubject, Node predicate, PropFuncArg argObject, ExecutionContext execCxt) {
+		Node cell = resolve(argObject.getArg(0), binding);
+		Node delimiter = resolve(argObject.getArg(1), binding);
+		if (cell == null || !cell.isLiteral() || delimiter == null || !delimiter.isLiteral()) {
+			return QueryIterNullIterator.create(execCxt);
+		}
+		boolean trim = false;
+		if (argObject.getArgListSize() == 3) {
+			Node trimArg = resolve(argObject.getArg(2), binding);
+			trim = trimArg != null && NodeValue.makeNode(trimArg).getBoolean();
+		}
+		Node value = argSubject.isList() ? argSubject.getArg(0) : argSubject.getArg();
+		Node index = argSubject.isList() ? argSubject.getArg(1) : null;
+		return new QueryIterPlainWrapper(new Splitter(binding, cell.getLiteralLexicalForm(), cell.getLiteralLanguage(),
+				delimiter.getLiteralLexicalForm(), trim, value, index), execCxt);
+	}
+
+	private static Node resolve(Node node, Binding binding) {
+		return Var.isVar(node) ? binding.get(Var.alloc(node)) : node;
+	}
+
+	/**
+	 * Finds the next part only when asked for it.
+	 */
+	private static class Splitter implements Iterator<Binding> {
+		private final Binding parent;
+		private final String cell;
+		private final String lang;
+		private final String delimiter;
+		private final boolean trim;
+		private final Node value;
+		private final Node index;
+		private int position = 0;
+		private int count = 0;
+		private Binding next = null;
+
+		Splitter(Binding parent, String cell, String lang, String delimiter, boolean trim, Node value, Node index) {
+			this.parent = parent;
+			this.cell = cell;
+			this.lang = lang;
+			this.delimiter = delimiter;
+			this.trim = trim;
+			this.value = value;
+			this.index = index;
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (next == null && position <= cell.length()) {
+				int end = delimiter.isEmpty() ? -1 : cell.indexOf(delimiter, position);
+				if (end == -1) end = cell.length();
+				String part = cell.substring(position, end);
+				position = end + Math.max(delimiter.length(), 1);
+				if (trim) part = part.trim();
+				if (part.isEmpty()) continue;
+				count++;
+				next = bind(part);
+			}
+			return next != null;
+		}
+
+		@Override
+		public Binding next() {
+			if (!hasNext()) throw new NoSuchElementException();
+			Binding result = next;
+			next = null;
+			return result;
+		}
+
+		/**
+		 * @return The binding, or <code>null</code> if the part doesn't
+		 * 		match an already bound subject
+		 */
+		private Binding bind(String part) {
+			BindingMap result = BindingFactory.create(parent);
+			if (!bind(result, value, NodeFactory.createLiteral(part, lang))) return null;
+			if (index != null && !bind(result, index, NodeValue.makeInteger(count).asNode())) return null;
+			return result;
+		}
+
+		private boolean bind(BindingMap binding, Node node, Node value) {
+			if (!Var.isVar(node)) return node.equals(value);
+			Var var = Var.alloc(node);
+			Node bound = binding.get(var);
+			if (bound != null) return bound.equals(value);
+			binding.add(var, value);
+			return true;
+		}
+	}
+}
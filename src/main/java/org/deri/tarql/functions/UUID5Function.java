@@ -0,0 +1,99 @@
+package org.deri.tarql.functions;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.UUID;
+
+import org.apache.jena.atlas.lib.Lib;
+import org.apache.jena.query.QueryBuildException;
+import org.apache.jena.sparql.ARQInternalErrorException;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.expr.ExprEvalException;
+import org.apache.jena.sparql.expr.ExprList;
+import org.apache.jena.sparql.expr.NodeValue;
+import org.apache.jena.sparql.function.Function;
+import org.apache.jena.sparql.function.FunctionEnv;
+import org.deri.tarql.TarqlQuery;
+import org.deri.tarql.tarql;
+
+
+/**
+ * The function tarql:uuid5(namespace, ?a, ?b, ...). Returns the
+ * name-based (version 5) UUID of the values of the arguments after
+ * the first, as a string such as
+ * <code>10379530-47d8-5772-a25e-18508c035bc8</code>. The same names
+ * always give the same UUID. The namespace is a UUID, as a string or
+ * as a <code>urn:uuid:</code> IRI.
+ * <p>
+ * With a single name, the result is the standard UUID of that name.
+ * Several names are encoded as described in {@link ArgumentEncoder},
+ * without building a CONCAT string first.
+ */
+public class UUID5Function implements Function {
+
+	public static String IRI = tarql.NS + "uuid5";
+	public static String NAME = "tarql:uuid5";
+
+	static {
+		TarqlQuery.registerFunctions();
+	}
+
+	private final ArgumentEncoder encoder = new ArgumentEncoder(NAME);
+	private final MessageDigest sha1;
+	// The namespace of the last call; usually the same for every row
+	private String lastNamespace = null;
+	private byte[] namespaceBytes = null;
+
+	public UUID5Function() {
+		super();
+		try {
+			sha1 = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException ex) {
+			// Every Java platform has SHA-1
+			throw new ARQInternalErrorException(ex);
+		}
+	}
+
+	@Override
+	public NodeValue exec(Binding binding, ExprList args, String uri, FunctionEnv env) {
+		if (args == null) {
+			throw new ARQInternalErrorException("UUID5Function: Null args list");
+		}
+		byte[] namespace = getNamespace(encoder.toString(args.get(0).eval(binding, env)));
+		encoder.encode(binding, args, 1, env);
+		sha1.reset();
+		sha1.update(namespace);
+		sha1.update(encoder.getBuffer(), 0, encoder.getLength());
+		ByteBuffer hash = ByteBuffer.wrap(sha1.digest());
+		long msb = hash.getLong();
+		long lsb = hash.getLong();
+		msb = (msb & ~0xF000L) | 0x5000L;
+		lsb = (lsb & 0x3FFFFFFFFFFFFFFFL) | 0x8000000000000000L;
+		return NodeValue.makeString(new UUID(msb, lsb).toString());
+	}
+
+	private byte[] getNamespace(String namespace) {
+		if (!namespace.equals(lastNamespace)) {
+			String s = namespace.startsWith("urn:uuid:") ? namespace.substring(9) : namespace;
+			UUID uuid;
+			try {
+				uuid = UUID.fromString(s);
+			} catch (IllegalArgumentException ex) {
+				throw new ExprEvalException(NAME + ": namespace not a UUID: " + namespace);
+			}
+			namespaceBytes = ByteBuffer.allocate(16)
+					.putLong(uuid.getMostSignificantBits())
+					.putLong(uuid.getLeastSignificantBits()).array();
+			lastNamespace = namespace;
+		}
+		return namespaceBytes;
+	}
+
+	@Override
+	public void build(String uri, ExprList args) {
+		if (args.size() < 2) {
+			throw new QueryBuildException("Function '" + Lib.className(this) + "' takes at least two arguments");
+		}
+	}
+}
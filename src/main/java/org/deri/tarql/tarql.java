@@ -1,24 +1,49 @@
 package org.deri.tarql;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
 import java.net.JarURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map.Entry;
 import java.util.jar.Manifest;
+import java.util.zip.GZIPOutputStream;
 
+import org.apache.jena.datatypes.RDFDatatype;
 import org.apache.jena.atlas.io.IndentedWriter;
 import org.apache.jena.atlas.lib.Lib;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
 import org.apache.jena.graph.Triple;
+import org.apache.jena.query.Query;
 import org.apache.jena.query.QueryParseException;
+import org.apache.jena.query.ResultSet;
 import org.apache.jena.query.ResultSetFormatter;
 import org.apache.jena.shared.NotFoundException;
+import org.apache.jena.sparql.algebra.Algebra;
+import org.apache.jena.sparql.algebra.Op;
+import org.apache.jena.sparql.algebra.OpVisitorBase;
+import org.apache.jena.sparql.algebra.walker.Walker;
+import org.apache.jena.sparql.expr.E_Function;
+import org.apache.jena.sparql.expr.Expr;
+import org.apache.jena.sparql.expr.ExprFunctionN;
+import org.apache.jena.sparql.expr.ExprVisitorBase;
 import org.apache.jena.sparql.serializer.FmtTemplate;
 import org.apache.jena.sparql.serializer.SerializationContext;
 import org.apache.jena.util.iterator.ExtendedIterator;
 import org.apache.jena.util.iterator.NullIterator;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
+import org.deri.tarql.functions.LookupFunction;
+import org.deri.tarql.functions.LookupIndex;
 
 import jena.cmd.ArgDecl;
 import jena.cmd.CmdGeneral;
@@ -49,8 +74,9 @@ public class tarql extends CmdGeneral {
 		}
 		VERSION = version;
 		BUILD_DATE = date;
-		
-		TarqlQuery.registerFunctions();
+		// Jena initialization and function registration are deferred
+		// to exec(), so that --help, --version and argument errors
+		// don't pay for them
 	}
 	
 	public static void main(String... args) {
@@ -67,19 +93,77 @@ public class tarql extends CmdGeneral {
 	private final ArgDecl tabsArg = new ArgDecl(false, "tabs", "tab", "t");
 	private final ArgDecl quoteArg = new ArgDecl(true, "quotechar");
 	private final ArgDecl escapeArg = new ArgDecl(true, "escapechar", "p");
+	private final ArgDecl typesArg = new ArgDecl(true, "types");
+	private final ArgDecl dedupRowsArg = new ArgDecl(true, "dedup-rows");
+	private final ArgDecl dedupRowsByArg = new ArgDecl(true, "dedup-rows-by");
 	private final ArgDecl baseArg = new ArgDecl(true, "base");
 	private final ArgDecl writeBaseArg = new ArgDecl(false, "write-base");
 	private final ArgDecl dedupArg = new ArgDecl(true, "dedup");
+	private final ArgDecl lowCardinalityArg = new ArgDecl(true, "low-cardinality");
+	private final ArgDecl keyArg = new ArgDecl(true, "key");
+	private final ArgDecl memoArg = new ArgDecl(true, "memo");
+	private final ArgDecl serverArg = new ArgDecl(true, "server");
+	private final ArgDecl buildLookupArg = new ArgDecl(true, "build-lookup");
+	private final ArgDecl statsArg = new ArgDecl(false, "stats");
+	private final ArgDecl progressArg = new ArgDecl(false, "progress");
+	private final ArgDecl tailArg = new ArgDecl(true, "tail");
+	private final ArgDecl explainArg = new ArgDecl(false, "explain");
+	private final ArgDecl profileArg = new ArgDecl(false, "profile");
+	private final ArgDecl profileSampleArg = new ArgDecl(true, "profile-sample");
+	private final ArgDecl outputArg = new ArgDecl(true, "output", "o");
+	private final ArgDecl checkpointArg = new ArgDecl(true, "checkpoint");
+	private final ArgDecl checkpointIntervalArg = new ArgDecl(true, "checkpoint-interval");
+	private final ArgDecl resumeArg = new ArgDecl(false, "resume");
+	private final ArgDecl cacheArg = new ArgDecl(true, "cache");
+	private final ArgDecl cacheSizeArg = new ArgDecl(true, "cache-size");
+	private final ArgDecl cacheFastArg = new ArgDecl(false, "cache-fast");
+	private final ArgDecl deltaArg = new ArgDecl(true, "delta");
+	private final ArgDecl removedArg = new ArgDecl(true, "removed");
+	private final ArgDecl snapshotArg = new ArgDecl(true, "snapshot");
+	private final ArgDecl resultsArg = new ArgDecl(true, "results");
+	private final ArgDecl tdb2Arg = new ArgDecl(true, "tdb2");
+	private final ArgDecl tdb2BatchArg = new ArgDecl(true, "tdb2-batch");
+	private final ArgDecl graphPerFileArg = new ArgDecl(false, "graph-per-file");
 	
 	private String queryFile;
 	private List<String> csvFiles = new ArrayList<String>();
 	private boolean stdin = false;
 	private CSVOptions options = new CSVOptions();
 	private boolean testQuery = false;
+	private String resultsFormat = null;
 	private boolean writeNTriples = false;
 	private String baseIRI = null;
 	private boolean writeBase = false;
 	private int dedupWindowSize = 0;
+	private List<String> lowCardinalityColumns = new ArrayList<String>();
+	private List<String> keyColumns = new ArrayList<String>();
+	private Integer serverPort = null;
+	private File buildLookupFile = null;
+	private TarqlStats stats = null;
+	private boolean printStats = false;
+	private ProgressReporter progress = null;
+	private TarqlProfiler profiler = null;
+	private TarqlMemoizer memoizer = null;
+	private boolean explain = false;
+	private boolean explained = false;
+	private TailCheckpoint tail = null;
+	private final List<File> tailFiles = new ArrayList<File>();
+	private final List<TarqlQueryExecution> tailExecutions = new ArrayList<TarqlQueryExecution>();
+	private File outputFile = null;
+	private PrintStream out = System.out;
+	private File checkpointFile = null;
+	private long checkpointIntervalMillis = 60000;
+	private boolean resume = false;
+	private Checkpointer checkpointer = null;
+	private ResultCache cache = null;
+	private boolean cacheFast = false;
+	private File deltaBase = null;
+	private File removedFile = null;
+	private File snapshotFile = null;
+	private String tdb2Directory = null;
+	private int tdb2BatchSize = 100000;
+	private boolean graphPerFile = false;
+	private TDB2Loader tdb2Loader = null;
 	
 	private ExtendedIterator<Triple> resultTripleIterator = NullIterator.instance();
 	
@@ -88,9 +172,31 @@ public class tarql extends CmdGeneral {
 		
 		getUsage().startCategory("Output options");
 		add(testQueryArg,     "--test", "Show CONSTRUCT template and first rows only (for query debugging)");
+		add(explainArg,       "--explain", "Show rewritten query algebra, streamability and passes over the input; don't execute");
 		add(writeBaseArg,     "--write-base", "Write @base if output is Turtle");
 		add(nTriplesArg,      "--ntriples", "Write N-Triples instead of Turtle");
+		add(resultsArg,       "--results", "Format of SELECT results: csv (default), tsv, json, xml, or text (default with --test; holds all results in memory)");
 		add(dedupArg, "--dedup", "Window size in which to remove duplicate triples");
+		add(lowCardinalityArg, "--low-cardinality", "Columns with few distinct values, e.g., country,year; triples using only these are written once per value; ignored with --checkpoint");
+		add(keyArg,           "--key", "Columns with unique values, e.g., id; triples about subjects minted from these skip --dedup");
+		add(memoArg,          "--memo", "Cache up to this many results of expressions such as IRI(CONCAT(...)), REPLACE or SHA1, for repetitive inputs");
+		add(outputArg,        "-o   --output", "Write output to this file instead of STDOUT");
+		add(checkpointArg,    "--checkpoint", "Periodically save progress to this file, for --resume after a crash; needs --output and --ntriples");
+		add(checkpointIntervalArg, "--checkpoint-interval", "Seconds between checkpoints (default 60)");
+		add(resumeArg,        "--resume", "Continue from the --checkpoint file, discarding output written after it");
+		add(cacheArg,         "--cache", "Replay output from this cache directory if mapping, options, inputs and lookup tables are unchanged; other files the mapping reads are not checked");
+		add(cacheSizeArg,     "--cache-size", "Size limit of the --cache directory in MB (default 1024)");
+		add(cacheFastArg,     "--cache-fast", "With --cache, detect changed inputs by size and modification time instead of contents");
+		add(deltaArg,         "--delta", "Only write triples added since the previous run, given as N-Triples or --snapshot file");
+		add(removedArg,       "--removed", "With --delta, write triples removed since the previous run to this file");
+		add(snapshotArg,      "--snapshot", "Write sorted N-Triples of this run to this file, for --delta in the next run; gzipped if name ends in .gz");
+		add(tdb2Arg,          "--tdb2", "Load triples into the TDB2 database in this directory instead of writing them; bulk loads if empty");
+		add(tdb2BatchArg,     "--tdb2-batch", "With --tdb2, triples per write transaction if not bulk loading (default 100000)");
+		add(graphPerFileArg,  "--graph-per-file", "With --tdb2, load each input file into a named graph with the file's URI");
+		add(statsArg,         "--stats", "Print statistics as JSON to STDERR when done; also published via JMX");
+		add(progressArg,      "--progress", "Report progress and throughput to STDERR every 10 seconds");
+		add(profileArg,       "--profile", "Print time spent per query, expression and template triple to STDERR when done");
+		add(profileSampleArg, "--profile-sample", "With --profile, time one in this many calls (default 100)");
 
 		getUsage().startCategory("Input options");
 		add(stdinArg,         "--stdin", "Read input from STDIN instead of file");
@@ -101,8 +207,18 @@ public class tarql extends CmdGeneral {
 		add(encodingArg,      "-e   --encoding", "Override input file encoding (e.g., utf-8 or latin-1)");
 		add(withoutHeaderArg, "-H   --no-header-row", "Input file has no header row; use variable names ?a, ?b, ...");
 		add(withHeaderArg,    "--header-row", "Input file's first row is a header with variable names (default)");
+		add(typesArg,         "--types", "Datatypes of columns, e.g., price:decimal,qty:integer");
+		add(dedupRowsArg,     "--dedup-rows", "Skip input rows that repeat one of this many earlier rows, or \"all\"");
+		add(dedupRowsByArg,   "--dedup-rows-by", "With --dedup-rows, only compare these columns, e.g., id,date");
 		add(baseArg,          "--base", "Base IRI for resolving relative IRIs");
+		add(tailArg,          "--tail", "Only convert rows appended to the input files since the run that wrote this checkpoint file");
 		
+		getUsage().startCategory("Server mode");
+		add(serverArg,        "--server", "Run as HTTP server on the given local port, accepting jobs at /convert");
+
+		getUsage().startCategory("Lookup indexes");
+		add(buildLookupArg,   "--build-lookup", "Build this index file for tarql:lookup(index, ?key) from a key,value CSV file given instead of the query");
+
 		getUsage().startCategory("Main arguments");
 		getUsage().addUsage("query.sparql", "File containing a SPARQL query to be applied to an input file");
 		getUsage().addUsage("table.csv", "CSV/TSV file to be processed; can be omitted if specified in FROM clause");
@@ -121,12 +237,28 @@ public class tarql extends CmdGeneral {
 
 	@Override
 	protected void processModulesAndArgs() {
-		if (getPositional().isEmpty()) {
-			printHelp();
+		if (hasArg(serverArg)) {
+			try {
+				serverPort = Integer.parseInt(getValue(serverArg));
+			} catch (NumberFormatException ex) {
+				cmdError("Value of --server must be a port number");
+			}
+			return;
 		}
-		queryFile = getPositionalArg(0);
-		for (int i = 1; i < getPositional().size(); i++) {
-			csvFiles.add(getPositionalArg(i));
+		if (hasArg(buildLookupArg)) {
+			if (getPositional().size() != 1) {
+				cmdError("--build-lookup needs exactly one CSV file");
+			}
+			buildLookupFile = new File(getValue(buildLookupArg));
+			csvFiles.add(getPositionalArg(0));
+		} else {
+			if (getPositional().isEmpty()) {
+				printHelp();
+			}
+			queryFile = getPositionalArg(0);
+			for (int i = 1; i < getPositional().size(); i++) {
+				csvFiles.add(getPositionalArg(i));
+			}
 		}
 		if (hasArg(stdinArg)) {
 			stdin = true;
@@ -140,6 +272,28 @@ public class tarql extends CmdGeneral {
 		if (hasArg(testQueryArg)) {
 			testQuery = true;
 		}
+		resultsFormat = testQuery ? "text" : "csv";
+		if (hasArg(resultsArg)) {
+			resultsFormat = getValue(resultsArg).toLowerCase(Locale.ROOT);
+			if (!Arrays.asList("csv", "tsv", "json", "xml", "text").contains(resultsFormat)) {
+				cmdError("Value of --results must be csv, tsv, json, xml or text");
+			}
+		}
+		if (hasArg(tailArg)) {
+			if (stdin || csvFiles.isEmpty()) {
+				cmdError("--tail requires input files on the command line");
+			}
+			try {
+				tail = new TailCheckpoint(new File(getValue(tailArg)));
+			} catch (IOException ex) {
+				cmdError("Cannot read checkpoint: " + ex.getMessage());
+			} catch (NumberFormatException ex) {
+				cmdError("Bad checkpoint file: " + ex.getMessage());
+			}
+		}
+		if (hasArg(explainArg)) {
+			explain = true;
+		}
 		if (hasArg(encodingArg)) {
 			options.setEncoding(getValue(encodingArg));
 		}
@@ -164,12 +318,198 @@ public class tarql extends CmdGeneral {
 		if (hasArg(escapeArg)) {
 			options.setEscapeChar(getCharValue(escapeArg));
 		}
+		if (hasArg(typesArg)) {
+			try {
+				for (Entry<String, RDFDatatype> entry: 
+						CSVOptions.parseColumnTypes(getValue(typesArg)).entrySet()) {
+					options.setColumnType(entry.getKey(), entry.getValue());
+				}
+			} catch (IllegalArgumentException ex) {
+				cmdError("Bad value for --types: " + ex.getMessage());
+			}
+		}
+		if (hasArg(lowCardinalityArg)) {
+			for (String column: getValue(lowCardinalityArg).split(",")) {
+				if (!column.trim().isEmpty()) {
+					lowCardinalityColumns.add(column.trim());
+				}
+			}
+		}
+		if (hasArg(dedupRowsArg)) {
+			String value = getValue(dedupRowsArg);
+			if ("all".equals(value)) {
+				// Window size 0 compares against all rows
+				options.setDuplicateRowWindow(0);
+			} else {
+				int window = -1;
+				try {
+					window = Integer.parseInt(value);
+				} catch (NumberFormatException ex) {
+					// Reported below
+				}
+				if (window <= 0) {
+					cmdError("Value of --dedup-rows must be integer > 0 or \"all\"");
+				}
+				options.setDuplicateRowWindow(window);
+			}
+		}
+		if (hasArg(dedupRowsByArg)) {
+			if (!hasArg(dedupRowsArg)) {
+				cmdError("--dedup-rows-by requires --dedup-rows");
+			}
+			List<String> columns = new ArrayList<String>();
+			for (String column: getValue(dedupRowsByArg).split(",")) {
+				if (!column.trim().isEmpty()) {
+					columns.add(column.trim());
+				}
+			}
+			options.setDuplicateRowKeyColumns(columns);
+		}
+		if (hasArg(keyArg)) {
+			for (String column: getValue(keyArg).split(",")) {
+				if (!column.trim().isEmpty()) {
+					keyColumns.add(column.trim());
+				}
+			}
+		}
 		if (hasArg(baseArg)) {
 			baseIRI = getValue(baseArg);
 		}
 		if (hasArg(writeBaseArg)) {
 			writeBase = true;
 		}
+		if (hasArg(statsArg)) {
+			stats = new TarqlStats();
+			printStats = true;
+		}
+		if (hasArg(progressArg)) {
+			if (stats == null) {
+				stats = new TarqlStats();
+			}
+			progress = new ProgressReporter(stats, System.err, 10000);
+		}
+		if (hasArg(profileArg)) {
+			int sampleRate = 100;
+			if (hasArg(profileSampleArg)) {
+				try {
+					sampleRate = Integer.parseInt(getValue(profileSampleArg));
+				} catch (NumberFormatException ex) {
+					sampleRate = -1;
+				}
+				if (sampleRate < 1) {
+					cmdError("Value of --profile-sample must be integer >= 1");
+				}
+			}
+			profiler = new TarqlProfiler(sampleRate);
+		}
+		if (hasArg(memoArg)) {
+			int size = -1;
+			try {
+				size = Integer.parseInt(getValue(memoArg));
+			} catch (NumberFormatException ex) {
+				// Reported below
+			}
+			if (size < 1) {
+				cmdError("Value of --memo must be integer >= 1");
+			}
+			memoizer = new TarqlMemoizer(size);
+			memoizer.setStats(stats);
+		}
+		if (hasArg(outputArg)) {
+			outputFile = new File(getValue(outputArg));
+		}
+		if (hasArg(checkpointArg)) {
+			if (outputFile == null || !writeNTriples) {
+				cmdError("--checkpoint requires --output and --ntriples");
+			}
+			if (stdin || csvFiles.isEmpty() || tail != null) {
+				cmdError("--checkpoint requires input files on the command line, and cannot be combined with --tail");
+			}
+			checkpointFile = new File(getValue(checkpointArg));
+			if (hasArg(checkpointIntervalArg)) {
+				try {
+					checkpointIntervalMillis = Long.parseLong(getValue(checkpointIntervalArg)) * 1000;
+				} catch (NumberFormatException ex) {
+					checkpointIntervalMillis = -1;
+				}
+				if (checkpointIntervalMillis < 0) {
+					cmdError("Value of --checkpoint-interval must be integer >= 0");
+				}
+			}
+		}
+		if (hasArg(resumeArg)) {
+			if (checkpointFile == null) {
+				cmdError("--resume requires --checkpoint");
+			}
+			resume = true;
+		}
+		if (hasArg(deltaArg)) {
+			if (!hasArg(removedArg)) {
+				cmdError("--delta requires --removed");
+			}
+			deltaBase = new File(getValue(deltaArg));
+			if (!deltaBase.isFile()) {
+				cmdError("File not found: " + deltaBase);
+			}
+		}
+		if (hasArg(removedArg)) {
+			if (deltaBase == null) {
+				cmdError("--removed requires --delta");
+			}
+			removedFile = new File(getValue(removedArg));
+		}
+		if (hasArg(snapshotArg)) {
+			snapshotFile = new File(getValue(snapshotArg));
+		}
+		if ((deltaBase != null || snapshotFile != null) && checkpointFile != null) {
+			cmdError("--delta and --snapshot cannot be combined with --checkpoint");
+		}
+		if (hasArg(tdb2Arg)) {
+			if (deltaBase != null || snapshotFile != null || checkpointFile != null || hasArg(cacheArg)) {
+				cmdError("--tdb2 cannot be combined with --delta, --snapshot, --checkpoint or --cache");
+			}
+			tdb2Directory = getValue(tdb2Arg);
+			if (hasArg(tdb2BatchArg)) {
+				try {
+					tdb2BatchSize = Integer.parseInt(getValue(tdb2BatchArg));
+				} catch (NumberFormatException ex) {
+					tdb2BatchSize = -1;
+				}
+				if (tdb2BatchSize < 1) {
+					cmdError("Value of --tdb2-batch must be integer >= 1");
+				}
+			}
+			graphPerFile = hasArg(graphPerFileArg);
+		} else if (hasArg(graphPerFileArg)) {
+			cmdError("--graph-per-file requires --tdb2");
+		}
+		if (hasArg(cacheArg)) {
+			if (deltaBase != null || snapshotFile != null) {
+				cmdError("--cache cannot be combined with --delta or --snapshot");
+			}
+			if (stdin || csvFiles.isEmpty() || tail != null || checkpointFile != null
+					|| hasArg(explainArg) || hasArg(profileArg)) {
+				cmdError("--cache requires input files on the command line, and cannot be combined with " +
+						"--tail, --checkpoint, --explain or --profile");
+			}
+			long cacheSize = 1024;
+			if (hasArg(cacheSizeArg)) {
+				try {
+					cacheSize = Long.parseLong(getValue(cacheSizeArg));
+				} catch (NumberFormatException ex) {
+					cacheSize = -1;
+				}
+				if (cacheSize < 0) {
+					cmdError("Value of --cache-size must be integer >= 0");
+				}
+			}
+			try {
+				cache = new ResultCache(new File(getValue(cacheArg)), cacheSize * 1024 * 1024);
+			} catch (IOException ex) {
+				cmdError(ex.getMessage());
+			}
+			cacheFast = hasArg(cacheFastArg);
+		}
 		if (hasArg(dedupArg)) {
 			if (getValue(dedupArg) == null) {
 				cmdError("--dedup needs an integer value");
@@ -188,36 +528,77 @@ public class tarql extends CmdGeneral {
 	@Override
 	protected void exec() {
 		initLogging();
+		TarqlQuery.registerFunctions();
+		if (serverPort != null) {
+			runServer();
+			return;
+		}
+		if (buildLookupFile != null) {
+			buildLookup();
+			return;
+		}
+		ResultCache.Recording recording = null;
 		try {
+			if (printStats) {
+				stats.registerMBean(queryFile);
+			}
 			TarqlQuery q = baseIRI == null
 					? new TarqlParser(queryFile).getResult()
 					: new TarqlParser(queryFile, baseIRI).getResult();
 			if (testQuery) {
 				q.makeTest();
 			}
-			if (stdin) {
-				processResults(TarqlQueryExecutionFactory.create(q, 
-						InputStreamSource.fromStdin(), options));
-			} else if (csvFiles.isEmpty()) {
-				processResults(TarqlQueryExecutionFactory.create(q, options));
+			if (memoizer != null) {
+				memoizer.instrument(q);
+			}
+			if (profiler != null) {
+				profiler.instrument(q);
+			}
+			if (progress != null) {
+				progress.setTotalBytes(getTotalInputSize(q));
+				progress.start();
+			}
+			if (checkpointFile != null) {
+				checkpointer = resume
+						? Checkpointer.resume(checkpointFile, outputFile, checkpointIntervalMillis)
+						: Checkpointer.start(checkpointFile, outputFile, checkpointIntervalMillis);
+				out = new PrintStream(checkpointer.getOutputStream(), false, "utf-8");
+			} else if (outputFile != null) {
+				out = new PrintStream(new FileOutputStream(outputFile), false, "utf-8");
+			}
+			if (tdb2Directory != null) {
+				tdb2Loader = new TDB2Loader(tdb2Directory, tdb2BatchSize);
+			}
+			ResultCache.Key cacheKey = cache == null ? null : getCacheKey(q);
+			if (cacheKey != null && cache.replay(cacheKey, out)) {
+				Logger.getLogger("org.deri.tarql").info("Replayed output from cache: " + cacheKey.getHash());
 			} else {
-				for (String csvFile: csvFiles) {
-					URLOptionsParser parseResult = new URLOptionsParser(csvFile);
-					processResults(TarqlQueryExecutionFactory.create(q, 
-							InputStreamSource.fromFilenameOrIRI(parseResult.getRemainingURL()), 
-							parseResult.getOptions(options)));
+				if (cacheKey != null) {
+					recording = cache.record(cacheKey, out);
+					out = new PrintStream(recording, false, "utf-8");
 				}
+				convert(q);
+			}
+			if (tdb2Loader != null) {
+				tdb2Loader.finish();
+				Logger.getLogger("org.deri.tarql").info("Loaded " + tdb2Loader.getTriples() + " triples into " + tdb2Directory);
+				tdb2Loader = null;
 			}
-			if (resultTripleIterator.hasNext()) {
-				StreamingRDFWriter writer = new StreamingRDFWriter(System.out, resultTripleIterator);
-				writer.setDedupWindowSize(dedupWindowSize);
-				if (writeNTriples) {
-					writer.writeNTriples();
-				} else {
-					writer.writeTurtle(
-							q.getPrologue().getBaseURI(),
-							q.getPrologue().getPrefixMapping(), writeBase);
+			if (tail != null) {
+				for (int i = 0; i < tailFiles.size(); i++) {
+					tail.update(tailFiles.get(i), tailExecutions.get(i).getRowCount());
 				}
+				tail.save();
+			}
+			out.flush();
+			if (recording != null) {
+				recording.commit();
+				recording = null;
+			}
+			if (checkpointer != null) {
+				checkpointer.finish();
+			} else if (outputFile != null) {
+				out.close();
 			}
 		} catch (NotFoundException ex) {
 			error("Not found", ex);
@@ -227,9 +608,211 @@ public class tarql extends CmdGeneral {
 			error("Error parsing SPARQL query", ex);
 		} catch (TarqlException ex) {
 			error(null, ex);
+		} finally {
+			if (recording != null) {
+				recording.discard();
+			}
+			if (tdb2Loader != null) {
+				tdb2Loader.abort(new TarqlException("Conversion failed"));
+			}
+			if (progress != null) {
+				progress.stop();
+			}
+			if (profiler != null) {
+				out.flush();
+				System.err.print(profiler.report());
+			}
+			if (printStats) {
+				stats.finish();
+				stats.unregisterMBean();
+				out.flush();
+				System.err.println(stats.toJSON());
+			}
+		}
+	}
+
+	/**
+	 * Reads the input files and writes the results of the mapping.
+	 */
+	private void convert(TarqlQuery q) throws IOException {
+		if (stdin) {
+			processResults(TarqlQueryExecutionFactory.create(q, 
+					InputStreamSource.fromStdin(), options), null);
+		} else if (csvFiles.isEmpty()) {
+			processResults(TarqlQueryExecutionFactory.create(q, options), null);
+		} else {
+			for (int i = 0; i < csvFiles.size(); i++) {
+				URLOptionsParser parseResult = new URLOptionsParser(csvFiles.get(i));
+				if (tail != null) {
+					processTail(q, new File(parseResult.getRemainingURL()), parseResult.getOptions(options));
+					continue;
+				}
+				if (checkpointer != null && i < checkpointer.getResumeInput()) continue;
+				TarqlQueryExecution ex = TarqlQueryExecutionFactory.create(q, 
+						InputStreamSource.fromFilenameOrIRI(parseResult.getRemainingURL()), 
+						parseResult.getOptions(options));
+				if (checkpointer != null) {
+					ex.setCheckpointer(checkpointer, i);
+					if (i == checkpointer.getResumeInput()) {
+						ex.setResumePoint(checkpointer.getResumeQuery(), checkpointer.getResumeRow());
+					}
+				}
+				processResults(ex, getGraph(parseResult.getRemainingURL()));
+			}
+		}
+		if (deltaBase != null || snapshotFile != null) {
+			writeDelta();
+		} else if (resultTripleIterator.hasNext()) {
+			StreamingRDFWriter writer = new StreamingRDFWriter(out, resultTripleIterator);
+			writer.setDedupWindowSize(dedupWindowSize);
+			writer.setStats(stats);
+			writer.setCheckpointer(checkpointer);
+			if (writeNTriples) {
+				writer.writeNTriples();
+			} else {
+				writer.writeTurtle(
+						q.getPrologue().getBaseURI(),
+						q.getPrologue().getPrefixMapping(), writeBase);
+			}
+		}
+	}
+
+	/**
+	 * Writes the triples added since the previous run, or all triples
+	 * if there is none, sorted as N-Triples. Also writes removed triples
+	 * and the snapshot, if requested.
+	 */
+	private void writeDelta() throws IOException {
+		TripleDelta delta = new TripleDelta(64 * 1024 * 1024, null);
+		OutputStream removedOut = null;
+		OutputStream snapshotOut = null;
+		try {
+			if (removedFile != null) {
+				removedOut = new FileOutputStream(removedFile);
+			}
+			if (snapshotFile != null) {
+				snapshotOut = new FileOutputStream(snapshotFile);
+				if (snapshotFile.getName().endsWith(".gz")) {
+					snapshotOut = new GZIPOutputStream(snapshotOut, 65536);
+				}
+			}
+			delta.compute(deltaBase, resultTripleIterator, out, removedOut, snapshotOut);
+		} finally {
+			if (removedOut != null) removedOut.close();
+			if (snapshotOut != null) snapshotOut.close();
+		}
+		if (deltaBase != null) {
+			Logger.getLogger("org.deri.tarql").info("Delta: " + delta.getAdded() + " added, " +
+					delta.getRemoved() + " removed, " + delta.getUnchanged() + " unchanged");
+		}
+	}
+
+	/**
+	 * Hashes everything that determines the output, or returns
+	 * <code>null</code> if the mapping, an input, or a lookup table
+	 * or index is not a local file. Lookup indexes are identified by
+	 * path, size and modification time.
+	 */
+	private ResultCache.Key getCacheKey(TarqlQuery q) throws IOException {
+		File mapping = new File(queryFile);
+		if (!mapping.isFile()) return null;
+		ResultCache.Key result = new ResultCache.Key()
+				.add("version", VERSION)
+				.add("mapping", new String(Files.readAllBytes(mapping.toPath()), StandardCharsets.UTF_8))
+				.add("base", baseIRI)
+				.add("ntriples", Boolean.toString(writeNTriples))
+				.add("write-base", Boolean.toString(writeBase))
+				.add("dedup", Integer.toString(dedupWindowSize))
+				.add("low-cardinality", lowCardinalityColumns.toString())
+				.add("key", keyColumns.toString())
+				.add("test", Boolean.toString(testQuery))
+				.add("results", resultsFormat);
+		for (String csvFile: csvFiles) {
+			URLOptionsParser parseResult = new URLOptionsParser(csvFile);
+			File file = new File(parseResult.getRemainingURL());
+			if (!file.isFile()) return null;
+			result.add("options", parseResult.getOptions(options).toString());
+			result.addFile(file, cacheFast);
+		}
+		for (E_Function lookup: getLookupCalls(q)) {
+			Expr table = lookup.getArg(1);
+			if (!table.isConstant() || !table.getConstant().isString()) return null;
+			if (lookup.numArgs() == 2) {
+				// A LookupIndex file; too large to hash on every run
+				File file = new File(table.getConstant().asString());
+				if (!file.isFile()) return null;
+				result.addFile(file, true);
+				continue;
+			}
+			URLOptionsParser parseResult = new URLOptionsParser(table.getConstant().asString());
+			File file = new File(parseResult.getRemainingURL());
+			if (!file.isFile()) return null;
+			result.add("lookup", parseResult.getOptions().toString());
+			result.addFile(file, cacheFast);
+		}
+		return result;
+	}
+
+	/**
+	 * Finds all calls of tarql:lookup in the mapping, whose
+	 * tables are inputs too.
+	 */
+	private static List<E_Function> getLookupCalls(TarqlQuery q) {
+		final List<E_Function> result = new ArrayList<E_Function>();
+		for (Query query: q.getQueries()) {
+			Walker.walk(Algebra.compile(query), new OpVisitorBase(), new ExprVisitorBase() {
+				@Override
+				public void visit(ExprFunctionN func) {
+					if (func instanceof E_Function
+							&& LookupFunction.IRI.equals(((E_Function) func).getFunctionIRI())) {
+						result.add((E_Function) func);
+					}
+				}
+			});
+		}
+		return result;
+	}
+
+	private void buildLookup() {
+		URLOptionsParser parseResult = new URLOptionsParser(csvFiles.get(0));
+		try {
+			long keys = LookupIndex.build(
+					InputStreamSource.fromFilenameOrIRI(parseResult.getRemainingURL()),
+					parseResult.getOptions(options), buildLookupFile);
+			Logger.getLogger("org.deri.tarql").info("Wrote " + keys + " keys to " + buildLookupFile);
+		} catch (IOException ex) {
+			error("Cannot build lookup index", ex);
 		}
 	}
 
+	private void runServer() {
+		try {
+			TarqlServer server = new TarqlServer(serverPort);
+			server.start();
+			System.err.println("Tarql server listening on http://localhost:" + server.getPort() + "/convert");
+			// The server's threads keep the JVM alive
+		} catch (IOException ex) {
+			error("Cannot start server", ex);
+		}
+	}
+	
+	/**
+	 * The number of bytes that will be read from the input files,
+	 * or -1 if unknown, for example because input is from STDIN.
+	 * CONSTRUCT mappings make one pass over each input per query.
+	 */
+	private long getTotalInputSize(TarqlQuery q) {
+		if (stdin || csvFiles.isEmpty()) return -1;
+		long total = 0;
+		for (String csvFile: csvFiles) {
+			File file = new File(new URLOptionsParser(csvFile).getRemainingURL());
+			if (!file.isFile()) return -1;
+			total += file.length();
+		}
+		Query first = q.getQueries().get(0);
+		return first.isConstructType() ? total * q.getQueries().size() : total;
+	}
+
 	private void error(String message, Throwable cause) {
 		Logger.getLogger("org.deri.tarql").info(message == null ? "Error" : message, cause);
 		if (message == null) {
@@ -251,23 +834,117 @@ public class tarql extends CmdGeneral {
 		return null;
 	}
 	
-	private void processResults(TarqlQueryExecution ex) throws IOException {
+	/**
+	 * @param graph With --tdb2 and --graph-per-file, the graph for the input
+	 */
+	private void processResults(TarqlQueryExecution ex, Node graph) throws IOException {
+		if (explain) {
+			// Explain only the first input, they'd all look the same
+			if (!explained) explain(ex);
+			explained = true;
+			return;
+		}
+		ex.setStats(stats);
+		ex.setProfiler(profiler);
+		ex.setLowCardinalityColumns(lowCardinalityColumns);
+		if (dedupWindowSize > 0 && tdb2Loader == null && deltaBase == null && snapshotFile == null) {
+			List<String> keys = new ArrayList<String>(keyColumns);
+			// Row numbers start over in each input
+			if (csvFiles.size() <= 1) {
+				keys.add(TarqlQuery.ROWNUM.getName());
+			}
+			ex.setKeyColumns(keys);
+		}
 		if (testQuery && ex.getFirstQuery().getConstructTemplate() != null) {
-			IndentedWriter out = new IndentedWriter(System.out); 
-			new FmtTemplate(out, new SerializationContext(ex.getFirstQuery())).format(ex.getFirstQuery().getConstructTemplate());
-			out.flush();
+			IndentedWriter w = new IndentedWriter(out); 
+			new FmtTemplate(w, new SerializationContext(ex.getFirstQuery())).format(ex.getFirstQuery().getConstructTemplate());
+			w.flush();
 		}
-		if (ex.getFirstQuery().isSelectType()) {
-			System.out.println(ResultSetFormatter.asText(ex.execSelect()));
-		} else if (ex.getFirstQuery().isAskType()) {
-			System.out.println(ResultSetFormatter.asText(ex.execSelect()));
+		if (ex.getFirstQuery().isSelectType() || ex.getFirstQuery().isAskType()) {
+			writeResults(ex.execSelect());
 		} else if (ex.getFirstQuery().isConstructType()) {
-			resultTripleIterator = resultTripleIterator.andThen(ex.execTriples());
+			if (tdb2Loader != null) {
+				tdb2Loader.load(ex, graph);
+			} else {
+				resultTripleIterator = resultTripleIterator.andThen(ex.execTriples());
+			}
 		} else {
 			cmdError("Only query forms CONSTRUCT, SELECT and ASK are supported");
 		}
 	}
 	
+	/**
+	 * Writes SELECT results in the --results format. All formats
+	 * except text write each row as it is produced.
+	 */
+	private void writeResults(ResultSet results) {
+		if ("csv".equals(resultsFormat)) {
+			ResultSetFormatter.outputAsCSV(out, results);
+		} else if ("tsv".equals(resultsFormat)) {
+			ResultSetFormatter.outputAsTSV(out, results);
+		} else if ("json".equals(resultsFormat)) {
+			ResultSetFormatter.outputAsJSON(out, results);
+		} else if ("xml".equals(resultsFormat)) {
+			ResultSetFormatter.outputAsXML(out, results);
+		} else {
+			// Needs all results to compute column widths
+			out.println(ResultSetFormatter.asText(results));
+		}
+		out.flush();
+	}
+
+	private void processTail(TarqlQuery q, File file, CSVOptions fileOptions) throws IOException {
+		boolean hasHeader = !Boolean.FALSE.equals(fileOptions.hasColumnNamesInFirstRow());
+		InputStreamSource source = tail.open(file, hasHeader);
+		CSVOptions tailOptions = new CSVOptions(fileOptions);
+		tailOptions.setFirstRowNumber(tail.getFirstRowNumber(file));
+		TarqlQueryExecution ex = TarqlQueryExecutionFactory.create(q, source, tailOptions);
+		tailFiles.add(file);
+		tailExecutions.add(ex);
+		processResults(ex, getGraph(file.getPath()));
+	}
+
+	private Node getGraph(String input) {
+		if (!graphPerFile) return null;
+		File file = new File(input);
+		return NodeFactory.createURI(file.exists() ? file.toURI().toString() : input);
+	}
+
+	private void explain(TarqlQueryExecution ex) {
+		Query first = ex.getFirstQuery();
+		boolean construct = first.isConstructType();
+		List<Op> algebra = ex.getAlgebra();
+		if (!construct) {
+			// Only the first query is executed
+			algebra = algebra.subList(0, 1);
+		}
+		int passes = 0;
+		boolean streaming = true;
+		for (int i = 0; i < algebra.size(); i++) {
+			StreamabilityAnalyzer analyzer = new StreamabilityAnalyzer(algebra.get(i));
+			out.println("Query " + (i + 1) + ":");
+			out.print(StreamabilityAnalyzer.hideCSVTable(algebra.get(i))
+					.toString(first.getPrologue().getPrefixMapping()));
+			if (analyzer.isStreaming()) {
+				out.println("Streams in constant memory: yes");
+			} else {
+				out.println("Streams in constant memory: no");
+				for (String blocker: analyzer.getBlockers()) {
+					out.println("  - " + blocker);
+				}
+				streaming = false;
+			}
+			out.println("Passes over the input: " + analyzer.getPasses());
+			out.println();
+			passes += analyzer.getPasses();
+		}
+		out.println("Total: " + passes + (passes == 1 ? " pass" : " passes") + " over each input, " +
+				(streaming ? "streaming in constant memory" : "NOT streaming in constant memory"));
+		if (stdin && passes > 1) {
+			out.println("Warning: Input from STDIN can only be read once");
+		}
+	}
+
 	// Not sure if this really works...
 	private void initLogging() {
 		if (isQuiet()) {
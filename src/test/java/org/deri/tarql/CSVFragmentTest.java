@@ -2,6 +2,9 @@ package org.deri.tarql;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.jena.datatypes.xsd.XSDDatatype;
 
 import org.junit.Test;
 
@@ -144,4 +147,19 @@ public class CSVFragmentTest {
 		assertEquals('\\', options("file.csv#escapechar=backslash").getEscapeChar().charValue());
 		assertNull(options("file.csv#escapechar=foo").getEscapeChar());
 	}
+	
+	@Test
+	public void testExtractTypes() {
+		parse("file.csv#types=price:decimal,qty:xsd:integer;header=present");
+		assertEquals("file.csv", remainingURL);
+		assertEquals(XSDDatatype.XSDdecimal, options.getColumnTypes().get("price"));
+		assertEquals(XSDDatatype.XSDinteger, options.getColumnTypes().get("qty"));
+	}
+	
+	@Test
+	public void testRetainUnknownTypes() {
+		parse("file.csv#types=price:foo");
+		assertEquals("file.csv#types=price:foo", remainingURL);
+		assertTrue(options.getColumnTypes().isEmpty());
+	}
 }
@@ -8,8 +8,14 @@ import static org.junit.Assert.assertEquals;
 import java.io.IOException;
 import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.jena.datatypes.RDFDatatype;
 
 import org.apache.jena.sparql.core.Var;
 import org.apache.jena.sparql.engine.binding.Binding;
@@ -202,6 +208,85 @@ public class CSVParserTest {
 				removePseudoVars(readCSV(csv, true, '\\').next()));
 	}
 	
+	@Test
+	public void testTypedColumns() throws IOException {
+		String csv = "price,qty,name\n1.50, 3 ,x";
+		Map<String, RDFDatatype> types = CSVOptions.parseColumnTypes("price:decimal,qty:integer,name:string");
+		CSVParser parser = new CSVParser(new StringReader(csv), true, null, '"', null, types);
+		assertEquals(binding(vars("price", "qty", "name"), "1.50", "3", "\"x\""), 
+				removePseudoVars(parser.next()));
+	}
+	
+	@Test
+	public void testInvalidTypedValueIsUnbound() throws IOException {
+		String csv = "qty\nabc\n5";
+		Map<String, RDFDatatype> types = CSVOptions.parseColumnTypes("qty:integer");
+		CSVParser parser = new CSVParser(new StringReader(csv), true, null, '"', null, types);
+		assertEquals(null, parser.next().get(Var.alloc("qty")));
+		assertEquals(binding(vars("qty"), "5"), removePseudoVars(parser.next()));
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testUnknownColumnType() {
+		CSVOptions.parseColumnTypes("qty:foo");
+	}
+	
+	@Test
+	public void testSkipAllDuplicateRows() throws IOException {
+		CSVParser parser = readCSV("a,b\nx,1\ny,2\nx,1\ny,2\nx,2", true);
+		parser.setDuplicateRowRemoval(0, null);
+		assertEquals(binding(vars("a", "b"), "\"x\"", "\"1\""), removePseudoVars(parser.next()));
+		assertEquals(binding(vars("a", "b"), "\"y\"", "\"2\""), removePseudoVars(parser.next()));
+		Binding last = parser.next();
+		assertEquals(binding(vars("a", "b"), "\"x\"", "\"2\""), removePseudoVars(last));
+		// Skipped rows don't get a row number
+		assertEquals("3", last.get(TarqlQuery.ROWNUM).getLiteralLexicalForm());
+		assertEquals(false, parser.hasNext());
+	}
+	
+	@Test
+	public void testSkipDuplicateRowsInWindow() throws IOException {
+		CSVParser parser = readCSV("1\n2\n1\n3\n1\n", false);
+		parser.setDuplicateRowRemoval(2, null);
+		List<String> values = new ArrayList<String>();
+		while (parser.hasNext()) {
+			values.add(parser.next().get(Var.alloc("a")).getLiteralLexicalForm());
+		}
+		assertEquals(Arrays.asList("1", "2", "3", "1"), values);
+	}
+	
+	@Test
+	public void testSkipDuplicateRowsByKey() throws IOException {
+		CSVParser parser = readCSV("id,v\n1,x\n1,y\n2,x", true);
+		parser.setDuplicateRowRemoval(0, Arrays.asList("id"));
+		assertEquals(binding(vars("id", "v"), "\"1\"", "\"x\""), removePseudoVars(parser.next()));
+		assertEquals(binding(vars("id", "v"), "\"2\"", "\"x\""), removePseudoVars(parser.next()));
+		assertEquals(false, parser.hasNext());
+	}
+	
+	@Test(expected=TarqlException.class)
+	public void testUnknownDuplicateRowKey() throws IOException {
+		CSVParser parser = readCSV("id,v\n1,x\n1,y", true);
+		parser.setDuplicateRowRemoval(0, Arrays.asList("foo"));
+	}
+	
+	@Test
+	public void testDuplicateRowWindowMatchesModel() {
+		// Compare against a straightforward implementation, with many removals from the hash table
+		RowDeduplicator dedup = new RowDeduplicator(50);
+		LinkedList<String> window = new LinkedList<String>();
+		Random random = new Random(42);
+		for (int i = 0; i < 20000; i++) {
+			String value = Integer.toString(random.nextInt(200));
+			boolean expected = window.contains(value);
+			if (!expected) {
+				window.add(value);
+				if (window.size() > 50) window.removeFirst();
+			}
+			assertEquals(expected, dedup.isDuplicate(new String[] {value}, null));
+		}
+	}
+	
 	private static CSVParser readCSV(String csv, boolean varsFromHeader) throws IOException {
 		return new CSVParser(new StringReader(csv), varsFromHeader, null, '"', null);
 	}
@@ -0,0 +1,226 @@
+package org.deri.tarql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.jena.graph.Triple;
+import org.apache.jena.shared.impl.PrefixMappingImpl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class CheckpointerTest {
+	private final static String PREFIX = "PREFIX ex: <http://example.com/> ";
+	private File checkpointFile;
+	private File outputFile;
+	private List<String> lowCardinalityColumns = new ArrayList<String>();
+
+	@Before
+	public void setUp() throws IOException {
+		checkpointFile = File.createTempFile("tarql-checkpoint", ".properties");
+		checkpointFile.delete();
+		outputFile = File.createTempFile("tarql-checkpoint", ".nt");
+	}
+
+	@After
+	public void tearDown() {
+		checkpointFile.delete();
+		outputFile.delete();
+	}
+
+	@Test
+	public void testResumeTruncatesOutput() throws IOException {
+		Checkpointer checkpointer = Checkpointer.start(checkpointFile, outputFile, 0);
+		checkpointer.getOutputStream().write("done\n".getBytes(StandardCharsets.UTF_8));
+		checkpointer.save(1, 2, 42);
+		checkpointer.getOutputStream().write("partial".getBytes(StandardCharsets.UTF_8));
+		checkpointer.getOutputStream().close();
+		checkpointer = Checkpointer.resume(checkpointFile, outputFile, 0);
+		assertEquals(1, checkpointer.getResumeInput());
+		assertEquals(2, checkpointer.getResumeQuery());
+		assertEquals(42, checkpointer.getResumeRow());
+		checkpointer.getOutputStream().write("more\n".getBytes(StandardCharsets.UTF_8));
+		checkpointer.finish();
+		assertEquals("done\nmore\n", read());
+		assertFalse(checkpointFile.exists());
+	}
+
+	@Test
+	public void testResumeWithoutCheckpointStartsOver() throws IOException {
+		Files.write(outputFile.toPath(), "old".getBytes(StandardCharsets.UTF_8));
+		Checkpointer checkpointer = Checkpointer.resume(checkpointFile, outputFile, 0);
+		assertEquals(0, checkpointer.getResumeInput());
+		assertEquals(0, checkpointer.getResumeRow());
+		checkpointer.finish();
+		assertEquals("", read());
+	}
+
+	@Test
+	public void testResumedOutputEqualsUninterrupted() throws IOException {
+		String query = PREFIX + "CONSTRUCT { ?s ex:value ?a. ex:x ex:y ex:z } WHERE { BIND (IRI(CONCAT('http://example.com/', STR(?ROWNUM))) AS ?s) }";
+		List<String> inputs = new ArrayList<String>();
+		inputs.add(csv(3000));
+		inputs.add(csv(2000));
+		String expected = convert(query, inputs, Long.MAX_VALUE, false);
+		// Crash in the middle of the second input; the constant triple is written once per input
+		assertTrue(crashes(query, inputs, 4500));
+		Checkpointer checkpointer = Checkpointer.resume(checkpointFile, outputFile, 0);
+		assertEquals(1, checkpointer.getResumeInput());
+		assertEquals(0, checkpointer.getResumeQuery());
+		assertTrue(checkpointer.getResumeRow() > 0);
+		checkpointer.getOutputStream().close();
+		assertEquals(expected, convert(query, inputs, Long.MAX_VALUE, true));
+		assertFalse(checkpointFile.exists());
+	}
+
+	@Test
+	public void testResumeWithSeveralBindingsPerRow() throws IOException {
+		// Each row gives three bindings; a checkpoint must not fall between them
+		String query = PREFIX + "CONSTRUCT { ?s ?p ?a } WHERE { BIND (IRI(CONCAT('http://example.com/', ?a)) AS ?s) " +
+				"{ BIND (ex:p1 AS ?p) } UNION { BIND (ex:p2 AS ?p) } UNION { BIND (ex:p3 AS ?p) } }";
+		List<String> inputs = new ArrayList<String>();
+		inputs.add(csv(3000));
+		String expected = convert(query, inputs, Long.MAX_VALUE, false);
+		assertEquals(9000, expected.split("\n").length);
+		assertTrue(crashes(query, inputs, 6000));
+		Checkpointer checkpointer = Checkpointer.resume(checkpointFile, outputFile, 0);
+		assertTrue(checkpointer.getResumeRow() > 0);
+		checkpointer.getOutputStream().close();
+		assertEquals(expected, convert(query, inputs, Long.MAX_VALUE, true));
+	}
+
+	@Test
+	public void testResumeWithLowCardinalityColumns() throws IOException {
+		// The second template triple is produced once per value of ?b
+		String query = PREFIX + "CONSTRUCT { ?s ex:value ?a. ex:types ex:type ?b } WHERE { " +
+				"BIND (IRI(CONCAT('http://example.com/', ?a)) AS ?s) }";
+		StringBuilder csv = new StringBuilder("a,b\n");
+		for (int i = 0; i < 3000; i++) {
+			csv.append("v").append(i).append(",t").append(i % 3).append('\n');
+		}
+		List<String> inputs = new ArrayList<String>();
+		inputs.add(csv.toString());
+		lowCardinalityColumns.add("b");
+		String expected = convert(query, inputs, Long.MAX_VALUE, false);
+		assertTrue(crashes(query, inputs, 4000));
+		Checkpointer checkpointer = Checkpointer.resume(checkpointFile, outputFile, 0);
+		assertTrue(checkpointer.getResumeRow() > 0);
+		checkpointer.getOutputStream().close();
+		assertEquals(expected, convert(query, inputs, Long.MAX_VALUE, true));
+	}
+
+	@Test
+	public void testResumeAfterCompleteQuery() throws IOException {
+		// ORDER BY is checkpointed only when the query is complete
+		String query = PREFIX + "CONSTRUCT { ?s ex:value ?a } WHERE { BIND (IRI(CONCAT('http://example.com/', ?a)) AS ?s) } ORDER BY DESC(?a) " +
+				"CONSTRUCT { ?s ex:row ?ROWNUM } WHERE { BIND (IRI(CONCAT('http://example.com/', ?a)) AS ?s) }";
+		List<String> inputs = new ArrayList<String>();
+		inputs.add(csv(2000));
+		String expected = convert(query, inputs, Long.MAX_VALUE, false);
+		assertTrue(crashes(query, inputs, 2500));
+		Checkpointer checkpointer = Checkpointer.resume(checkpointFile, outputFile, 0);
+		assertEquals(0, checkpointer.getResumeQuery());
+		assertEquals(-1, checkpointer.getResumeRow());
+		checkpointer.getOutputStream().close();
+		assertEquals(expected, convert(query, inputs, Long.MAX_VALUE, true));
+	}
+
+	@Test
+	public void testTurtleNotSupported() throws IOException {
+		StreamingRDFWriter writer = new StreamingRDFWriter(System.out, new ArrayList<Triple>().iterator());
+		Checkpointer checkpointer = Checkpointer.start(checkpointFile, outputFile, 0);
+		writer.setCheckpointer(checkpointer);
+		try {
+			writer.writeTurtle(null, new PrefixMappingImpl(), false);
+			fail("Expected IllegalStateException");
+		} catch (IllegalStateException ex) {
+			// expected
+		} finally {
+			checkpointer.finish();
+		}
+	}
+
+	private boolean crashes(String query, List<String> inputs, long crashAfter) throws IOException {
+		try {
+			convert(query, inputs, crashAfter, false);
+			return false;
+		} catch (IllegalStateException ex) {
+			return true;
+		}
+	}
+
+	private String convert(String query, List<String> inputs, final long crashAfter, boolean resume) throws IOException {
+		TarqlQuery tq = new TarqlParser(new StringReader(query)).getResult();
+		Checkpointer checkpointer = resume
+				? Checkpointer.resume(checkpointFile, outputFile, 0)
+				: Checkpointer.start(checkpointFile, outputFile, 0);
+		List<Iterator<Triple>> results = new ArrayList<Iterator<Triple>>();
+		for (int i = checkpointer.getResumeInput(); i < inputs.size(); i++) {
+			TarqlQueryExecution ex = TarqlQueryExecutionFactory.create(tq,
+					InputStreamSource.fromString(inputs.get(i)));
+			ex.setCheckpointer(checkpointer, i);
+			ex.setLowCardinalityColumns(lowCardinalityColumns);
+			if (i == checkpointer.getResumeInput()) {
+				ex.setResumePoint(checkpointer.getResumeQuery(), checkpointer.getResumeRow());
+			}
+			results.add(ex.execTriples());
+		}
+		final Iterator<Iterator<Triple>> queue = results.iterator();
+		Iterator<Triple> triples = new Iterator<Triple>() {
+			private Iterator<Triple> current = queue.next();
+			private long count = 0;
+			@Override
+			public boolean hasNext() {
+				while (!current.hasNext()) {
+					if (!queue.hasNext()) return false;
+					current = queue.next();
+				}
+				return true;
+			}
+			@Override
+			public Triple next() {
+				if (++count > crashAfter) {
+					throw new IllegalStateException("Crash");
+				}
+				hasNext();
+				return current.next();
+			}
+		};
+		StreamingRDFWriter writer = new StreamingRDFWriter(checkpointer.getOutputStream(), triples);
+		writer.setDedupWindowSize(100);
+		writer.setCheckpointer(checkpointer);
+		try {
+			writer.writeNTriples();
+		} catch (IllegalStateException ex) {
+			checkpointer.getOutputStream().close();
+			throw ex;
+		}
+		checkpointer.finish();
+		return read();
+	}
+
+	private static String csv(int rows) {
+		StringBuilder result = new StringBuilder("a\n");
+		for (int i = 0; i < rows; i++) {
+			result.append("v").append(i).append('\n');
+		}
+		return result.toString();
+	}
+
+	private String read() throws IOException {
+		return new String(Files.readAllBytes(outputFile.toPath()), StandardCharsets.UTF_8);
+	}
+
+}
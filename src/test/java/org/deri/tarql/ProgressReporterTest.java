@@ -0,0 +1,38 @@
+package org.deri.tarql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+
+public class ProgressReporterTest {
+
+	@Test
+	public void testReportWithoutTotal() {
+		TarqlStats stats = new TarqlStats();
+		ProgressReporter reporter = new ProgressReporter(stats, System.err, 1000);
+		reporter.start();
+		reporter.stop();
+		for (int i = 0; i < 1500; i++) {
+			stats.rowParsed();
+		}
+		String report = reporter.report(System.nanoTime());
+		assertTrue(report, report.startsWith("Progress: 1,500 rows ("));
+		assertTrue(report, report.endsWith("0 triples (0/s), 0 B read"));
+	}
+
+	@Test
+	public void testFormatBytes() {
+		assertEquals("512 B", ProgressReporter.formatBytes(512));
+		assertEquals("1.5 KB", ProgressReporter.formatBytes(1536));
+		assertEquals("2.0 MB", ProgressReporter.formatBytes(2 * 1024 * 1024));
+		assertEquals("3.0 GB", ProgressReporter.formatBytes(3L * 1024 * 1024 * 1024));
+	}
+
+	@Test
+	public void testFormatDuration() {
+		assertEquals("0:00:05", ProgressReporter.formatDuration(5999));
+		assertEquals("1:01:01", ProgressReporter.formatDuration(3661000));
+	}
+}
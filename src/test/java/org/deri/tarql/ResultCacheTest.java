@@ -0,0 +1,199 @@
+package org.deri.tarql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.deri.tarql.functions.LookupIndex;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class ResultCacheTest {
+	private File directory;
+	private File input;
+	private File mapping;
+	private File output;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("tarql-cache").toFile();
+		input = File.createTempFile("tarql-cache", ".csv");
+		write(input, "a\n1\n");
+		mapping = File.createTempFile("tarql-cache", ".sparql");
+		write(mapping, "SELECT ?a {}");
+		output = File.createTempFile("tarql-cache", ".out");
+	}
+
+	@After
+	public void tearDown() {
+		for (File f: directory.listFiles()) {
+			f.delete();
+		}
+		directory.delete();
+		input.delete();
+		mapping.delete();
+		output.delete();
+	}
+
+	@Test
+	public void testReplaysRecordedOutput() throws IOException {
+		ResultCache cache = new ResultCache(directory, 1024 * 1024);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertFalse(cache.replay(key(), out));
+		ResultCache.Recording recording = cache.record(key(), out);
+		recording.write("<a> <b> <c> .\n".getBytes(StandardCharsets.UTF_8));
+		recording.commit();
+		assertEquals("<a> <b> <c> .\n", out.toString("utf-8"));
+		out.reset();
+		assertTrue(cache.replay(key(), out));
+		assertEquals("<a> <b> <c> .\n", out.toString("utf-8"));
+	}
+
+	@Test
+	public void testDiscardedRecordingIsNotCached() throws IOException {
+		ResultCache cache = new ResultCache(directory, 1024 * 1024);
+		ResultCache.Recording recording = cache.record(key(), new ByteArrayOutputStream());
+		recording.write(1);
+		recording.discard();
+		assertFalse(cache.replay(key(), new ByteArrayOutputStream()));
+		assertEquals(0, directory.listFiles().length);
+	}
+
+	@Test
+	public void testKeyDependsOnSettingsAndContents() throws IOException {
+		String hash = key().getHash();
+		assertEquals(hash, key().getHash());
+		assertNotEquals(hash, new ResultCache.Key().add("mapping", "CONSTRUCT {} WHERE {}")
+				.add("options", new CSVOptions().toString()).addFile(input, false).getHash());
+		CSVOptions tsv = new CSVOptions();
+		tsv.setDefaultsForTSV();
+		assertNotEquals(hash, new ResultCache.Key().add("mapping", "CONSTRUCT {} WHERE {} ")
+				.add("options", tsv.toString()).addFile(input, false).getHash());
+		write(input, "a\n2\n");
+		assertNotEquals(hash, key().getHash());
+	}
+
+	@Test
+	public void testKeyDependsOnSplitBetweenValues() {
+		assertNotEquals(new ResultCache.Key().add("a", "bc").getHash(),
+				new ResultCache.Key().add("ab", "c").getHash());
+	}
+
+	@Test
+	public void testEvictsLeastRecentlyUsed() throws IOException {
+		ResultCache cache = new ResultCache(directory, 3000);
+		ResultCache.Key[] keys = new ResultCache.Key[3];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = new ResultCache.Key().add("run", Integer.toString(i));
+			ResultCache.Recording recording = cache.record(keys[i], new ByteArrayOutputStream());
+			// Random bytes don't compress
+			byte[] bytes = new byte[1200];
+			new Random(i).nextBytes(bytes);
+			recording.write(bytes);
+			recording.commit();
+			new File(directory, keys[i].getHash() + ".gz").setLastModified(1000000000000L + i * 10000);
+			if (i == 1) {
+				// Use the first entry, so that the second is the oldest
+				cache.replay(keys[0], new ByteArrayOutputStream());
+			}
+		}
+		assertTrue(cache.replay(keys[0], new ByteArrayOutputStream()));
+		assertFalse(cache.replay(keys[1], new ByteArrayOutputStream()));
+		assertTrue(cache.replay(keys[2], new ByteArrayOutputStream()));
+	}
+
+	@Test
+	public void testResultsFormatsAreCachedSeparately() throws IOException {
+		String csv = run("--results", "csv");
+		String json = run("--results", "json");
+		assertNotEquals(csv, json);
+		assertTrue(json.contains("\"vars\""));
+		assertEquals(2, directory.listFiles().length);
+		assertEquals(csv, run("--results", "csv"));
+		assertEquals(json, run("--results", "json"));
+	}
+
+	@Test
+	public void testLookupTablesAreInputs() throws IOException {
+		File table = File.createTempFile("tarql-cache", ".csv");
+		try {
+			write(table, "k,v\n1,x\n");
+			write(mapping, "PREFIX tarql: <http://tarql.github.io/tarql#>\n" +
+					"SELECT ?v { BIND (tarql:lookup('" + table.getPath() + "', 'k', ?a, 'v') AS ?v) }");
+			assertTrue(run().contains("x"));
+			write(table, "k,v\n1,y\n");
+			assertTrue(run().contains("y"));
+			assertEquals(2, directory.listFiles().length);
+		} finally {
+			table.delete();
+		}
+	}
+
+	@Test
+	public void testLookupIndexesAreInputs() throws IOException {
+		File index = File.createTempFile("tarql-cache", ".idx");
+		try {
+			CSVOptions options = new CSVOptions();
+			options.setColumnNamesInFirstRow(true);
+			LookupIndex.build(InputStreamSource.fromString("k,v\n1,x\n"), options, index);
+			index.setLastModified(1000000000000L);
+			write(mapping, "PREFIX tarql: <http://tarql.github.io/tarql#>\n" +
+					"SELECT ?v { BIND (tarql:lookup('" + index.getPath() + "', ?a) AS ?v) }");
+			assertTrue(run().contains("x"));
+			LookupIndex.build(InputStreamSource.fromString("k,v\n1,y\n"), options, index);
+			index.setLastModified(1000000010000L);
+			assertTrue(run().contains("y"));
+			assertEquals(2, directory.listFiles().length);
+		} finally {
+			index.delete();
+		}
+	}
+
+	@Test
+	public void testComputedLookupTableIsNotCached() throws IOException {
+		File table = File.createTempFile("tarql-cache", ".csv");
+		try {
+			write(table, "k,v\n1,x\n");
+			String name = table.getPath();
+			write(mapping, "PREFIX tarql: <http://tarql.github.io/tarql#>\n" +
+					"SELECT ?v { BIND (tarql:lookup(CONCAT('" + name.substring(0, name.length() - 4) + "', '.csv'), " +
+					"'k', ?a, 'v') AS ?v) }");
+			assertTrue(run().contains("x"));
+			assertEquals(0, directory.listFiles().length);
+		} finally {
+			table.delete();
+		}
+	}
+
+	/**
+	 * Runs the command line tool with the cache directory, mapping
+	 * and input, and returns its output.
+	 */
+	private String run(String... args) throws IOException {
+		String[] allArgs = new String[args.length + 6];
+		System.arraycopy(args, 0, allArgs, 0, args.length);
+		System.arraycopy(new String[] {"--cache", directory.getPath(), "--output", output.getPath(),
+				mapping.getPath(), input.getPath()}, 0, allArgs, args.length, 6);
+		assertEquals(0, new tarql(allArgs).mainRun(false, false));
+		return new String(Files.readAllBytes(output.toPath()), StandardCharsets.UTF_8);
+	}
+
+	private ResultCache.Key key() throws IOException {
+		return new ResultCache.Key().add("mapping", "CONSTRUCT {} WHERE {} ")
+				.add("options", new CSVOptions().toString()).addFile(input, false);
+	}
+
+	private static void write(File file, String contents) throws IOException {
+		Files.write(file.toPath(), contents.getBytes(StandardCharsets.UTF_8));
+	}
+}
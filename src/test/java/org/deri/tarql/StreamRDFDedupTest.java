@@ -52,6 +52,16 @@ public class StreamRDFDedupTest {
 		assertEquals(triples("<a> <a> <a>", "<b> <b> <b>", "<c> <c> <c>", "<a> <a> <a>"), received);
 	}
 	
+	@Test public void shouldNotRememberRowUniqueTriples() {
+		StreamRDF dedup = new StreamRDFDedup(new MockStreamRDF(), 1);
+		dedup.start();
+		dedup.triple(triple("<a> <a> <a>"));
+		dedup.triple(new RowUniqueTriple(triple("<b> <b> <b>")));
+		dedup.triple(triple("<a> <a> <a>"));
+		dedup.finish();
+		assertEquals(triples("<a> <a> <a>", "<b> <b> <b>"), received);
+	}
+	
 	private class MockStreamRDF implements StreamRDF {
 		@Override public void start() {}
 		@Override public void triple(Triple triple) { received.add(triple); }
@@ -0,0 +1,85 @@
+package org.deri.tarql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+
+import org.apache.jena.sparql.algebra.Op;
+import org.junit.Test;
+
+
+public class StreamabilityAnalyzerTest {
+
+	@Test
+	public void testSimpleQueryStreams() throws IOException {
+		StreamabilityAnalyzer analyzer = analyze(
+				"CONSTRUCT { ?s <http://example.com/a> ?a } { BIND (IRI(?a) AS ?s) FILTER (BOUND(?b)) }");
+		assertTrue(analyzer.isStreaming());
+		assertTrue(analyzer.getBlockers().isEmpty());
+		assertEquals(1, analyzer.getPasses());
+	}
+
+	@Test
+	public void testOrderBy() throws IOException {
+		assertBlocker("SELECT * {} ORDER BY ?a", "ORDER BY");
+	}
+
+	@Test
+	public void testGroupBy() throws IOException {
+		assertBlocker("SELECT ?a (COUNT(*) AS ?n) {} GROUP BY ?a", "GROUP BY");
+	}
+
+	@Test
+	public void testDistinct() throws IOException {
+		assertBlocker("SELECT DISTINCT ?a {}", "DISTINCT");
+	}
+
+	@Test
+	public void testOptionalAgainstTable() throws IOException {
+		assertBlocker("SELECT * { OPTIONAL { BIND (?a AS ?x) } }", "OPTIONAL");
+	}
+
+	@Test
+	public void testSubSelect() throws IOException {
+		assertBlocker("SELECT * { { SELECT ?x { BIND (1 AS ?x) } } }", "Sub-select");
+	}
+
+	@Test
+	public void testMultipleQueries() throws IOException {
+		List<Op> algebra = algebra(
+				"CONSTRUCT { <http://example.com/s> <http://example.com/a> ?a } {}\n" +
+				"CONSTRUCT { <http://example.com/s> <http://example.com/b> ?b } {}");
+		assertEquals(2, algebra.size());
+		assertEquals(1, new StreamabilityAnalyzer(algebra.get(1)).getPasses());
+	}
+
+	@Test
+	public void testHideCSVTable() throws IOException {
+		Op op = StreamabilityAnalyzer.hideCSVTable(algebra("SELECT * {}").get(0));
+		assertFalse(op.toString().contains("\"x\""));
+		assertTrue(op.toString(), op.toString().contains("(table (vars ?a ?b ?ROWNUM))"));
+		assertEquals(0, new StreamabilityAnalyzer(op).getPasses());
+	}
+
+	private void assertBlocker(String query, String blocker) throws IOException {
+		StreamabilityAnalyzer analyzer = analyze(query);
+		assertFalse(analyzer.isStreaming());
+		assertEquals(1, analyzer.getBlockers().size());
+		assertTrue(analyzer.getBlockers().get(0), analyzer.getBlockers().get(0).startsWith(blocker));
+	}
+
+	private StreamabilityAnalyzer analyze(String query) throws IOException {
+		return new StreamabilityAnalyzer(algebra(query).get(0));
+	}
+
+	private List<Op> algebra(String query) throws IOException {
+		TarqlQuery tq = new TarqlParser(new StringReader(query), null).getResult();
+		CSVOptions options = new CSVOptions();
+		options.setColumnNamesInFirstRow(true);
+		return TarqlQueryExecutionFactory.create(tq, InputStreamSource.fromString("a,b\nx,y\n"), options).getAlgebra();
+	}
+}
@@ -0,0 +1,69 @@
+package org.deri.tarql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.query.ReadWrite;
+import org.apache.jena.sparql.core.DatasetGraph;
+import org.apache.jena.tdb2.DatabaseMgr;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class TDB2LoaderTest {
+	private final static String QUERY = "PREFIX ex: <http://example.com/> CONSTRUCT { ex:s ex:p ?a } {}";
+	private final static Node G1 = NodeFactory.createURI("http://example.com/g1");
+	private final static Node G2 = NodeFactory.createURI("http://example.com/g2");
+	private DatasetGraph dataset;
+
+	@Before
+	public void setUp() {
+		// In-memory TDB2 dataset
+		dataset = DatabaseMgr.createDatasetGraph();
+	}
+
+	@Test
+	public void testBulkLoadsFreshDatasetIntoGraphs() throws IOException {
+		TDB2Loader loader = new TDB2Loader(dataset, 2);
+		assertTrue(loader.isBulk());
+		loader.load(execution("a\nx\ny\nz\n"), G1);
+		loader.load(execution("a\nw\n"), G2);
+		loader.finish();
+		assertEquals(4, loader.getTriples());
+		assertEquals(3, countTriples(G1));
+		assertEquals(1, countTriples(G2));
+	}
+
+	@Test
+	public void testLoadsInTransactionsIfNotEmpty() throws IOException {
+		TDB2Loader loader = new TDB2Loader(dataset, 2);
+		loader.load(execution("a\nv\n"), null);
+		loader.finish();
+		loader = new TDB2Loader(dataset, 2);
+		assertFalse(loader.isBulk());
+		loader.load(execution("a\nx\ny\nz\n"), G1);
+		loader.finish();
+		assertEquals(1, countTriples(null));
+		assertEquals(3, countTriples(G1));
+	}
+
+	private TarqlQueryExecution execution(String csv) throws IOException {
+		TarqlQuery tq = new TarqlParser(new StringReader(QUERY), null).getResult();
+		return TarqlQueryExecutionFactory.create(tq, InputStreamSource.fromString(csv));
+	}
+
+	private long countTriples(Node graph) {
+		dataset.begin(ReadWrite.READ);
+		try {
+			return graph == null ? dataset.getDefaultGraph().size() : dataset.getGraph(graph).size();
+		} finally {
+			dataset.end();
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package org.deri.tarql;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+
+import org.apache.jena.query.ResultSet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class TailCheckpointTest {
+	private File input;
+	private File checkpointFile;
+
+	@Before
+	public void setUp() throws IOException {
+		input = File.createTempFile("tarql-tail", ".csv");
+		checkpointFile = File.createTempFile("tarql-tail", ".properties");
+		checkpointFile.delete();
+	}
+
+	@After
+	public void tearDown() {
+		input.delete();
+		checkpointFile.delete();
+	}
+
+	@Test
+	public void testConvertsOnlyNewRows() throws IOException {
+		write("a\nx\ny\n", false);
+		assertEquals("x1 y2 ", run());
+		assertEquals("", run());
+		write("z\n", true);
+		assertEquals("z3 ", run());
+	}
+
+	@Test
+	public void testIgnoresIncompleteLastLine() throws IOException {
+		write("a\nx\ny", false);
+		assertEquals("x1 ", run());
+		write("y\n", true);
+		assertEquals("yy2 ", run());
+	}
+
+	@Test
+	public void testRewrittenFileIsConvertedInFull() throws IOException {
+		write("a\nx\ny\n", false);
+		run();
+		write("a\nq\nr\ns\n", false);
+		assertEquals("q1 r2 s3 ", run());
+	}
+
+	@Test
+	public void testChangedHeaderIsConvertedInFull() throws IOException {
+		write("a\nx\n", false);
+		run();
+		write("b\nx\ny\n", false);
+		assertEquals("x1 y2 ", run("b"));
+	}
+
+	private String run() throws IOException {
+		return run("a");
+	}
+
+	private String run(String column) throws IOException {
+		TailCheckpoint checkpoint = new TailCheckpoint(checkpointFile);
+		InputStreamSource source = checkpoint.open(input, true);
+		CSVOptions options = new CSVOptions();
+		options.setColumnNamesInFirstRow(true);
+		options.setFirstRowNumber(checkpoint.getFirstRowNumber(input));
+		TarqlQuery tq = new TarqlParser(new StringReader(
+				"SELECT (CONCAT(?" + column + ", STR(?ROWNUM)) AS ?x) {}"), null).getResult();
+		TarqlQueryExecution ex = TarqlQueryExecutionFactory.create(tq, source, options);
+		StringBuilder result = new StringBuilder();
+		ResultSet rs = ex.execSelect();
+		while (rs.hasNext()) {
+			result.append(rs.next().getLiteral("x").getLexicalForm()).append(' ');
+		}
+		checkpoint.update(input, ex.getRowCount());
+		checkpoint.save();
+		return result.toString();
+	}
+
+	private void write(String data, boolean append) throws IOException {
+		OutputStream out = new FileOutputStream(input, append);
+		out.write(data.getBytes("utf-8"));
+		out.close();
+	}
+}
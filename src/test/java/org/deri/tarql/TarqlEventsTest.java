@@ -0,0 +1,74 @@
+package org.deri.tarql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+
+public class TarqlEventsTest {
+
+	@Test
+	public void testEventsAreRecorded() throws IOException {
+		assumeTrue(TarqlEvents.AVAILABLE);
+		StringBuilder csv = new StringBuilder("a\n");
+		for (int i = 0; i < TarqlEvents.BATCH_SIZE + 10; i++) {
+			csv.append(i % 100).append('\n');
+		}
+		TarqlQuery tq = new TarqlParser(new StringReader(
+				"CONSTRUCT { <http://example.com/s> <http://example.com/p> ?a } {}"), null).getResult();
+		CSVOptions options = new CSVOptions();
+		options.setColumnNamesInFirstRow(true);
+
+		File file = File.createTempFile("tarql", ".jfr");
+		Recording recording = new Recording();
+		try {
+			recording.enable("org.deri.tarql.RowBatch");
+			recording.enable("org.deri.tarql.TablePass");
+			recording.enable("org.deri.tarql.QueryExecution");
+			recording.enable("org.deri.tarql.DedupEvictions");
+			recording.enable("org.deri.tarql.OutputWrite").withThreshold(java.time.Duration.ZERO);
+			recording.start();
+			TarqlQueryExecution ex = TarqlQueryExecutionFactory.create(tq,
+					InputStreamSource.fromString(csv.toString()), options);
+			StreamingRDFWriter writer = new StreamingRDFWriter(new ByteArrayOutputStream(), ex.execTriples());
+			writer.setDedupWindowSize(10);
+			writer.writeNTriples();
+			ex.close();
+			recording.stop();
+			recording.dump(file.toPath());
+
+			Map<String, Integer> counts = new HashMap<String, Integer>();
+			long rows = 0;
+			for (RecordedEvent event: RecordingFile.readAllEvents(file.toPath())) {
+				String name = event.getEventType().getName();
+				Integer count = counts.get(name);
+				counts.put(name, count == null ? 1 : count + 1);
+				if (name.equals("org.deri.tarql.RowBatch")) {
+					rows += event.getInt("rows");
+				}
+			}
+			assertEquals(Integer.valueOf(2), counts.get("org.deri.tarql.RowBatch"));
+			assertEquals(TarqlEvents.BATCH_SIZE + 10, rows);
+			assertEquals(Integer.valueOf(1), counts.get("org.deri.tarql.TablePass"));
+			assertEquals(Integer.valueOf(1), counts.get("org.deri.tarql.QueryExecution"));
+			assertEquals(Integer.valueOf(1), counts.get("org.deri.tarql.DedupEvictions"));
+			assertTrue(counts.containsKey("org.deri.tarql.OutputWrite"));
+		} finally {
+			recording.close();
+			file.delete();
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package org.deri.tarql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Iterator;
+
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingFactory;
+import org.apache.jena.sparql.expr.Expr;
+import org.apache.jena.sparql.expr.ExprEvalException;
+import org.apache.jena.sparql.function.FunctionEnvBase;
+import org.apache.jena.sparql.util.ExprUtils;
+import org.junit.Test;
+
+
+public class TarqlMemoizerTest {
+	private final static String csv = "a,b\nx,1\ny,2\nx,3\nx,1\ny,2\n";
+	private final static String query =
+			"PREFIX ex: <http://example.com/>\n" +
+			"CONSTRUCT { ?s ex:b ?b; ex:hash ?h; ex:n ?n; ex:c ?c } {\n" +
+			"  BIND (IRI(CONCAT(STR(ex:), ?a)) AS ?s)\n" +
+			"  BIND (SHA1(?a) AS ?h)\n" +
+			"  BIND (IRI(CONCAT(STR(ex:), ?a, '/', STR(?ROWNUM))) AS ?n)\n" +
+			"  BIND (IRI(CONCAT(STR(ex:), ?b)) AS ?c)\n" +
+			"  FILTER (?b != '3')\n" +
+			"}";
+
+	@Test
+	public void testSameResults() throws IOException {
+		TarqlMemoizer memoizer = new TarqlMemoizer(100);
+		TarqlQuery tq = parse();
+		memoizer.instrument(tq);
+		// Not the ROWNUM one, nor the FILTER
+		assertEquals(3, memoizer.getExpressionCount());
+		Model actual = execute(tq, null);
+		Model expected = execute(parse(), null);
+		assertTrue(actual.isIsomorphicWith(expected));
+	}
+
+	@Test
+	public void testCountsHits() throws IOException {
+		TarqlMemoizer memoizer = new TarqlMemoizer(100);
+		TarqlStats stats = new TarqlStats();
+		memoizer.setStats(stats);
+		TarqlQuery tq = parse();
+		memoizer.instrument(tq);
+		execute(tq, stats);
+		// Each of the three has 2 distinct values in the 4 rows that pass the FILTER
+		assertEquals(6, memoizer.getMisses());
+		assertEquals(6, memoizer.getHits());
+		assertEquals(6, memoizer.size());
+		assertEquals(memoizer.getHits(), stats.getMemoHits());
+		assertEquals(memoizer.getMisses(), stats.getMemoMisses());
+	}
+
+	@Test
+	public void testEvictsLeastRecentlyUsed() throws IOException {
+		TarqlMemoizer memoizer = new TarqlMemoizer(2);
+		TarqlQuery tq = parse();
+		memoizer.instrument(tq);
+		Model actual = execute(tq, null);
+		assertEquals(2, memoizer.size());
+		assertTrue(memoizer.getEvictions() > 0);
+		assertTrue(actual.isIsomorphicWith(execute(parse(), null)));
+	}
+
+	@Test
+	public void testWrapsLargestSubexpression() {
+		TarqlMemoizer memoizer = new TarqlMemoizer(100);
+		Expr expr = ExprUtils.parse("IF(BOUND(?a), UCASE(REPLACE(?a, 'x', 'y')), ENCODE_FOR_URI(?b))");
+		Expr memoized = memoizer.memoize(expr);
+		assertTrue(memoized instanceof TarqlMemoizer.MemoizedExpr);
+		assertSame(expr, ((TarqlMemoizer.MemoizedExpr) memoized).getArg());
+	}
+
+	@Test
+	public void testSkipsNonDeterministic() {
+		TarqlMemoizer memoizer = new TarqlMemoizer(100);
+		Expr expr = ExprUtils.parse("CONCAT(ENCODE_FOR_URI(?a), STRUUID())");
+		Expr memoized = memoizer.memoize(expr);
+		assertTrue(memoized.getFunction().getArg(1) instanceof TarqlMemoizer.MemoizedExpr);
+		assertSame(expr.getFunction().getArg(2), memoized.getFunction().getArg(2));
+		assertEquals(1, memoizer.getExpressionCount());
+	}
+
+	@Test
+	public void testSkipsCheapAndConstant() {
+		TarqlMemoizer memoizer = new TarqlMemoizer(100);
+		Expr cheap = ExprUtils.parse("STR(?a) = 'x'");
+		Expr constant = ExprUtils.parse("ENCODE_FOR_URI('a b')");
+		assertSame(cheap, memoizer.memoize(cheap));
+		assertSame(constant, memoizer.memoize(constant));
+	}
+
+	@Test
+	public void testCachesErrors() {
+		TarqlMemoizer memoizer = new TarqlMemoizer(100);
+		Expr expr = memoizer.memoize(ExprUtils.parse("ENCODE_FOR_URI(?a)"));
+		Binding binding = BindingFactory.binding(Var.alloc("a"), NodeFactory.createURI("http://example.com/"));
+		for (int i = 0; i < 2; i++) {
+			try {
+				expr.eval(binding, new FunctionEnvBase());
+				fail();
+			} catch (ExprEvalException ex) {}
+		}
+		assertEquals(1, memoizer.getMisses());
+		assertEquals(1, memoizer.getHits());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testBadSize() {
+		new TarqlMemoizer(0);
+	}
+
+	private TarqlQuery parse() {
+		return new TarqlParser(new StringReader(query), null).getResult();
+	}
+
+	private Model execute(TarqlQuery tq, TarqlStats stats) throws IOException {
+		CSVOptions options = new CSVOptions();
+		options.setColumnNamesInFirstRow(true);
+		TarqlQueryExecution ex = TarqlQueryExecutionFactory.create(tq, InputStreamSource.fromString(csv), options);
+		ex.setStats(stats);
+		Model result = ModelFactory.createDefaultModel();
+		Iterator<Triple> it = ex.execTriples();
+		while (it.hasNext()) {
+			result.getGraph().add(it.next());
+		}
+		return result;
+	}
+}
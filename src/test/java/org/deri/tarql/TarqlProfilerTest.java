@@ -0,0 +1,85 @@
+package org.deri.tarql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Iterator;
+
+import org.apache.jena.graph.Triple;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.junit.Test;
+
+
+public class TarqlProfilerTest {
+	private final static String csv = "a,b\nx,1\ny,2\nz,3\n";
+	private final static String query =
+			"PREFIX ex: <http://example.com/>\n" +
+			"CONSTRUCT { ?s ex:b ?b; ex:c _:c } { BIND (IRI(CONCAT(STR(ex:), ?a)) AS ?s) FILTER (?b != '2') }\n" +
+			"CONSTRUCT { ?s ex:a ?a } { BIND (IRI(CONCAT(STR(ex:), ?a)) AS ?s) } ORDER BY ?a";
+
+	@Test
+	public void testCountsCalls() throws IOException {
+		TarqlProfiler profiler = new TarqlProfiler(1);
+		TarqlQuery tq = parse();
+		profiler.instrument(tq);
+		Model actual = execute(tq, profiler);
+		TarqlProfiler.QueryProfile first = profiler.getProfile(0);
+		assertEquals(2, first.expressions.size());
+		assertTrue(first.expressions.get(0).label.startsWith("BIND"));
+		assertTrue(first.expressions.get(1).label.startsWith("FILTER"));
+		// ARQ moves the filter before the BIND
+		assertEquals(2, first.expressions.get(0).getCalls());
+		assertEquals(3, first.expressions.get(1).getCalls());
+		assertEquals(2, first.templateTriples.size());
+		assertEquals(2, first.templateTriples.get(0).getCalls());
+		assertTrue(first.blockers.isEmpty());
+		assertEquals("ORDER BY holds all results in memory", profiler.getProfile(1).blockers.get(0));
+
+		Model expected = ModelFactory.createDefaultModel();
+		TarqlQueryExecutionFactory.create(parse(), InputStreamSource.fromString(csv), options()).exec(expected);
+		assertTrue(actual.isIsomorphicWith(expected));
+	}
+
+	@Test
+	public void testReport() throws IOException {
+		TarqlProfiler profiler = new TarqlProfiler(100);
+		TarqlQuery tq = parse();
+		profiler.instrument(tq);
+		execute(tq, profiler);
+		String report = profiler.report();
+		assertTrue(report, report.startsWith("Profile (times extrapolated from 1 in 100 calls):\n"));
+		assertTrue(report, report.contains("calls"));
+		assertTrue(report, report.contains("FILTER (( ?b != \"2\" ))"));
+		assertTrue(report, report.contains("Template ?s ex:a ?a"));
+		assertTrue(report, report.contains("Does not stream: ORDER BY"));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testBadSampleRate() {
+		new TarqlProfiler(0);
+	}
+
+	private TarqlQuery parse() {
+		return new TarqlParser(new StringReader(query), null).getResult();
+	}
+
+	private CSVOptions options() {
+		CSVOptions options = new CSVOptions();
+		options.setColumnNamesInFirstRow(true);
+		return options;
+	}
+
+	private Model execute(TarqlQuery tq, TarqlProfiler profiler) throws IOException {
+		TarqlQueryExecution ex = TarqlQueryExecutionFactory.create(tq, InputStreamSource.fromString(csv), options());
+		ex.setProfiler(profiler);
+		Model result = ModelFactory.createDefaultModel();
+		Iterator<Triple> it = ex.execTriples();
+		while (it.hasNext()) {
+			result.getGraph().add(it.next());
+		}
+		return result;
+	}
+}
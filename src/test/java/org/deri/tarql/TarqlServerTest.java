@@ -0,0 +1,103 @@
+package org.deri.tarql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class TarqlServerTest {
+	private final static String mapping = "src/test/resources/mappings/simple-construct.sparql";
+
+	private TarqlServer server;
+
+	@Before
+	public void setUp() throws IOException {
+		server = new TarqlServer(0);
+		server.start();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+
+	@Test
+	public void testConvertRequestBody() throws IOException {
+		HttpURLConnection conn = post("mapping=" + mapping + "&ntriples=true&options=header%3Dabsent", "x\ny");
+		assertEquals(200, conn.getResponseCode());
+		assertEquals(
+				"<http://example.com/x> <http://example.com/p> \"x\" .\n" +
+				"<http://example.com/y> <http://example.com/p> \"y\" .\n",
+				read(conn.getInputStream()));
+	}
+
+	@Test
+	public void testConvertInputFile() throws IOException {
+		HttpURLConnection conn = post("mapping=" + mapping + "&ntriples=true&input=" +
+				URLEncoder.encode("src/test/resources/simple.csv#header=absent", "utf-8"), "");
+		assertEquals(200, conn.getResponseCode());
+		assertEquals("<http://example.com/x> <http://example.com/p> \"x\" .\n", read(conn.getInputStream()));
+	}
+
+	@Test
+	public void testSelect() throws IOException {
+		String select = "src/test/resources/mappings/simple-with-from.sparql";
+		HttpURLConnection conn = post("mapping=" + select + "&options=header%3Dabsent", "");
+		assertEquals(200, conn.getResponseCode());
+		assertEquals("a\r\nx\r\n", read(conn.getInputStream()));
+	}
+
+	@Test
+	public void testMissingMapping() throws IOException {
+		assertEquals(400, post("", "x").getResponseCode());
+		assertEquals(404, post("mapping=does-not-exist.sparql", "x").getResponseCode());
+	}
+
+	@Test
+	public void testBadDedup() throws IOException {
+		assertEquals(400, post("mapping=" + mapping + "&dedup=abc", "x").getResponseCode());
+		assertEquals(400, post("mapping=" + mapping + "&dedup=-1", "x").getResponseCode());
+	}
+
+	@Test
+	public void testMappingIsCachedAndCopied() {
+		TarqlQuery q1 = server.getMapping("SELECT * {}", "http://example.com/");
+		TarqlQuery q2 = server.getMapping("SELECT * {}", "http://example.com/");
+		assertNotSame(q1, q2);
+		assertNotSame(q1.getQueries().get(0), q2.getQueries().get(0));
+		assertEquals(q1.getQueries().get(0), q2.getQueries().get(0));
+	}
+
+	private HttpURLConnection post(String params, String body) throws IOException {
+		URL url = new URL("http://localhost:" + server.getPort() + "/convert?" + params);
+		HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+		conn.setRequestMethod("POST");
+		conn.setDoOutput(true);
+		OutputStream out = conn.getOutputStream();
+		out.write(body.getBytes("utf-8"));
+		out.close();
+		return conn;
+	}
+
+	private String read(InputStream in) throws IOException {
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int n;
+		while ((n = in.read(buffer)) != -1) {
+			result.write(buffer, 0, n);
+		}
+		in.close();
+		return result.toString("utf-8");
+	}
+}
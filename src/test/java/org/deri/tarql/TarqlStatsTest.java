@@ -0,0 +1,111 @@
+package org.deri.tarql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.util.Iterator;
+
+import javax.management.ObjectName;
+
+import org.apache.jena.graph.Triple;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class TarqlStatsTest {
+	private final static String csv = "a,b\nx,1\n\nx,2\ny,3\n";
+	private TarqlStats stats;
+
+	@Before
+	public void setUp() {
+		stats = new TarqlStats();
+	}
+
+	@Test
+	public void testCountsRowsAndBindings() throws IOException {
+		String query =
+				"CONSTRUCT { ?s <http://example.com/b> ?b } { BIND (IRI(CONCAT('http://example.com/', ?a)) AS ?s) FILTER (?b != '3') }\n" +
+				"CONSTRUCT { ?s <http://example.com/a> ?a } { BIND (IRI(CONCAT('http://example.com/', ?a)) AS ?s) }";
+		TarqlQueryExecution ex = create(query);
+		ex.setStats(stats);
+		Iterator<Triple> it = ex.execTriples();
+		int count = 0;
+		while (it.hasNext()) {
+			it.next();
+			count++;
+		}
+		assertEquals(5, count);
+		assertEquals(csv.length() * 2, stats.getBytesRead());
+		assertEquals(6, stats.getRowsParsed());
+		assertEquals(2, stats.getRowsSkipped());
+		assertEquals(2, stats.getBindings(0));
+		assertEquals(3, stats.getBindings(1));
+		assertEquals(5, stats.getBindings());
+		assertEquals(5, stats.getTriplesEmitted());
+	}
+
+	@Test
+	public void testCountedExecutionProducesSameTriples() throws IOException {
+		String query = "CONSTRUCT { _:x <http://example.com/a> ?a; <http://example.com/b> ?b } {}";
+		Model expected = ModelFactory.createDefaultModel();
+		create(query).exec(expected);
+		TarqlQueryExecution ex = create(query);
+		ex.setStats(stats);
+		Model actual = ModelFactory.createDefaultModel();
+		Iterator<Triple> it = ex.execTriples();
+		while (it.hasNext()) {
+			actual.getGraph().add(it.next());
+		}
+		assertTrue(actual.isIsomorphicWith(expected));
+		// The query is restored after execution
+		assertTrue(ex.getFirstQuery().isConstructType());
+	}
+
+	@Test
+	public void testCountsDedupHitsAndBytesWritten() throws IOException {
+		TarqlQueryExecution ex = create("CONSTRUCT { <http://example.com/s> <http://example.com/a> ?a } {}");
+		ex.setStats(stats);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		StreamingRDFWriter writer = new StreamingRDFWriter(out, ex.execTriples());
+		writer.setStats(stats);
+		writer.writeNTriples();
+		assertEquals(3, stats.getTriplesEmitted());
+		assertEquals(1, stats.getDedupHits());
+		assertEquals(out.size(), stats.getBytesWritten());
+	}
+
+	@Test
+	public void testMBean() throws Exception {
+		stats.registerMBean("test");
+		ObjectName name = new ObjectName("org.deri.tarql:type=Stats,name=\"test\"");
+		try {
+			stats.rowParsed();
+			assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "RowsParsed"));
+		} finally {
+			stats.unregisterMBean();
+		}
+		assertTrue(!ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+	}
+
+	@Test
+	public void testJSON() {
+		stats.bindingProduced(1);
+		stats.finish();
+		String json = stats.toJSON();
+		assertTrue(json.contains("\"bindings\": 1,"));
+		assertTrue(json.contains("\"bindingsPerQuery\": [0, 1],"));
+	}
+
+	private TarqlQueryExecution create(String query) throws IOException {
+		TarqlQuery tq = new TarqlParser(new StringReader(query), null).getResult();
+		CSVOptions options = new CSVOptions();
+		options.setColumnNamesInFirstRow(true);
+		return TarqlQueryExecutionFactory.create(tq, InputStreamSource.fromString(csv), options);
+	}
+}
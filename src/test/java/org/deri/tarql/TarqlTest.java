@@ -3,16 +3,22 @@ package org.deri.tarql;
 import static org.deri.tarql.Helpers.binding;
 import static org.deri.tarql.Helpers.vars;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.IOException;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
+import org.apache.jena.graph.Triple;
 import org.apache.jena.query.ResultSet;
 import org.apache.jena.rdf.model.Model;
 import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.riot.system.StreamRDFBase;
 import org.apache.jena.shared.JenaException;
 import org.apache.jena.sparql.core.Var;
 import org.apache.jena.sparql.engine.binding.Binding;
@@ -273,6 +279,64 @@ public class TarqlTest {
 	}
 	
 	
+	@Test
+	public void testConstantPrefixedNameIsFolded() throws IOException {
+		csv = "x";
+		String query = 
+				"PREFIX ex: <http://example.com/>\n" +
+				"CONSTRUCT { ?s a ?type } { BIND (tarql:expandPrefixedName('ex:Thing') AS ?type) BIND (ex:s AS ?s) }";
+		TarqlQuery tq = new TarqlParser(new StringReader(query), null).getResult();
+		assertConstruct(tq, "<http://example.com/s> a <http://example.com/Thing>.");
+		String pattern = tq.getQueries().get(0).getQueryPattern().toString();
+		assertFalse(pattern, pattern.contains("expandPrefixedName"));
+		assertTrue(pattern, pattern.contains("<http://example.com/Thing>"));
+	}
+
+	@Test
+	public void testUndefinedPrefixIsNotFolded() throws IOException {
+		csv = "x";
+		String query = "SELECT ?ns { BIND (COALESCE(tarql:expandPrefix('undefined'), 'none') AS ?ns) }";
+		TarqlQuery tq = new TarqlParser(new StringReader(query), null).getResult();
+		List<Var> vars = vars("ns");
+		assertSelect(tq, binding(vars, "\"none\""));
+	}
+	
+	@Test
+	public void testSplit() throws IOException {
+		csv = "a;b;;c";
+		String query = "SELECT ?v { ?v tarql:split (?a ';') }";
+		TarqlQuery tq = new TarqlParser(new StringReader(query), null).getResult();
+		List<Var> vars = vars("v");
+		assertSelect(tq, binding(vars, "\"a\""), binding(vars, "\"b\""), binding(vars, "\"c\""));
+	}
+
+	@Test
+	public void testSplitTrimAndIndex() throws IOException {
+		csv = "x ||  y||  ||z";
+		String query = "SELECT ?v ?i { (?v ?i) tarql:split (?a '||' true) }";
+		TarqlQuery tq = new TarqlParser(new StringReader(query), null).getResult();
+		List<Var> vars = vars("v", "i");
+		assertSelect(tq, binding(vars, "\"x\"", "1"), binding(vars, "\"y\"", "2"), binding(vars, "\"z\"", "3"));
+	}
+
+	@Test
+	public void testSplitBoundSubject() throws IOException {
+		csv = "a;b;c";
+		String query = "SELECT ?i { ('b' ?i) tarql:split (?a ';') }";
+		TarqlQuery tq = new TarqlParser(new StringReader(query), null).getResult();
+		List<Var> vars = vars("i");
+		assertSelect(tq, binding(vars, "2"));
+	}
+
+	@Test
+	public void testSplitUnboundCell() throws IOException {
+		csv = "x,\ny,a;b";
+		String query = "SELECT ?a (COALESCE(?v, 'none') AS ?w) { OPTIONAL { ?v tarql:split (?b ';') } }";
+		TarqlQuery tq = new TarqlParser(new StringReader(query), null).getResult();
+		List<Var> vars = vars("a", "w");
+		assertSelect(tq, binding(vars, "\"x\"", "\"none\""), binding(vars, "\"y\"", "\"a\""), binding(vars, "\"y\"", "\"b\""));
+	}
+	
 	@Test
 	public void testBuiltInPrefixes() throws IOException {
 		csv = "x";
@@ -284,4 +348,43 @@ public class TarqlTest {
 				binding(vars, "'tarql'", "<http://tarql.github.io/tarql#>"), 
 				binding(vars, "'apf'", "<http://jena.apache.org/ARQ/property#>"));
 	}
+	
+	@Test
+	public void testExecIntoStreamRDF() throws IOException {
+		csv = "x\ny";
+		String query = "PREFIX ex: <http://example.com/> CONSTRUCT { ex:s ex:p ?a } {} CONSTRUCT { ex:s ex:q ?a } {}";
+		TarqlQuery tq = new TarqlParser(new StringReader(query), null).getResult();
+		final List<String> events = new ArrayList<String>();
+		TarqlQueryExecutionFactory.create(tq, InputStreamSource.fromBytes(csv.getBytes("utf-8")), options).exec(new StreamRDFBase() {
+			@Override
+			public void start() { events.add("start"); }
+			@Override
+			public void prefix(String prefix, String iri) { events.add(prefix + ":"); }
+			@Override
+			public void triple(Triple triple) { events.add(triple.getPredicate().getLocalName() + triple.getObject().getLiteralLexicalForm()); }
+			@Override
+			public void finish() { events.add("finish"); }
+		});
+		assertEquals(Arrays.asList("start", "ex:", "px", "py", "qx", "qy", "finish"), events);
+	}
+	
+	@Test
+	public void testExecInBatches() throws IOException {
+		csv = "a\nb\nc\nd\ne";
+		String query = "PREFIX ex: <http://example.com/> CONSTRUCT { ex:s ex:p ?a } {}";
+		TarqlQuery tq = new TarqlParser(new StringReader(query), null).getResult();
+		final List<String> batches = new ArrayList<String>();
+		TarqlQueryExecutionFactory.create(tq, InputStreamSource.fromBytes(csv.getBytes("utf-8")), options).exec(
+				new TarqlQueryExecution.BatchSink() {
+					@Override
+					public void triples(Triple[] batch, int count) {
+						String s = "";
+						for (int i = 0; i < count; i++) {
+							s += batch[i].getObject().getLiteralLexicalForm();
+						}
+						batches.add(s);
+					}
+				}, 2);
+		assertEquals(Arrays.asList("ab", "cd", "e"), batches);
+	}
 }
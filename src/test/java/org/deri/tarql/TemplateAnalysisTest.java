@@ -0,0 +1,165 @@
+package org.deri.tarql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.jena.graph.Triple;
+import org.apache.jena.query.Query;
+import org.apache.jena.query.QueryFactory;
+import org.junit.Test;
+
+
+public class TemplateAnalysisTest {
+	private final static String PREFIXES = "PREFIX ex: <http://example.com/> ";
+
+	@Test
+	public void testFindsInvariantTriples() {
+		TemplateAnalysis analysis = analyze(PREFIXES +
+				"CONSTRUCT { ex:d a ex:Dataset. ?d ex:title ?title. ?s ex:p ?a. _:b ex:p ex:o. ?r ex:p ex:o. ?u ex:p ex:o }" +
+				"{ BIND (IRI(CONCAT(STR(ex:), 'd')) AS ?d) BIND ('Title' AS ?title) BIND (IRI(?a) AS ?s)" +
+				"  BIND (RAND() AS ?r) BIND (UUID() AS ?u) }");
+		assertTrue(analysis.hasAny());
+		assertTrue(analysis.isInvariant(0));
+		assertTrue(analysis.isInvariant(1));
+		assertFalse(analysis.isInvariant(2));
+		assertFalse(analysis.isInvariant(3));
+		assertFalse(analysis.isInvariant(4));
+		assertFalse(analysis.isInvariant(5));
+	}
+
+	@Test
+	public void testFindsOncePerValueTriples() {
+		TemplateAnalysis analysis = analyze(PREFIXES +
+				"CONSTRUCT { ?s ex:country ?c. ?c a ex:Country. _:b ex:name ?c } {}", "c");
+		assertFalse(analysis.isOncePerValue(0));
+		assertFalse(analysis.isInvariant(1));
+		assertTrue(analysis.isOncePerValue(1));
+		assertFalse(analysis.isOncePerValue(2));
+	}
+
+	@Test
+	public void testNothingToHoist() {
+		assertFalse(analyze(PREFIXES + "CONSTRUCT { ?s ex:p ?a } {}", "b").hasAny());
+	}
+
+	@Test
+	public void testFindsRowUniqueTriples() {
+		Query query = QueryFactory.create(PREFIXES +
+				"CONSTRUCT { ?s a ex:Row. ?s ex:value ?a. ?s ex:value ?b. ?t ex:p ?a. _:b ex:p ?a. ?k ex:id ex:o }" +
+				"{ BIND (IRI(CONCAT(STR(ex:), 'row', STR(?ROWNUM))) AS ?s) BIND (IRI(?a) AS ?t)" +
+				"  BIND (IRI(CONCAT(STR(ex:), ?id)) AS ?k) FILTER (BOUND(?a)) }");
+		TemplateAnalysis analysis = new TemplateAnalysis(query, Collections.<String>emptySet());
+		analysis.findRowUnique(Collections.singletonList(query), Arrays.asList("ROWNUM", "id"));
+		assertTrue(analysis.isRowUnique(0));
+		// Would have to check if ?a and ?b can be equal
+		assertFalse(analysis.isRowUnique(1));
+		assertFalse(analysis.isRowUnique(2));
+		assertFalse(analysis.isRowUnique(3));
+		assertTrue(analysis.isRowUnique(4));
+		assertTrue(analysis.isRowUnique(5));
+	}
+
+	@Test
+	public void testNoRowUniqueTriplesIfRowsCanRepeat() {
+		Query query = QueryFactory.create(PREFIXES +
+				"CONSTRUCT { ?s a ex:Row } { BIND (IRI(CONCAT(STR(ex:), STR(?ROWNUM))) AS ?s) VALUES ?x { 1 2 } }");
+		TemplateAnalysis analysis = new TemplateAnalysis(query, Collections.<String>emptySet());
+		analysis.findRowUnique(Collections.singletonList(query), Arrays.asList("ROWNUM"));
+		assertFalse(analysis.isRowUnique(0));
+		Query other = QueryFactory.create(PREFIXES + "CONSTRUCT { ?x a ?y } {}");
+		query = QueryFactory.create(PREFIXES +
+				"CONSTRUCT { ?s a ex:Row } { BIND (IRI(CONCAT(STR(ex:), STR(?ROWNUM))) AS ?s) }");
+		analysis = new TemplateAnalysis(query, Collections.<String>emptySet());
+		analysis.findRowUnique(Arrays.asList(query, other), Arrays.asList("ROWNUM"));
+		assertFalse(analysis.isRowUnique(0));
+	}
+
+	@Test
+	public void testMarksRowUniqueTriples() throws IOException {
+		TarqlQuery tq = new TarqlParser(new StringReader(PREFIXES +
+				"CONSTRUCT { ?s a ex:Row. ?s ex:value ?a } { BIND (IRI(CONCAT(STR(ex:), STR(?ROWNUM))) AS ?s) }"), null).getResult();
+		assertEquals(4, countRowUnique(tq));
+	}
+
+	@Test
+	public void testMarksRowUniqueTriplesWhenProfiled() throws IOException {
+		TarqlQuery tq = new TarqlParser(new StringReader(PREFIXES +
+				"CONSTRUCT { ?s a ex:Row. ?s ex:value ?a } { BIND (IRI(CONCAT(STR(ex:), STR(?ROWNUM))) AS ?s) }"), null).getResult();
+		new TarqlProfiler(1).instrument(tq);
+		assertEquals(4, countRowUnique(tq));
+	}
+
+	@Test
+	public void testInvariantTriplesOnce() throws IOException {
+		List<Triple> triples = execute(PREFIXES +
+				"CONSTRUCT { ?d a ex:Dataset. ?s ex:p ?a } { BIND (ex:d AS ?d) BIND (IRI(CONCAT(STR(ex:), ?a)) AS ?s) }",
+				"a\nx\ny\nz\n");
+		assertEquals(4, triples.size());
+		assertEquals(1, count(triples, "http://example.com/Dataset"));
+	}
+
+	@Test
+	public void testNoInvariantTriplesWithoutRows() throws IOException {
+		List<Triple> triples = execute(PREFIXES +
+				"CONSTRUCT { ex:d a ex:Dataset. ?s ex:p ?a } { FILTER (?a = 'none') }",
+				"a\nx\ny\n");
+		assertEquals(0, triples.size());
+	}
+
+	@Test
+	public void testOncePerValueTriples() throws IOException {
+		List<Triple> triples = execute(PREFIXES +
+				"CONSTRUCT { ?s ex:country ?c. ?c a ex:Country } " +
+				"{ BIND (IRI(CONCAT(STR(ex:), ?a)) AS ?s) BIND (IRI(CONCAT(STR(ex:), ?b)) AS ?c) }",
+				"a,b\nx,de\ny,fr\nz,de\n", "c");
+		assertEquals(5, triples.size());
+		assertEquals(2, count(triples, "http://example.com/Country"));
+	}
+
+	private static int countRowUnique(TarqlQuery tq) throws IOException {
+		TarqlQueryExecution ex = TarqlQueryExecutionFactory.create(tq, InputStreamSource.fromString("a\nx\ny\n"));
+		ex.setKeyColumns(Collections.singleton("ROWNUM"));
+		Iterator<Triple> it = ex.execTriples();
+		int marked = 0;
+		while (it.hasNext()) {
+			if (it.next() instanceof RowUniqueTriple) marked++;
+		}
+		return marked;
+	}
+
+	private static TemplateAnalysis analyze(String query, String... lowCardinalityColumns) {
+		return new TemplateAnalysis(QueryFactory.create(query), Arrays.asList(lowCardinalityColumns));
+	}
+
+	private static List<Triple> execute(String query, String csv, String... lowCardinalityColumns) throws IOException {
+		TarqlQuery tq = new TarqlParser(new StringReader(query), null).getResult();
+		TarqlQueryExecution ex = TarqlQueryExecutionFactory.create(tq, InputStreamSource.fromString(csv));
+		Collection<String> columns = lowCardinalityColumns.length == 0
+				? Collections.<String>emptySet() : Arrays.asList(lowCardinalityColumns);
+		ex.setLowCardinalityColumns(columns);
+		List<Triple> result = new ArrayList<Triple>();
+		Iterator<Triple> it = ex.execTriples();
+		while (it.hasNext()) {
+			result.add(it.next());
+		}
+		return result;
+	}
+
+	private static int count(List<Triple> triples, String objectURI) {
+		int result = 0;
+		for (Triple triple: triples) {
+			if (triple.getObject().isURI() && triple.getObject().getURI().equals(objectURI)) result++;
+		}
+		return result;
+	}
+}
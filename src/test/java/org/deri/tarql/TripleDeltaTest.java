@@ -0,0 +1,128 @@
+package org.deri.tarql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class TripleDeltaTest {
+	private File previous;
+
+	@Before
+	public void setUp() throws IOException {
+		previous = File.createTempFile("tarql-delta", ".nt");
+	}
+
+	@After
+	public void tearDown() {
+		previous.delete();
+	}
+
+	@Test
+	public void testSorterMergesRunsAndRemovesDuplicates() throws IOException {
+		ExternalSorter sorter = new ExternalSorter(1000, null);
+		List<String> expected = new ArrayList<String>();
+		for (int i = 0; i < 500; i++) {
+			expected.add(String.format("line %03d", i));
+		}
+		for (int i = 499; i >= 0; i--) {
+			sorter.add(expected.get(i));
+			sorter.add(expected.get((i * 7) % 500));
+		}
+		assertTrue(sorter.getRunCount() > 1);
+		List<String> actual = new ArrayList<String>();
+		Iterator<String> it = sorter.sorted();
+		while (it.hasNext()) {
+			actual.add(it.next());
+		}
+		sorter.close();
+		assertEquals(expected, actual);
+	}
+
+	@Test
+	public void testSorterMergesInPassesWithLimitedFanIn() throws IOException {
+		File tempDirectory = Files.createTempDirectory("tarql-sort").toFile();
+		ExternalSorter sorter = new ExternalSorter(1000, tempDirectory);
+		sorter.setMaxFanIn(3);
+		List<String> expected = new ArrayList<String>();
+		for (int i = 0; i < 500; i++) {
+			expected.add(String.format("line %03d", i));
+		}
+		for (int i = 499; i >= 0; i--) {
+			sorter.add(expected.get(i));
+			sorter.add(expected.get((i * 7) % 500));
+		}
+		assertTrue(sorter.getRunCount() > 9);
+		List<String> actual = new ArrayList<String>();
+		Iterator<String> it = sorter.sorted();
+		assertTrue(sorter.getRunCount() <= 3);
+		assertTrue(tempDirectory.list().length <= 3);
+		while (it.hasNext()) {
+			actual.add(it.next());
+		}
+		sorter.close();
+		assertEquals(0, tempDirectory.list().length);
+		tempDirectory.delete();
+		assertEquals(expected, actual);
+	}
+
+	@Test
+	public void testAddedAndRemovedAgainstNTriples() throws IOException {
+		Files.write(previous.toPath(), ("<http://ex/c> <http://ex/p> \"old\" .\n" +
+				"<http://ex/a> <http://ex/p> \"same\" .\n").getBytes(StandardCharsets.UTF_8));
+		TripleDelta delta = new TripleDelta(1000, null);
+		ByteArrayOutputStream added = new ByteArrayOutputStream();
+		ByteArrayOutputStream removed = new ByteArrayOutputStream();
+		delta.compute(previous, triples("a", "same", "b", "new"), added, removed, null);
+		assertEquals("<http://ex/b> <http://ex/p> \"new\" .\n", added.toString("utf-8"));
+		assertEquals("<http://ex/c> <http://ex/p> \"old\" .\n", removed.toString("utf-8"));
+		assertEquals(1, delta.getAdded());
+		assertEquals(1, delta.getRemoved());
+		assertEquals(1, delta.getUnchanged());
+	}
+
+	@Test
+	public void testAgainstGzippedSnapshot() throws IOException {
+		ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+		new TripleDelta(1000, null).compute(null, triples("b", "x", "a", "y"), null, null, snapshot);
+		assertEquals(TripleDelta.SNAPSHOT_HEADER + "\n" +
+				"<http://ex/a> <http://ex/p> \"y\" .\n" +
+				"<http://ex/b> <http://ex/p> \"x\" .\n", snapshot.toString("utf-8"));
+		OutputStream out = new GZIPOutputStream(new FileOutputStream(previous));
+		out.write(snapshot.toByteArray());
+		out.close();
+		ByteArrayOutputStream added = new ByteArrayOutputStream();
+		ByteArrayOutputStream removed = new ByteArrayOutputStream();
+		new TripleDelta(1000, null).compute(previous, triples("a", "y", "c", "z"), added, removed, null);
+		assertEquals("<http://ex/c> <http://ex/p> \"z\" .\n", added.toString("utf-8"));
+		assertEquals("<http://ex/b> <http://ex/p> \"x\" .\n", removed.toString("utf-8"));
+	}
+
+	private static Iterator<Triple> triples(String... subjectsAndValues) {
+		List<Triple> result = new ArrayList<Triple>();
+		for (int i = 0; i < subjectsAndValues.length; i += 2) {
+			result.add(Triple.create(
+					NodeFactory.createURI("http://ex/" + subjectsAndValues[i]),
+					NodeFactory.createURI("http://ex/p"),
+					NodeFactory.createLiteral(subjectsAndValues[i + 1])));
+		}
+		return result.iterator();
+	}
+}
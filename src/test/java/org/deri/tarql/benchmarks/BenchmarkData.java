@@ -0,0 +1,75 @@
+package org.deri.tarql.benchmarks;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+
+
+/**
+ * Generates synthetic inputs for the benchmarks. All data is
+ * deterministic, so results are comparable across runs.
+ */
+public class BenchmarkData {
+
+	/**
+	 * Narrow: three short columns. Wide: fifty columns.
+	 * Quoted: quoted values containing delimiters and doubled quotes.
+	 */
+	public enum Shape { narrow, wide, quoted }
+
+	public static String csv(Shape shape, int rows) {
+		int columns = shape == Shape.wide ? 50 : 3;
+		StringBuilder result = new StringBuilder();
+		for (int c = 0; c < columns; c++) {
+			if (c > 0) result.append(',');
+			result.append("col").append(c);
+		}
+		result.append('\n');
+		for (int r = 0; r < rows; r++) {
+			for (int c = 0; c < columns; c++) {
+				if (c > 0) result.append(',');
+				if (shape == Shape.quoted) {
+					result.append("\"Value ").append(r).append(", column ")
+							.append(c).append(" is \"\"quoted\"\"\"");
+				} else {
+					result.append("value").append(r % 1000).append('_').append(c);
+				}
+			}
+			result.append('\n');
+		}
+		return result.toString();
+	}
+
+	public static byte[] bytes(String s, String encoding) {
+		try {
+			return s.getBytes(encoding);
+		} catch (UnsupportedEncodingException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	/**
+	 * Triples about <code>subjects</code> subjects, where roughly
+	 * <code>duplicateRatio</code> of triples repeat a recent triple.
+	 */
+	public static List<Triple> triples(int count, int subjects, double duplicateRatio) {
+		List<Triple> result = new ArrayList<Triple>(count);
+		int duplicateEvery = duplicateRatio <= 0 ? Integer.MAX_VALUE : (int) Math.round(1 / duplicateRatio);
+		for (int i = 0; i < count; i++) {
+			if (i > 0 && i % duplicateEvery == 0) {
+				result.add(result.get(i - 1 - (i % Math.min(i, 100))));
+				continue;
+			}
+			result.add(Triple.create(
+					NodeFactory.createURI("http://example.com/s" + (i % subjects)),
+					NodeFactory.createURI("http://example.com/p" + (i % 7)),
+					NodeFactory.createLiteral("value " + i)));
+		}
+		return result;
+	}
+
+	private BenchmarkData() {}
+}
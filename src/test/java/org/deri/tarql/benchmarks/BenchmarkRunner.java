@@ -0,0 +1,27 @@
+package org.deri.tarql.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+
+/**
+ * Runs the benchmarks with the GC profiler enabled, so that
+ * allocation rates are reported along with timings. Accepts the
+ * usual JMH command line options, e.g., a regular expression
+ * to select benchmarks, or <code>-rf json</code> to save results.
+ */
+public class BenchmarkRunner {
+
+	public static void main(String... args) throws RunnerException, CommandLineOptionException {
+		Options options = new OptionsBuilder()
+				.parent(new CommandLineOptions(args))
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,55 @@
+package org.deri.tarql.benchmarks;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.deri.tarql.CSVParser;
+import org.deri.tarql.benchmarks.BenchmarkData.Shape;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+
+/**
+ * Parsing a CSV document into bindings with {@link CSVParser}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class CSVParserBenchmark {
+
+	@Param({"narrow", "wide", "quoted"})
+	public Shape shape;
+
+	@Param({"10000"})
+	public int rows;
+
+	private String csv;
+
+	@Setup
+	public void setUp() {
+		csv = BenchmarkData.csv(shape, rows);
+	}
+
+	@Benchmark
+	public void parse(Blackhole bh) throws IOException {
+		CSVParser parser = new CSVParser(new StringReader(csv), true, ',', '"', null);
+		while (parser.hasNext()) {
+			bh.consume(parser.next());
+		}
+		parser.close();
+	}
+}
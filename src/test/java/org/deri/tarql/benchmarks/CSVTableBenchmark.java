@@ -0,0 +1,74 @@
+package org.deri.tarql.benchmarks;
+
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.deri.tarql.CSVOptions;
+import org.deri.tarql.CSVTable;
+import org.deri.tarql.InputStreamSource;
+import org.deri.tarql.benchmarks.BenchmarkData.Shape;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+
+/**
+ * Multiple passes over a {@link CSVTable}, as happens for queries
+ * that need the table size or scan the table more than once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class CSVTableBenchmark {
+
+	@Param({"1", "3"})
+	public int passes;
+
+	@Param({"10000"})
+	public int rows;
+
+	private InputStreamSource source;
+
+	@Setup
+	public void setUp() {
+		source = InputStreamSource.fromBytes(
+				BenchmarkData.bytes(BenchmarkData.csv(Shape.narrow, rows), "utf-8"));
+	}
+
+	@Benchmark
+	public void multiPass(Blackhole bh) {
+		CSVTable table = new CSVTable(source, CSVOptions.withCSVDefaults());
+		for (int i = 0; i < passes; i++) {
+			Iterator<Binding> it = table.rows();
+			while (it.hasNext()) {
+				bh.consume(it.next());
+			}
+		}
+		table.close();
+	}
+
+	@Benchmark
+	public int sizeThenScan(Blackhole bh) {
+		CSVTable table = new CSVTable(source, CSVOptions.withCSVDefaults());
+		int size = table.size();
+		Iterator<Binding> it = table.rows();
+		while (it.hasNext()) {
+			bh.consume(it.next());
+		}
+		table.close();
+		return size;
+	}
+}
@@ -0,0 +1,61 @@
+package org.deri.tarql.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.concurrent.TimeUnit;
+
+import org.deri.tarql.CharsetDetectingReader;
+import org.deri.tarql.benchmarks.BenchmarkData.Shape;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Decoding input with encoding auto-detection.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class CharsetDetectingReaderBenchmark {
+
+	@Param({"utf-8", "iso-8859-1"})
+	public String encoding;
+
+	@Param({"10000"})
+	public int rows;
+
+	private byte[] input;
+
+	@Setup
+	public void setUp() {
+		// Non-ASCII content so that detection has something to do
+		input = BenchmarkData.bytes(
+				BenchmarkData.csv(Shape.narrow, rows).replace("value", "välüé"), encoding);
+	}
+
+	@Benchmark
+	public long read() throws IOException {
+		Reader reader = new CharsetDetectingReader(new ByteArrayInputStream(input));
+		char[] buffer = new char[8192];
+		long total = 0;
+		int n;
+		while ((n = reader.read(buffer)) != -1) {
+			total += n;
+		}
+		reader.close();
+		return total;
+	}
+}
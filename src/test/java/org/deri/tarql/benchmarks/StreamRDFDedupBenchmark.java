@@ -0,0 +1,64 @@
+package org.deri.tarql.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.sparql.core.Quad;
+import org.deri.tarql.StreamRDFDedup;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+
+/**
+ * Removing duplicates in a sliding window with {@link StreamRDFDedup}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class StreamRDFDedupBenchmark {
+
+	@Param({"100", "10000", "100000"})
+	public int windowSize;
+
+	@Param({"100000"})
+	public int triples;
+
+	private List<Triple> input;
+
+	@Setup
+	public void setUp() {
+		input = BenchmarkData.triples(triples, triples / 10, 0.3);
+	}
+
+	@Benchmark
+	public void dedup(final Blackhole bh) {
+		StreamRDF dedup = new StreamRDFDedup(new StreamRDF() {
+			@Override public void start() {}
+			@Override public void triple(Triple triple) { bh.consume(triple); }
+			@Override public void quad(Quad quad) { bh.consume(quad); }
+			@Override public void base(String base) {}
+			@Override public void prefix(String prefix, String iri) {}
+			@Override public void finish() {}
+		}, windowSize);
+		dedup.start();
+		for (Triple t: input) {
+			dedup.triple(t);
+		}
+		dedup.finish();
+	}
+}
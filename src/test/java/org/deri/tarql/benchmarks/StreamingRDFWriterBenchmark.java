@@ -0,0 +1,78 @@
+package org.deri.tarql.benchmarks;
+
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jena.graph.Triple;
+import org.apache.jena.shared.PrefixMapping;
+import org.apache.jena.shared.impl.PrefixMappingImpl;
+import org.deri.tarql.StreamingRDFWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+
+/**
+ * Serializing triples with {@link StreamingRDFWriter}, as N-Triples
+ * and as Turtle, without deduplication.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class StreamingRDFWriterBenchmark {
+
+	@Param({"100000"})
+	public int triples;
+
+	private List<Triple> input;
+	private PrefixMapping prefixes;
+
+	@Setup
+	public void setUp() {
+		input = BenchmarkData.triples(triples, triples / 10, 0);
+		prefixes = new PrefixMappingImpl();
+		prefixes.setNsPrefix("ex", "http://example.com/");
+	}
+
+	@Benchmark
+	public void ntriples(Blackhole bh) {
+		StreamingRDFWriter writer = new StreamingRDFWriter(new BlackholeOutputStream(bh), input.iterator());
+		writer.setDedupWindowSize(0);
+		writer.writeNTriples();
+	}
+
+	@Benchmark
+	public void turtle(Blackhole bh) {
+		StreamingRDFWriter writer = new StreamingRDFWriter(new BlackholeOutputStream(bh), input.iterator());
+		writer.setDedupWindowSize(0);
+		writer.writeTurtle(null, prefixes, false);
+	}
+
+	private static class BlackholeOutputStream extends OutputStream {
+		private final Blackhole bh;
+		BlackholeOutputStream(Blackhole bh) {
+			this.bh = bh;
+		}
+		@Override
+		public void write(int b) {
+			bh.consume(b);
+		}
+		@Override
+		public void write(byte[] b, int off, int len) {
+			bh.consume(b);
+		}
+	}
+}
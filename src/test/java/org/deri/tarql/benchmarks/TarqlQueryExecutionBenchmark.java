@@ -0,0 +1,87 @@
+package org.deri.tarql.benchmarks;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jena.graph.Triple;
+import org.apache.jena.query.ResultSet;
+import org.deri.tarql.CSVOptions;
+import org.deri.tarql.InputStreamSource;
+import org.deri.tarql.TarqlParser;
+import org.deri.tarql.TarqlQuery;
+import org.deri.tarql.TarqlQueryExecution;
+import org.deri.tarql.TarqlQueryExecutionFactory;
+import org.deri.tarql.benchmarks.BenchmarkData.Shape;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+
+/**
+ * End-to-end execution of typical mappings, including parsing the
+ * mapping, reading the CSV, evaluation and template instantiation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class TarqlQueryExecutionBenchmark {
+
+	private final static String CONSTRUCT =
+			"PREFIX ex: <http://example.com/>\n" +
+			"CONSTRUCT { ?s a ex:Thing; ex:col1 ?col1; ex:col2 ?col2; ex:row ?ROWNUM }\n" +
+			"{ BIND (IRI(CONCAT(STR(ex:), ENCODE_FOR_URI(?col0))) AS ?s) }";
+
+	private final static String SELECT =
+			"SELECT ?col0 (UCASE(?col1) AS ?upper) { FILTER (?col2 != '') }";
+
+	@Param({"10000"})
+	public int rows;
+
+	private InputStreamSource source;
+
+	@Setup
+	public void setUp() {
+		TarqlQuery.registerFunctions();
+		source = InputStreamSource.fromBytes(
+				BenchmarkData.bytes(BenchmarkData.csv(Shape.narrow, rows), "utf-8"));
+	}
+
+	@Benchmark
+	public void construct(Blackhole bh) throws IOException {
+		TarqlQueryExecution ex = create(CONSTRUCT);
+		Iterator<Triple> it = ex.execTriples();
+		while (it.hasNext()) {
+			bh.consume(it.next());
+		}
+		ex.close();
+	}
+
+	@Benchmark
+	public void select(Blackhole bh) {
+		TarqlQueryExecution ex = create(SELECT);
+		ResultSet rs = ex.execSelect();
+		while (rs.hasNext()) {
+			bh.consume(rs.nextBinding());
+		}
+		ex.close();
+	}
+
+	private TarqlQueryExecution create(String mapping) {
+		TarqlQuery tq = new TarqlParser(new StringReader(mapping)).getResult();
+		return TarqlQueryExecutionFactory.create(tq, source, CSVOptions.withCSVDefaults());
+	}
+}
@@ -1,8 +1,14 @@
 package org.deri.tarql.functions;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.fail;
 
+import org.apache.jena.sparql.expr.Expr;
 import org.apache.jena.sparql.expr.ExprEvalException;
+import org.apache.jena.sparql.expr.ExprList;
+import org.apache.jena.sparql.expr.ExprVar;
+import org.apache.jena.sparql.expr.NodeValue;
 import org.apache.jena.sparql.expr.VariableNotBoundException;
 import org.apache.jena.vocabulary.DC;
 import org.deri.tarql.tarql;
@@ -22,6 +28,21 @@ public class ExpandPrefixTest extends FunctionTest {
 		assertEval(stringNode(DC.NS), "tarql:expandPrefix('dc')");
 	}
 
+	@Test
+	public void testSpecializeConstant() {
+		prefixes.setNsPrefix("dc", DC.NS);
+		Expr folded = new ExpandPrefixFunction().specialize(new ExprList(NodeValue.makeString("dc")), prefixes);
+		assertEquals(NodeValue.makeString(DC.NS), folded);
+	}
+
+	@Test
+	public void testSpecializeKeepsVariablesAndErrors() {
+		ExpandPrefixFunction f = new ExpandPrefixFunction();
+		assertNull(f.specialize(new ExprList(new ExprVar("prefix")), prefixes));
+		assertNull(f.specialize(new ExprList(NodeValue.makeString("undefined")), prefixes));
+		assertNull(f.specialize(new ExprList(NodeValue.TRUE), prefixes));
+	}
+
 	@Test
 	public void testUnboundArg() {
 		try {
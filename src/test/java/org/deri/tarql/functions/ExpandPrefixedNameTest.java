@@ -1,10 +1,18 @@
 package org.deri.tarql.functions;
 
 import static org.apache.jena.graph.NodeFactory.createURI;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.fail;
 
+import org.apache.jena.shared.impl.PrefixMappingImpl;
+import org.apache.jena.sparql.expr.Expr;
 import org.apache.jena.sparql.expr.ExprEvalException;
+import org.apache.jena.sparql.expr.ExprList;
+import org.apache.jena.sparql.expr.ExprVar;
+import org.apache.jena.sparql.expr.NodeValue;
 import org.apache.jena.sparql.expr.VariableNotBoundException;
+import org.apache.jena.sparql.util.Context;
 import org.apache.jena.vocabulary.DC;
 import org.junit.Test;
 
@@ -22,6 +30,33 @@ public class ExpandPrefixedNameTest extends FunctionTest {
 		assertEval(createURI(DC.NS + "title"), "tarql:expandPrefixedName('dc:title')");
 	}
 
+	@Test
+	public void testCachedResultsFollowContext() {
+		ExpandPrefixedNameFunction f = new ExpandPrefixedNameFunction();
+		prefixes.setNsPrefix("dc", DC.NS);
+		NodeValue name = NodeValue.makeString("dc:title");
+		assertEquals(createURI(DC.NS + "title"), f.exec(name, env.getContext()).asNode());
+		assertEquals(createURI(DC.NS + "title"), f.exec(name, env.getContext()).asNode());
+		Context other = new Context();
+		other.set(ExpandPrefixFunction.PREFIX_MAPPING, new PrefixMappingImpl().setNsPrefix("dc", "http://example.com/"));
+		assertEquals(createURI("http://example.com/title"), f.exec(name, other).asNode());
+	}
+
+	@Test
+	public void testSpecializeConstant() {
+		prefixes.setNsPrefix("dc", DC.NS);
+		Expr folded = new ExpandPrefixedNameFunction().specialize(new ExprList(NodeValue.makeString("dc:title")), prefixes);
+		assertEquals(NodeValue.makeNode(createURI(DC.NS + "title")), folded);
+	}
+
+	@Test
+	public void testSpecializeKeepsVariablesAndErrors() {
+		ExpandPrefixedNameFunction f = new ExpandPrefixedNameFunction();
+		assertNull(f.specialize(new ExprList(new ExprVar("name")), prefixes));
+		assertNull(f.specialize(new ExprList(NodeValue.makeString("dc:title")), prefixes));
+		assertNull(f.specialize(new ExprList(NodeValue.makeString("title")), prefixes));
+	}
+
 	@Test
 	public void testUnboundArg() {
 		try {
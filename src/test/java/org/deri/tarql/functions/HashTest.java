@@ -0,0 +1,99 @@
+package org.deri.tarql.functions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.jena.query.QueryBuildException;
+import org.apache.jena.sparql.expr.ExprEvalException;
+import org.deri.tarql.XXHash64;
+import org.junit.Test;
+
+
+public class HashTest extends FunctionTest {
+
+	@Test
+	public void testXXHash64() {
+		// XXH64("abc") = 44bc2cf5ad770999
+		assertEval(stringNode("is6cz5nno4ezs"), "tarql:xxhash64('abc')");
+		assertEval(stringNode("RLws9a13CZk"), "tarql:xxhash64url('abc')");
+	}
+
+	@Test
+	public void testXXHash64LongInput() {
+		byte[] data = "Nobody inspects the spammish repetition".getBytes(StandardCharsets.UTF_8);
+		assertEquals(0xfbcea83c8a378bf1L, XXHash64.hash(data, 0, data.length, 0));
+		assertEquals(0xef46db3751d8e999L, XXHash64.hash(data, 0, 0, 0));
+	}
+
+	@Test
+	public void testMurmur3() {
+		// murmur3_128("hello") = 029bbd41b3a7d8cb191dae486a901e5b
+		assertEval(stringNode("akn32qntu7mmwgi5vzegvea6lm"), "tarql:murmur3('hello')");
+		assertEval(stringNode("Apu9QbOn2MsZHa5IapAeWw"), "tarql:murmur3url('hello')");
+	}
+
+	@Test
+	public void testArgumentBoundaries() {
+		assertNotEquals(eval("tarql:xxhash64('ab', 'c')"), eval("tarql:xxhash64('a', 'bc')"));
+		assertNotEquals(eval("tarql:xxhash64('abc')"), eval("tarql:xxhash64('ab', 'c')"));
+	}
+
+	@Test
+	public void testLexicalFormsAndIRIs() {
+		assertEquals(eval("tarql:murmur3('1')"), eval("tarql:murmur3(1)"));
+		assertEquals(eval("tarql:murmur3('http://example.com/')"), eval("tarql:murmur3(<http://example.com/>)"));
+	}
+
+	@Test
+	public void testNonASCII() {
+		byte[] utf8 = "café😀".getBytes(StandardCharsets.UTF_8);
+		long hash = XXHash64.hash(utf8, 0, utf8.length, 0);
+		assertEval(stringNode(HashFunction.base32(ByteBuffer.allocate(8).putLong(hash).array())),
+				"tarql:xxhash64('café😀')");
+		assertEval(stringNode("913dae07-c204-5b5f-af3a-3e6e6806e6c9"),
+				"tarql:uuid5('6ba7b811-9dad-11d1-80b4-00c04fd430c8', 'café😀')");
+	}
+
+	@Test
+	public void testUUID5() {
+		// The standard namespace for URLs
+		assertEval(stringNode("10379530-47d8-5772-a25e-18508c035bc8"),
+				"tarql:uuid5('6ba7b811-9dad-11d1-80b4-00c04fd430c8', 'http://example.com/a')");
+		assertEval(stringNode("10379530-47d8-5772-a25e-18508c035bc8"),
+				"tarql:uuid5(<urn:uuid:6ba7b811-9dad-11d1-80b4-00c04fd430c8>, <http://example.com/a>)");
+		assertEval(stringNode("8c9a8a63-ca7c-50fc-a33e-2434bff9f36e"),
+				"tarql:uuid5('6ba7b811-9dad-11d1-80b4-00c04fd430c8', 'a', 'b')");
+	}
+
+	@Test
+	public void testBadNamespace() {
+		try {
+			eval("tarql:uuid5('foo', 'a')");
+			fail();
+		} catch (ExprEvalException ex) {}
+	}
+
+	@Test
+	public void testBlankNode() {
+		try {
+			eval("tarql:xxhash64(BNODE())");
+			fail();
+		} catch (ExprEvalException ex) {}
+	}
+
+	@Test(expected=QueryBuildException.class)
+	public void testNoArguments() {
+		eval("tarql:murmur3()");
+	}
+
+	@Test
+	public void testBase32() {
+		assertEquals("", HashFunction.base32(new byte[0]));
+		assertEquals("my", HashFunction.base32("f".getBytes()));
+		assertEquals("mzxw6ytboi", HashFunction.base32("foobar".getBytes()));
+	}
+}
@@ -0,0 +1,107 @@
+package org.deri.tarql.functions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.apache.jena.sparql.expr.ExprEvalException;
+import org.deri.tarql.CSVOptions;
+import org.deri.tarql.InputStreamSource;
+import org.deri.tarql.TarqlException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class LookupTest extends FunctionTest {
+	private File file;
+	private String path;
+
+	@Before
+	public void setUpTable() throws IOException {
+		file = File.createTempFile("tarql-lookup", ".csv");
+		Files.write(file.toPath(), "code,label\nDE,Germany\nFR,France\nDE,Deutschland\nXX,\n".getBytes(StandardCharsets.UTF_8));
+		path = file.getPath().replace("\\", "/");
+	}
+
+	@After
+	public void tearDown() {
+		LookupTable.clearCache();
+		file.delete();
+	}
+
+	@Test
+	public void testFound() {
+		assertEval(stringNode("France"), "tarql:lookup('" + path + "', 'code', 'FR', 'label')");
+	}
+
+	@Test
+	public void testFirstRowWins() {
+		assertEval(stringNode("Germany"), "tarql:lookup('" + path + "', 'code', 'DE', 'label')");
+	}
+
+	@Test
+	public void testNotFound() {
+		try {
+			eval("tarql:lookup('" + path + "', 'code', 'IT', 'label')");
+			fail();
+		} catch (ExprEvalException ex) {}
+	}
+
+	@Test
+	public void testEmptyValue() {
+		try {
+			eval("tarql:lookup('" + path + "', 'code', 'XX', 'label')");
+			fail();
+		} catch (ExprEvalException ex) {}
+	}
+
+	@Test(expected=TarqlException.class)
+	public void testUnknownKeyColumn() {
+		eval("tarql:lookup('" + path + "', 'foo', 'DE', 'label')");
+	}
+
+	@Test
+	public void testTableIsShared() {
+		assertSame(LookupTable.load(path, "code"), LookupTable.load(path, "code"));
+		assertEquals(3, LookupTable.load(path, "code").size());
+	}
+
+	@Test
+	public void testIndex() throws IOException {
+		File indexFile = File.createTempFile("tarql-lookup", ".idx");
+		try {
+			StringBuilder csv = new StringBuilder("key,value\n");
+			for (int i = 0; i < 1000; i++) {
+				csv.append("k").append(i).append(",v").append(i).append('\n');
+			}
+			csv.append("k1,duplicate\n,no key\n");
+			long keys = LookupIndex.build(InputStreamSource.fromString(csv.toString()), new CSVOptions(), indexFile);
+			assertEquals(1000, keys);
+			assertTrue(LookupIndex.isIndex(indexFile));
+			assertFalse(LookupIndex.isIndex(file));
+			String indexPath = indexFile.getPath().replace("\\", "/");
+			assertEval(stringNode("v1"), "tarql:lookup('" + indexPath + "', 'k1')");
+			assertEval(stringNode("v999"), "tarql:lookup('" + indexPath + "', 'k999')");
+			assertEquals(null, LookupIndex.open(indexFile).lookup("k1000"));
+			assertEquals(null, LookupIndex.open(indexFile).lookup(""));
+		} finally {
+			indexFile.delete();
+		}
+	}
+
+	@Test
+	public void testReloadsModifiedFile() throws IOException {
+		LookupTable.load(path, "code");
+		Files.write(file.toPath(), "code,label\nIT,Italy\n".getBytes(StandardCharsets.UTF_8));
+		file.setLastModified(file.lastModified() + 2000);
+		assertEval(stringNode("Italy"), "tarql:lookup('" + path + "', 'code', 'IT', 'label')");
+	}
+}